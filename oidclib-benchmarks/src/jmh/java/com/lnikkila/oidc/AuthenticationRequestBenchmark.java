@@ -0,0 +1,58 @@
+package com.lnikkila.oidc;
+
+import com.lnikkila.oidc.http.OIDCHttpTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What starting a login costs before the WebView loads anything: the state token and the
+ * authorization url.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AuthenticationRequestBenchmark {
+
+    /**
+     * A client configured like the sample, for each of the browser based flows.
+     */
+    @State(Scope.Benchmark)
+    public static class ConfiguredClient {
+
+        @Param({"Code", "Implicit", "Hybrid"})
+        public String flowType;
+
+        OIDCProtocolClient client;
+
+        @Setup
+        public void setUp() {
+            client = new OIDCProtocolClient(OIDCHttpTransport.getDefault())
+                    .setClientId(BenchmarkTokens.CLIENT_ID)
+                    .setRedirectUrl(BenchmarkTokens.REDIRECT_URL)
+                    .setScopes(new String[]{"openid", "profile", "email", "offline_access"})
+                    .setFlowType(flowType)
+                    .setIssuerId(BenchmarkTokens.ISSUER)
+                    .setAuthorizationEndpoint(BenchmarkTokens.ISSUER + "/authorize")
+                    .setExtras(Collections.singletonMap("prompt", "consent"));
+        }
+    }
+
+    @Benchmark
+    public String generateStateToken() {
+        return OIDCProtocolClient.generateStateToken("Example OP");
+    }
+
+    @Benchmark
+    public String getAuthenticationUrl(ConfiguredClient state) {
+        return state.client.getAuthenticationUrl("Example0P1234567890");
+    }
+}
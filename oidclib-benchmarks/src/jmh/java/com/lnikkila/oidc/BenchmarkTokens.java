@@ -0,0 +1,108 @@
+package com.lnikkila.oidc;
+
+import com.google.api.client.auth.openidconnect.IdToken;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import com.google.api.client.util.Base64;
+import com.google.api.client.util.StringUtils;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ID Tokens signed by a fake provider, shaped like the ones of a real one, for the benchmarks.
+ */
+final class BenchmarkTokens {
+
+    //region Constants
+
+    static final String ISSUER          = "https://op.example.com";
+    static final String JWKS_URI        = ISSUER + "/jwks";
+    static final String KEY_ID          = "benchmark-key";
+    static final String CLIENT_ID       = "benchmark-client";
+    static final String CLIENT_SECRET   = "benchmark-client-secret-0123456789";
+    static final String REDIRECT_URL    = "com.lnikkila.oidc.benchmark:/callback";
+    static final String ACCESS_TOKEN    = "SlAV32hkKG.2YotnFZFEjr1zCsicMWpAA-tGzv3JOkF0XG5Qx2TlKWIA";
+
+    private static final long LIFETIME_SECONDS = 24 * 60 * 60;
+
+    //endregion
+
+    /**
+     * Generated once, RSA key generation would otherwise dominate the set-up of every trial.
+     */
+    static final KeyPair RSA_KEY_PAIR;
+
+    static {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            RSA_KEY_PAIR = generator.generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private BenchmarkTokens() {
+    }
+
+    /**
+     * @return the claims of an ID Token issued to the benchmark client together with the given
+     * access token, valid for a day
+     */
+    static IdToken.Payload newPayload(String accessToken) throws NoSuchAlgorithmException {
+        long now = System.currentTimeMillis() / 1000;
+        IdToken.Payload payload = new IdToken.Payload();
+        payload.setIssuer(ISSUER);
+        payload.setAudience(CLIENT_ID);
+        payload.setSubject("248289761001");
+        payload.setIssuedAtTimeSeconds(now);
+        payload.setExpirationTimeSeconds(now + LIFETIME_SECONDS);
+        payload.setNonce("n-0S6_WzA2Mj");
+        payload.setAccessTokenHash(atHash(accessToken));
+        return payload;
+    }
+
+    /**
+     * Signs the claims with the RSA key pair, as a provider publishing its keys on a JWKS endpoint.
+     */
+    static String signRs256(JsonFactory jsonFactory, IdToken.Payload payload) throws IOException, GeneralSecurityException {
+        JsonWebSignature.Header header = new JsonWebSignature.Header();
+        header.setAlgorithm("RS256");
+        header.setType("JWT");
+        header.setKeyId(KEY_ID);
+        return JsonWebSignature.signUsingRsaSha256(RSA_KEY_PAIR.getPrivate(), jsonFactory, header, payload);
+    }
+
+    /**
+     * Signs the claims with the client secret, as a provider issuing HMAC signed tokens.
+     */
+    static String signHs256(JsonFactory jsonFactory, IdToken.Payload payload) throws IOException, GeneralSecurityException {
+        JsonWebSignature.Header header = new JsonWebSignature.Header();
+        header.setAlgorithm("HS256");
+        header.setType("JWT");
+        String content = Base64.encodeBase64URLSafeString(jsonFactory.toByteArray(header)) + "."
+                + Base64.encodeBase64URLSafeString(jsonFactory.toByteArray(payload));
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(StringUtils.getBytesUtf8(CLIENT_SECRET), "HmacSHA256"));
+        byte[] signature = mac.doFinal(StringUtils.getBytesUtf8(content));
+        return content + "." + Base64.encodeBase64URLSafeString(signature);
+    }
+
+    /**
+     * @return the left-most half of the SHA-256 of the access token, Base64url encoded
+     */
+    private static String atHash(String accessToken) throws NoSuchAlgorithmException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(StringUtils.getBytesUtf8(accessToken));
+        return Base64.encodeBase64URLSafeString(Arrays.copyOf(digest, digest.length / 2));
+    }
+}
@@ -0,0 +1,126 @@
+package com.lnikkila.oidc;
+
+import com.google.api.client.auth.openidconnect.IdToken;
+import com.lnikkila.oidc.http.OIDCHttpTransport;
+import com.lnikkila.oidc.security.IdTokenSignatureVerifier;
+import com.lnikkila.oidc.security.JwksKeyCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What reading the tokens of a response costs: parsing the ID Token, validating its claims and
+ * signature, and checking the access token against its at_hash claim.
+ * <br/>
+ * The provider keys are held in memory, so the numbers don't include the (cached) JWKS fetch.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class TokenValidationBenchmark {
+
+    /**
+     * An ID Token signed with either a provider key or the client secret.
+     */
+    @State(Scope.Benchmark)
+    public static class SignedIdToken {
+
+        @Param({"HS256", "RS256"})
+        public String algorithm;
+
+        String idTokenString;
+        IdToken idToken;
+        // Only accepts the algorithm of this token
+        InMemoryKeysClient client;
+
+        @Setup
+        public void setUp() throws Exception {
+            client = new InMemoryKeysClient(BenchmarkTokens.RSA_KEY_PAIR.getPublic());
+            client.setIdTokenSigningAlg(algorithm);
+
+            OIDCHttpTransport transport = OIDCHttpTransport.getDefault();
+            IdToken.Payload payload = BenchmarkTokens.newPayload(BenchmarkTokens.ACCESS_TOKEN);
+            idTokenString = "RS256".equals(algorithm)
+                    ? BenchmarkTokens.signRs256(transport.getJsonFactory(), payload)
+                    : BenchmarkTokens.signHs256(transport.getJsonFactory(), payload);
+            idToken = IdToken.parse(transport.getJsonFactory(), idTokenString);
+        }
+    }
+
+    private InMemoryKeysClient client;
+    private IdToken idToken;
+
+    @Setup
+    public void setUp() throws Exception {
+        client = new InMemoryKeysClient(BenchmarkTokens.RSA_KEY_PAIR.getPublic());
+        idToken = client.parseIdToken(BenchmarkTokens.signHs256(client.transport.getJsonFactory(),
+                BenchmarkTokens.newPayload(BenchmarkTokens.ACCESS_TOKEN)));
+    }
+
+    /**
+     * Parsing a token seen before, served by the {@link com.lnikkila.oidc.security.IdTokenParser} cache.
+     */
+    @Benchmark
+    public IdToken parseIdToken(SignedIdToken token) throws Exception {
+        return client.parseIdToken(token.idTokenString);
+    }
+
+    /**
+     * Parsing a token for the first time, what the cache saves.
+     */
+    @Benchmark
+    public IdToken parseIdTokenUncached(SignedIdToken token) throws Exception {
+        return IdToken.parse(client.transport.getJsonFactory(), token.idTokenString);
+    }
+
+    @Benchmark
+    public boolean isValidIdToken(SignedIdToken token) throws Exception {
+        return token.client.isValidIdToken(token.idToken);
+    }
+
+    /**
+     * The at_hash computation, the same whatever the signing algorithm.
+     */
+    @Benchmark
+    public boolean isValidAccessToken() throws Exception {
+        return client.isValidAccessToken(BenchmarkTokens.ACCESS_TOKEN, idToken);
+    }
+
+    /**
+     * A client of the fake provider whose JWKS key is known in advance.
+     */
+    static class InMemoryKeysClient extends OIDCProtocolClient {
+
+        private final JwksKeyCache keyCache;
+
+        InMemoryKeysClient(final PublicKey providerKey) {
+            super(OIDCHttpTransport.getDefault());
+            setClientId(BenchmarkTokens.CLIENT_ID)
+                    .setClientSecret(BenchmarkTokens.CLIENT_SECRET)
+                    .setRedirectUrl(BenchmarkTokens.REDIRECT_URL)
+                    .setIssuerId(BenchmarkTokens.ISSUER)
+                    .setJwksEndpoint(BenchmarkTokens.JWKS_URI);
+
+            keyCache = new JwksKeyCache(BenchmarkTokens.JWKS_URI, transport) {
+                @Override
+                public PublicKey getKey(String kid) {
+                    return BenchmarkTokens.KEY_ID.equals(kid) ? providerKey : null;
+                }
+            };
+        }
+
+        @Override
+        protected IdTokenSignatureVerifier getSignatureVerifier() {
+            return new IdTokenSignatureVerifier(keyCache, clientSecret, idTokenSigningAlg);
+        }
+    }
+}
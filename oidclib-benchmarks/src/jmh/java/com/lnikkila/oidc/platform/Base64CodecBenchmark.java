@@ -0,0 +1,54 @@
+package com.lnikkila.oidc.platform;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Base64 encoding of the encrypted records (standard) and of the at_hash claim (URL safe),
+ * with the codec of the current platform.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class Base64CodecBenchmark {
+
+    @Param({"false", "true"})
+    public boolean urlSafe;
+
+    /**
+     * Length of the input: an at_hash, or an encrypted ID Token.
+     */
+    @Param({"16", "1024"})
+    public int length;
+
+    private Base64Codec codec;
+    private byte[] data;
+    private String encoded;
+
+    @Setup
+    public void setUp() {
+        codec = Platform.get().getBase64Codec();
+        data = new byte[length];
+        new Random(42).nextBytes(data);
+        encoded = codec.encodeToString(data, urlSafe);
+    }
+
+    @Benchmark
+    public String encode() {
+        return codec.encodeToString(data, urlSafe);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return codec.decode(encoded, urlSafe);
+    }
+}
@@ -0,0 +1,151 @@
+package com.lnikkila.oidc.security;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * What storing and reading a token costs in the account storage: the encrypted record round trip
+ * of {@code SensitiveDataUtils}, with the Spongy Castle primitives of the pre API 23 implementation
+ * and the JCE primitives of the AndroidKeyStore one.
+ * <br/>
+ * The keys are held in memory, so on the JVM this measures the record handling and the AES-GCM
+ * implementations, not the keystore round trips of a device.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class SensitiveDataCipherBenchmark {
+
+    @Param({"SpongyCastle", "Jce"})
+    public String implementation;
+
+    /**
+     * Length of the plaintext: a refresh token, or an ID Token.
+     */
+    @Param({"64", "1024"})
+    public int length;
+
+    private SensitiveDataCipher cipher;
+    private String plaintext;
+    private String record;
+
+    @Setup
+    public void setUp() throws Exception {
+        byte[] key = new byte[SensitiveDataCipher.CIPHER_KEY_LENGHT / 8];
+        new SecureRandom().nextBytes(key);
+        cipher = "Jce".equals(implementation)
+                ? new InMemoryJceCipher(new SecretKeySpec(key, SensitiveDataCipher.CIPHER_ALGO))
+                : new InMemorySpongyCastleCipher(new KeyParameter(key));
+
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        plaintext = new String(chars);
+        record = cipher.encrypt(plaintext);
+    }
+
+    @Benchmark
+    public String encrypt() throws Exception {
+        return cipher.encrypt(plaintext);
+    }
+
+    @Benchmark
+    public String decrypt() throws Exception {
+        return cipher.decrypt(record);
+    }
+
+    /**
+     * {@code SensitiveDataPreApi23} without its stored key.
+     */
+    private static class InMemorySpongyCastleCipher extends SensitiveDataCipher {
+
+        private final KeyParameter key;
+
+        InMemorySpongyCastleCipher(KeyParameter key) {
+            this.key = key;
+        }
+
+        @Override
+        protected byte getKeyVersion() {
+            return 1;
+        }
+
+        @Override
+        protected byte[] seal(byte[] header, byte[] data) {
+            try {
+                return SpongyCastleCipher.seal(key, header, data);
+            } catch (InvalidCipherTextException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        protected byte[] open(byte[] header, byte[] data, int offset) {
+            try {
+                return SpongyCastleCipher.open(key, header, data, offset);
+            } catch (InvalidCipherTextException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        protected byte[] decryptLegacy(byte[] data) {
+            throw new UnsupportedOperationException("No legacy records in the benchmark");
+        }
+    }
+
+    /**
+     * {@code SensitiveDataPostApi23} with an in-memory key in place of the AndroidKeyStore one.
+     */
+    private static class InMemoryJceCipher extends SensitiveDataCipher {
+
+        private final SecretKey key;
+
+        InMemoryJceCipher(SecretKey key) {
+            this.key = key;
+        }
+
+        @Override
+        protected byte getKeyVersion() {
+            return 1;
+        }
+
+        @Override
+        protected byte[] seal(byte[] header, byte[] data) {
+            try {
+                return JceCipher.seal(key, header, data);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        protected byte[] open(byte[] header, byte[] data, int offset) {
+            try {
+                return JceCipher.open(key, header, data, offset);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        protected byte[] decryptLegacy(byte[] data) {
+            throw new UnsupportedOperationException("No legacy records in the benchmark");
+        }
+    }
+}
@@ -0,0 +1,977 @@
+package com.lnikkila.oidc;
+
+import com.google.api.client.auth.oauth2.AuthorizationCodeRequestUrl;
+import com.google.api.client.auth.oauth2.AuthorizationCodeTokenRequest;
+import com.google.api.client.auth.oauth2.AuthorizationRequestUrl;
+import com.google.api.client.auth.oauth2.PasswordTokenRequest;
+import com.google.api.client.auth.oauth2.RefreshTokenRequest;
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.auth.openidconnect.IdToken;
+import com.google.api.client.auth.openidconnect.IdTokenResponse;
+import com.google.api.client.auth.openidconnect.IdTokenVerifier;
+import com.google.api.client.http.BasicAuthentication;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.UrlEncodedContent;
+import com.google.api.client.http.UrlEncodedParser;
+import com.google.api.client.util.Preconditions;
+import com.lnikkila.oidc.http.OIDCHttpTransport;
+import com.lnikkila.oidc.metrics.Metrics;
+import com.lnikkila.oidc.platform.Log;
+import com.lnikkila.oidc.platform.Platform;
+import com.lnikkila.oidc.security.IdTokenParser;
+import com.lnikkila.oidc.security.IdTokenSignatureVerifier;
+import com.lnikkila.oidc.security.JwksKeyCache;
+import com.lnikkila.oidc.userinfo.UserInfo;
+import com.lnikkila.oidc.util.Strings;
+
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A layer of syntactic sugar around the google-oauth-java-client library to simplify using OpenID
+ * Connect: the protocol side of {@code OIDCRequestManager}, independent of Android.
+ * <br/>
+ * It is configured with its setters, so it also runs on a plain JVM (i.e. to benchmark or load
+ * test the flows); on Android use {@code OIDCRequestManager}, configured from the resources.
+ *
+ * @author Leo Nikkilä
+ * @author Camilo Montes
+ */
+public class OIDCProtocolClient {
+
+    private final String TAG = getClass().getSimpleName();
+
+    //region Constants
+
+    public static final String TOKEN_TYPE_HINT_ACCESS   = "access_token";
+    public static final String TOKEN_TYPE_HINT_REFRESH  = "refresh_token";
+
+    //endregion
+
+    //region Supported Flows
+
+    /**
+     * Supported OpenId Connect / OAuth2 Flows
+     */
+    public enum Flows
+    {
+        Code,               //http://openid.net/specs/openid-connect-core-1_0.html#CodeFlowAuth
+        Implicit,           //http://openid.net/specs/openid-connect-core-1_0.html#ImplicitFlowAuth
+        Hybrid,             //http://openid.net/specs/openid-connect-core-1_0.html#HybridFlowAuth
+        Password
+    }
+
+    /**
+     * Checks if the given flow name is supported.
+     * @param value the name of the flow name to check
+     * @return true if supported, false otherwise
+     */
+    public static boolean isSupportedFlow(String value) {
+
+        for (Flows c : Flows.values()) {
+            if (c.name().equals(value)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    //endregion
+
+    protected final OIDCHttpTransport transport;
+
+    protected String authorizationEndpoint;
+    protected String tokenEndpoint;
+    protected String userInfoEndpoint;
+    protected String jwksEndpoint;
+    protected String idTokenSigningAlg = IdTokenSignatureVerifier.DEFAULT_ALGORITHM;
+    protected String revocationEndpoint;
+    protected String endSessionEndpoint;
+
+    protected boolean useOAuth2;
+    protected String clientId;
+    protected String clientSecret;
+    protected String redirectUrl;
+    protected String[] scopes = new String[0];
+    protected String flowTypeName;
+    protected Flows flowType;
+    protected String issuerId;
+    protected Map<String, String> extras;
+
+    /**
+     * Creates a client whose requests all go through the given transport. It must then be
+     * configured with the setters.
+     * @param transport the (usually process-wide) transport to use, see {@link OIDCHttpTransport#getDefault()}
+     */
+    public OIDCProtocolClient(OIDCHttpTransport transport) {
+        this.transport = Preconditions.checkNotNull(transport);
+    }
+
+    //region Setters/Getters
+
+    public OIDCProtocolClient setUseOAuth2(boolean useOAuth2) {
+        this.useOAuth2 = useOAuth2;
+        return this;
+    }
+
+    public OIDCProtocolClient setClientId(String clientId) {
+        this.clientId = clientId;
+        return this;
+    }
+
+    public OIDCProtocolClient setClientSecret(String clientSecret) {
+        this.clientSecret = clientSecret;
+        return this;
+    }
+
+    public boolean isRedirectUrl(String redirectUrl) {
+        Preconditions.checkNotNull(redirectUrl);
+        Preconditions.checkNotNull(this.redirectUrl);
+        return redirectUrl.startsWith(this.redirectUrl);
+    }
+
+    public OIDCProtocolClient setRedirectUrl(String redirectUrl) {
+        this.redirectUrl = redirectUrl;
+        return this;
+    }
+
+    public OIDCProtocolClient setScopes(String[] scopes) {
+        this.scopes = scopes;
+        return this;
+    }
+
+    public Flows getFlowType() {
+        return flowType;
+    }
+
+    public OIDCProtocolClient setFlowType(Flows flowType) {
+        this.flowType = flowType;
+        return this;
+    }
+
+    public OIDCProtocolClient setFlowType(String flowTypeName) {
+        if (isSupportedFlow(flowTypeName)) {
+            this.flowTypeName = flowTypeName;
+            this.flowType = Flows.valueOf(flowTypeName);
+        } else {
+            throw new IllegalArgumentException(flowTypeName + " is not a supported flow type");
+        }
+        return this;
+    }
+
+    public OIDCProtocolClient setIssuerId(String issuerId) {
+        this.issuerId = issuerId;
+        return this;
+    }
+
+    public OIDCProtocolClient setExtras(Map<String, String> extras) {
+        this.extras = extras;
+        return this;
+    }
+
+    public OIDCProtocolClient setAuthorizationEndpoint(String authorizationEndpoint) {
+        this.authorizationEndpoint = authorizationEndpoint;
+        return this;
+    }
+
+    public OIDCProtocolClient setTokenEndpoint(String tokenEndpoint) {
+        this.tokenEndpoint = tokenEndpoint;
+        return this;
+    }
+
+    public OIDCProtocolClient setUserInfoEndpoint(String userInfoEndpoint) {
+        this.userInfoEndpoint = userInfoEndpoint;
+        return this;
+    }
+
+    public OIDCProtocolClient setJwksEndpoint(String jwksEndpoint) {
+        this.jwksEndpoint = jwksEndpoint;
+        return this;
+    }
+
+    /**
+     * Sets the only algorithm ID Tokens may be signed with. Defaults to RS256.
+     * @param idTokenSigningAlg RS256, ES256 or HS256
+     */
+    public OIDCProtocolClient setIdTokenSigningAlg(String idTokenSigningAlg) {
+        this.idTokenSigningAlg = idTokenSigningAlg;
+        return this;
+    }
+
+    public String getIdTokenSigningAlg() {
+        return idTokenSigningAlg;
+    }
+
+    public OIDCProtocolClient setRevocationEndpoint(String revocationEndpoint) {
+        this.revocationEndpoint = revocationEndpoint;
+        return this;
+    }
+
+    public OIDCProtocolClient setEndSessionEndpoint(String endSessionEndpoint) {
+        this.endSessionEndpoint = endSessionEndpoint;
+        return this;
+    }
+
+    public String getRevocationEndpoint() {
+        return revocationEndpoint;
+    }
+
+    /**
+     * @return whether the OP has a Revocation Endpoint, tokens can't be revoked otherwise
+     */
+    public boolean isRevocationSupported() {
+        return !Strings.isEmpty(revocationEndpoint);
+    }
+
+    public String getEndSessionEndpoint() {
+        return endSessionEndpoint;
+    }
+
+    //endregion
+
+    //region Authentication Requests
+
+    /**
+     * Builds the authentication url with the pre-set OpenId Connect client configuration.
+     * @param state the state used to maintain state between the request and the callback.
+     * @return the string representation of the authentication url.
+     * @see OIDCProtocolClient#implicitFlowAuthenticationUrl(String)
+     * @see OIDCProtocolClient#hybridFlowAuthenticationUrl(String)
+     * @see OIDCProtocolClient#codeFlowAuthenticationUrl(String)
+     */
+    public String getAuthenticationUrl(String state) {
+        AuthorizationRequestUrl request;
+        switch (flowType) {
+            case Implicit: {
+                request = implicitFlowAuthenticationUrl(state);
+                break;
+            }
+            case Hybrid: {
+                request = hybridFlowAuthenticationUrl(state);
+                break;
+            }
+            case Code:
+            default: {
+                request = codeFlowAuthenticationUrl(state);
+                break;
+            }
+        }
+
+        Log.d(TAG, "Using %1$s flow", flowType.name());
+
+        // This are extra query parameters that can be specific to an OP. For instance prompt -> consent
+        // tells the Authorization Server that it SHOULD prompt the End-User for consent before returning
+        // information to the Client.
+        if (extras != null) {
+            for (Map.Entry<String, String> queryParam : extras.entrySet()) {
+                request.set(queryParam.getKey(), queryParam.getValue());
+            }
+        }
+
+        return request.build();
+    }
+
+    /**
+     * Generates an Authentication Request URL to the Authorization Endpoint to start an Implicit Flow.
+     * When using the Implicit Flow, all tokens are returned from the Authorization Endpoint; the
+     * Token Endpoint is not used so it allows to get all tokens on one trip. The downside is that
+     * it doesn't support refresh tokens.
+     * @see <a href="http://openid.net/specs/openid-connect-core-1_0.html#ImplicitFlowAuth">Implicit Flow</a>
+     *
+     * @param state the state used to maintain state between the request and the callback.
+     * @return the Authentication Request URL
+     */
+    private AuthorizationRequestUrl implicitFlowAuthenticationUrl(String state) {
+
+        //TODO: see what the following statement implies :
+        // "While OAuth 2.0 also defines the token Response Type value for the Implicit Flow,
+        // OpenID Connect does not use this Response Type, since no ID Token would be returned"
+        // from http://openid.net/specs/openid-connect-core-1_0.html#Authentication
+        String[] responsesTypes = {"id_token", "token"};
+        List<String> scopesList = Arrays.asList(scopes);
+        List<String> responsesList = Arrays.asList(responsesTypes);
+
+        //noinspection UnnecessaryLocalVariable
+        AuthorizationRequestUrl request = new AuthorizationRequestUrl(authorizationEndpoint, clientId,
+                responsesList)
+                .setRedirectUri(redirectUrl)
+                .setScopes(scopesList)
+                .setState(state)
+                .set("nonce", ""); //TODO: nonce is optional, needs to include per-session state and be unguessable to attackers. We should try to generate one.
+
+        return request;
+    }
+
+    /**
+     * Generates an Authentication Request URL to the Authorization Endpoint to start an Hybrid Flow.
+     * When using the Hybrid Flow, some tokens are returned from the Authorization Endpoint and
+     * others are returned from the Token Endpoint.
+     * @see <a href="http://openid.net/specs/openid-connect-core-1_0.html#HybridFlowAuth">Hybrid Flow</a>
+     *
+     * @param state the state used to maintain state between the request and the callback.
+     * @return the Authentication Request URL
+     */
+    private AuthorizationRequestUrl hybridFlowAuthenticationUrl(String state) {
+
+        // The response type "code" is the only mandatory response type on hybrid flow, it must be
+        // coupled with other response types to form one of the following values : "code id_token",
+        // "code token", or "code id_token token".
+        // For our needs "token" is not defined here because we want an access_token that has made
+        // a client authentication. That access_token will be retrieve later using the TokenEndpoint
+        // (see #requestTokensWithCodeGrant).
+        String[] responsesTypes = {"code", "id_token"};
+        List<String> scopesList = Arrays.asList(scopes);
+        List<String> responsesList = Arrays.asList(responsesTypes);
+
+        //noinspection UnnecessaryLocalVariable
+        AuthorizationRequestUrl request = new AuthorizationRequestUrl(authorizationEndpoint, clientId, responsesList)
+                .setRedirectUri(redirectUrl)
+                .setScopes(scopesList)
+                .setState(state)
+                .set("nonce", ""); //TODO: nonce is optional, needs to include per-session state and be unguessable to attackers. We should try to generate one.
+
+        return request;
+    }
+
+    /**
+     * Generates an Authentication Request URL to the Authorization Endpoint to start an Code Flow.
+     * When using the Code Flow, all tokens are returned from the Token Endpoint.
+     * The Authorization Server can authenticate the Client before exchanging the Authorization Code
+     * for an Access Token.
+     * @see <a href="http://openid.net/specs/openid-connect-core-1_0.html#CodeFlowAuth">Code Flow</a>
+     *
+     * @param state the state used to maintain state between the request and the callback.
+     * @return the Authentication Request URL
+     */
+    private AuthorizationRequestUrl codeFlowAuthenticationUrl(String state) {
+
+        List<String> scopesList = Arrays.asList(scopes);
+
+        //noinspection UnnecessaryLocalVariable
+        AuthorizationCodeRequestUrl request = new AuthorizationCodeRequestUrl(authorizationEndpoint, clientId)
+                .setRedirectUri(redirectUrl)
+                .setScopes(scopesList)
+                .setState(state)
+                .set("nonce", ""); //TODO: nonce is optional, needs to include per-session state and be unguessable to attackers. We should try to generate one.
+
+        return request;
+    }
+
+    //endregion
+
+    //region Tokens Requests
+
+    /**
+     * Exchanges an Authorization Code for an Access Token, Refresh Token and (optional) ID Token.
+     * This provides the benefit of not exposing any tokens to the User Agent and possibly other
+     * malicious applications with access to the User Agent.
+     * The Authorization Server can also authenticate the Client before exchanging the Authorization
+     * Code for an Access Token.
+     *
+     * Needs to be run on a separate thread.
+     *
+     * @param authCode the authorization code received from the authorization endpoint
+     * @return the parsed successful token response received from the token endpoint
+     * @throws IOException for an error response
+     */
+    public TokenResponse requestTokensWithCodeGrant(String authCode) throws IOException {
+        Metrics.Timer timer = Metrics.startTimer(Metrics.TOKEN_CODE_GRANT);
+        try {
+            AuthorizationCodeTokenRequest request = new AuthorizationCodeTokenRequest(
+                    transport.getHttpTransport(),
+                    transport.getJsonFactory(),
+                    new GenericUrl(tokenEndpoint),
+                    authCode
+            );
+            request.setRedirectUri(redirectUrl);
+            request.setRequestInitializer(transport.getRequestInitializer());
+
+            // This are extra query parameters that can be specific to an OP. For instance for OpenAm
+            // we can define 'realm' that defines to which sub realm the request is going to.
+            if (extras != null) {
+                for (Map.Entry<String, String> queryParam : extras.entrySet()) {
+                    request.set(queryParam.getKey(), queryParam.getValue());
+                }
+            }
+
+            if (!Strings.isEmpty(clientSecret)) {
+                request.setClientAuthentication(new BasicAuthentication(clientId, clientSecret));
+            } else {
+                request.set("client_id", clientId);
+            }
+
+            if (useOAuth2) {
+                Log.d(TAG, "tokens request OAuth2 sent");
+                TokenResponse tokenResponse = request.executeUnparsed().parseAs(TokenResponse.class);
+                String accessToken = tokenResponse.getAccessToken();
+
+                if (!Strings.isEmpty(accessToken)){
+                    Log.d(TAG, "Manage to parse and extract AT : %1$s", Log.redact(accessToken));
+                    return tokenResponse;
+                }
+                else {
+                    throw new IOException("Invalid Access Token returned.");
+                }
+            } else {
+                Log.d(TAG, "tokens request OIDC sent");
+                IdTokenResponse response = IdTokenResponse.execute(request);
+                IdToken idToken = parseIdToken(response.getIdToken());
+
+                if (isValidIdToken(idToken)) {
+                    try {
+                        String accessToken = response.getAccessToken();
+                        // if there is no AT return it means we only request idToken so there's no need to validate the AT
+                        if (Strings.isEmpty(accessToken) || isValidAccessToken(accessToken, idToken)) {
+                            return response;
+                        } else {
+                            throw new IOException("Invalid access token. The at_hash does not match with the return access token.");
+                        }
+                    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+                        throw new IOException("Can not validate AccessToken.", e);
+                    }
+                } else {
+                    throw new IOException("Invalid ID token returned.");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Exchanges the end-user credentials for an Access Token, Refresh Token and (optional) ID Token.
+     * This SHOULD NOT be use for
+     * The Authorization Server can also authenticate the Client before exchanging the Authorization
+     * Code for an Access Token.
+     *
+     * Needs to be run on a separate thread.
+     *
+     * @param userName the end-user name
+     * @param userPwd the end-user password
+     * @return the parsed successful token response received from the token endpoint
+     * @throws IOException for an error response
+     */
+    public TokenResponse requestTokensWithPasswordGrant(String userName, String userPwd) throws IOException {
+        Metrics.Timer timer = Metrics.startTimer(Metrics.TOKEN_PASSWORD_GRANT);
+        try {
+            List<String> scopesList = Arrays.asList(scopes);
+
+            PasswordTokenRequest request = new PasswordTokenRequest(
+                    transport.getHttpTransport(),
+                    transport.getJsonFactory(),
+                    new GenericUrl(tokenEndpoint),
+                    userName,
+                    userPwd
+            );
+            request.setRequestInitializer(transport.getRequestInitializer());
+
+            if (!scopesList.isEmpty()) {
+                request.setScopes(scopesList);
+            }
+
+            // This are extra query parameters that can be specific to an OP. For instance for OpenAm
+            // we can define 'realm' that defines to which sub realm the request is going to.
+            if (extras != null) {
+                for (Map.Entry<String, String> queryParam : extras.entrySet()) {
+                    request.set(queryParam.getKey(), queryParam.getValue());
+                }
+            }
+
+            if (!Strings.isEmpty(clientSecret)) {
+                request.setClientAuthentication(new BasicAuthentication(clientId, clientSecret));
+            } else {
+                request.set("client_id", clientId);
+            }
+
+
+            // Working with OIDC
+            if (scopesList.contains("openid")) {
+                Log.d(TAG, "PasswordGrant request OIDC sent");
+
+                IdTokenResponse tokenResponse = IdTokenResponse.execute(request);
+                IdToken idToken = parseIdToken(tokenResponse.getIdToken());
+
+                if (isValidIdToken(idToken)) {
+                    return tokenResponse;
+                } else {
+                    throw new IOException("Invalid ID token returned.");
+                }
+            } else {
+                Log.d(TAG, "PasswordGrant request OAuth2 sent");
+                TokenResponse tokenResponse = request.executeUnparsed().parseAs(TokenResponse.class);
+                String accessToken = tokenResponse.getAccessToken();
+
+                if (!Strings.isEmpty(accessToken)){
+                    Log.d(TAG, "Manage to parse and extract AT : %1$s", Log.redact(accessToken));
+                    return tokenResponse;
+                }
+                else {
+                    throw new IOException("Invalid Access Token returned.");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Parses the fragment component received from the authorization endpoint when using the implicit flow.
+     * For instance on a authorization response
+     *
+     * HTTP/1.1 302 Found
+     * Location: https://redirect/cb#access_token=SlAV32hkKG&token_type=bearer&id_token=eyJ0...&expires_in=3600&state=af0ifjsldkj
+     *
+     * the fragment component would be "access_token=SlAV32hkKG&token_type=bearer&id_token=eyJ0...&expires_in=3600&state=af0ifjsldkj".
+     *
+     * @param fragmentPart fragment component of the Redirection URI
+     * @param state the state used to maintain state between the request and the callback.
+     * @return the parsed successful token response from the a fragment component
+     * @throws IOException for an error response
+     */
+    public TokenResponse parseTokensFromImplicitResponseFragmentPart(String fragmentPart, String state) throws IOException {
+
+        Map<String, Object> parameters = new HashMap<>();
+        UrlEncodedParser.parse(fragmentPart, parameters);
+        String accessToken = getParameter(parameters, "access_token");
+        String idToken = getParameter(parameters, "id_token");
+        String tokenType = getParameter(parameters, "token_type");
+        String expiresInString = getParameter(parameters, "expires_in");
+        Long expiresIn = (!Strings.isEmpty(expiresInString)) ? Long.decode(expiresInString) : null;
+        String scope = getParameter(parameters, "scope");
+        String returnedState = getParameter(parameters, "state");
+
+        if (state.equalsIgnoreCase(returnedState)) {
+            if (!Strings.isEmpty(tokenType) && expiresIn != null) {
+                if (useOAuth2 && !Strings.isEmpty(accessToken)) {
+                    TokenResponse response = new TokenResponse();
+                    response.setAccessToken(accessToken);
+                    response.setTokenType(tokenType);
+                    response.setExpiresInSeconds(expiresIn);
+                    response.setScope(scope);
+                    response.setFactory(transport.getJsonFactory());
+                    return response;
+                } else if (!Strings.isEmpty(idToken)) {
+                    IdTokenResponse response = new IdTokenResponse();
+                    response.setAccessToken(accessToken);
+                    response.setIdToken(idToken);
+                    response.setTokenType(tokenType);
+                    response.setExpiresInSeconds(expiresIn);
+                    response.setScope(scope);
+                    response.setFactory(transport.getJsonFactory());
+                    try {
+                        IdToken parsedIdToken = parseIdToken(idToken);
+                        if (isValidIdToken(parsedIdToken)) {
+                            // if there is no AT return it means we only request idToken so there's no need to validate the AT
+                            if (Strings.isEmpty(accessToken) || isValidAccessToken(accessToken, parsedIdToken)) {
+                                return response;
+                            } else {
+                                throw new IOException("Invalid access token. The at_hash does not match with the return access token.");
+                            }
+                        } else {
+                            throw new IOException("Invalid idToken returned");
+                        }
+                    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+                        throw new IOException("Could not validate access token or idToken", e);
+                    }
+                } else {
+                    throw new IOException("Could not read access token or idToken from the response fragment");
+                }
+            } else {
+                throw new IOException("Could not read mandatory values (tokenType, expiresIn) from the response fragment");
+            }
+        } else {
+            throw new IOException("Local and returned states don't match");
+        }
+    }
+
+    /**
+     * @return the first value of a parameter parsed by {@link UrlEncodedParser}, or null
+     */
+    private static String getParameter(Map<String, Object> parameters, String name) {
+        Object value = parameters.get(name);
+        if (value instanceof Collection) {
+            Collection<?> values = (Collection<?>) value;
+            value = values.isEmpty() ? null : values.iterator().next();
+        }
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     *  Exchanges a Refresh Token for a new set of tokens.
+     *
+     *  Note that the Token Server may require you to use the `offline_access` scope to receive
+     *  Refresh Tokens.
+     *
+     * @param refreshToken the refresh token used to request new Access Token / idToken.
+     * @return the parsed successful token response received from the token endpoint
+     * @throws IOException for an error response
+     */
+    public TokenResponse refreshTokens(String refreshToken) throws IOException {
+        Metrics.Timer timer = Metrics.startTimer(Metrics.TOKEN_REFRESH);
+        try {
+            List<String> scopesList = Arrays.asList(scopes);
+
+            RefreshTokenRequest request = new RefreshTokenRequest(
+                    transport.getHttpTransport(),
+                    transport.getJsonFactory(),
+                    new GenericUrl(tokenEndpoint),
+                    refreshToken);
+            request.setRequestInitializer(transport.getRequestInitializer());
+
+            if (!scopesList.isEmpty()) {
+                request.setScopes(scopesList);
+            }
+
+            // This are extra query parameters that can be specific to an OP. For instance prompt -> consent
+            // tells the Authorization Server that it SHOULD prompt the End-User for consent before returning
+            // information to the Client.
+            if (extras != null) {
+                for (Map.Entry<String, String> queryParam : extras.entrySet()) {
+                    request.set(queryParam.getKey(), queryParam.getValue());
+                }
+            }
+
+            // If the oidc client is confidential (needs authentication)
+            if (!Strings.isEmpty(clientSecret)) {
+                request.setClientAuthentication(new BasicAuthentication(clientId, clientSecret));
+            } else {
+                request.set("client_id", clientId);
+            }
+
+            if (useOAuth2) {
+                if (scopesList.contains("openid")) {
+                    Log.w(TAG, "Using OAuth2 only request but scopes contain values for OpenId Connect");
+                }
+                return request.executeUnparsed().parseAs(TokenResponse.class);
+            } else {
+                return IdTokenResponse.execute(request);
+            }
+        } catch (IOException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    //endregion
+
+    //region UserInfo Requests
+
+    /**
+     * Gets user information from the UserInfo endpoint.
+     * @param token an idToken or accessToken associated to the end-user.
+     * @return the standard claims and the other claims of the end-user.
+     * @throws IOException for an error response
+     */
+    public UserInfo getUserInfo(String token) throws IOException {
+        return getUserInfo(token, UserInfo.class);
+    }
+
+    /**
+     * Gets user information from the UserInfo endpoint. The response is deserialized while it is
+     * being read.
+     * @param token an idToken or accessToken associated to the end-user.
+     * @param classOfT the class used to deserialize the user info into.
+     * @return the parsed user information.
+     * @throws IOException for an error response
+     */
+    public  <T> T getUserInfo(String token,  Class<T> classOfT) throws IOException {
+        Metrics.Timer timer = Metrics.startTimer(Metrics.USERINFO_REQUEST);
+        try {
+            GenericUrl url = new GenericUrl(userInfoEndpoint);
+            if (extras != null) {
+                url.putAll(extras);
+            }
+
+            HttpRequest request = transport.getRequestFactory().buildGetRequest(url);
+            request.getHeaders().setAuthorization("Bearer " + token).setAccept("application/json");
+            request.setThrowExceptionOnExecuteError(false);
+
+            HttpResponse response = request.execute();
+            try {
+                if (response.isSuccessStatusCode()) {
+                    return transport.parseJson(response, classOfT);
+                } else {
+                    throw new IOException(response.getStatusMessage());
+                }
+            } finally {
+                response.disconnect();
+            }
+        } catch (IOException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    //endregion
+
+    //region Revocation Requests
+
+    /**
+     * Revokes a token at the Revocation Endpoint. Revoking a refresh token usually revokes the
+     * access tokens issued with it too.
+     * @param token the access token or refresh token to revoke.
+     * @param tokenTypeHint {@link #TOKEN_TYPE_HINT_ACCESS}, {@link #TOKEN_TYPE_HINT_REFRESH} or null.
+     * @throws HttpResponseException when the OP rejects the request; a 503 means it should be retried
+     * @throws IOException when the OP can't be reached
+     * @throws IllegalStateException when there is no Revocation Endpoint, see {@link #isRevocationSupported()}
+     * @see <a href="https://tools.ietf.org/html/rfc7009">https://tools.ietf.org/html/rfc7009</a>
+     */
+    public void revokeToken(String token, String tokenTypeHint) throws IOException {
+        if (!isRevocationSupported()) {
+            throw new IllegalStateException("No revocation endpoint configured.");
+        }
+
+        Metrics.Timer timer = Metrics.startTimer(Metrics.TOKEN_REVOCATION);
+        try {
+
+            Map<String, String> parameters = new HashMap<>();
+            parameters.put("token", token);
+            if (tokenTypeHint != null) {
+                parameters.put("token_type_hint", tokenTypeHint);
+            }
+            if (extras != null) {
+                parameters.putAll(extras);
+            }
+            if (Strings.isEmpty(clientSecret)) {
+                parameters.put("client_id", clientId);
+            }
+
+            HttpRequest request = transport.getRequestFactory().buildPostRequest(
+                    new GenericUrl(revocationEndpoint), new UrlEncodedContent(parameters));
+            if (!Strings.isEmpty(clientSecret)) {
+                request.getHeaders().setBasicAuthentication(clientId, clientSecret);
+            }
+
+            // The OP answers 200 for a token it doesn't know (i.e. already revoked) too
+            HttpResponse response = request.execute();
+            response.disconnect();
+            Log.d(TAG, "Revoked a token of type %1$s", tokenTypeHint);
+        } catch (IOException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Generates the URL of the End Session Endpoint to open in a browser to log the End-User out
+     * of the OP (RP-Initiated Logout).
+     * @param idTokenHint the ID Token of the End-User, recommended by the spec.
+     * @param postLogoutRedirectUri where the OP redirects the End-User after logout, may be null.
+     * @param state opaque value given back with the redirection, may be null.
+     * @return the URL, or null if the OP has no End Session Endpoint
+     * @see <a href="http://openid.net/specs/openid-connect-session-1_0.html#RPLogout">http://openid.net/specs/openid-connect-session-1_0.html#RPLogout</a>
+     */
+    public String getEndSessionUrl(String idTokenHint, String postLogoutRedirectUri, String state) {
+        if (Strings.isEmpty(endSessionEndpoint)) {
+            return null;
+        }
+        GenericUrl url = new GenericUrl(endSessionEndpoint);
+        if (idTokenHint != null) {
+            url.put("id_token_hint", idTokenHint);
+        }
+        if (postLogoutRedirectUri != null) {
+            url.put("post_logout_redirect_uri", postLogoutRedirectUri);
+        }
+        if (state != null) {
+            url.put("state", state);
+        }
+        return url.build();
+    }
+
+    //endregion
+
+    //region Tokens Validation
+
+    /**
+     * Parses an ID Token. The same token is only parsed once, so validating it, checking its
+     * at_hash and naming the account share the same instance.
+     * @param idTokenString the compact serialization of the ID Token
+     * @return the parsed token, to be treated as read-only
+     * @throws IOException when the IdToken can not be parse.
+     */
+    public IdToken parseIdToken(String idTokenString) throws IOException {
+        try {
+            return IdTokenParser.getInstance().parse(idTokenString);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed ID token returned.", e);
+        }
+    }
+
+    /**
+     * Validates an IdToken claims and signature.
+     * TODO: Look into verifying the token nonce as well?
+     *
+     * @param idToken the parsed IdToken to validate
+     * @return true if the idToken is valid, false otherwise.
+     * @throws IOException when the provider keys can not be fetched.
+     * @see IdTokenVerifier#verify(IdToken)
+     */
+    protected boolean isValidIdToken(IdToken idToken) throws IOException {
+        Metrics.Timer timer = Metrics.startTimer(Metrics.ID_TOKEN_VALIDATION);
+        try {
+            List<String> audiences = Collections.singletonList(clientId);
+            IdTokenVerifier verifier = new IdTokenVerifier.Builder()
+                    .setAudience(audiences)
+                    .setAcceptableTimeSkewSeconds(1000)
+                    .setIssuer(issuerId)
+                    .build();
+
+            return verifier.verify(idToken) && getSignatureVerifier().verify(idToken);
+        } catch (IOException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * @return a signature verifier using the provider keys (cached process-wide, so the JWKS
+     * endpoint is only hit when the keys expire or rotate) and the current client secret, accepting
+     * only {@link #getIdTokenSigningAlg()}.
+     */
+    protected IdTokenSignatureVerifier getSignatureVerifier() {
+        JwksKeyCache keyCache = Strings.isEmpty(jwksEndpoint) ? null : JwksKeyCache.getInstance(jwksEndpoint, transport);
+        return new IdTokenSignatureVerifier(keyCache, clientSecret, idTokenSigningAlg);
+    }
+
+    /**
+     * Validates the access token issued with an ID Token, by comparing the result of the access token hash
+     * with the 'at_hash' claim contained on the ID Token.
+     * @param accessTokenString the access token to hash
+     * @param idToken the parsed ID Token were the 'at_hash' can be found
+     * @return true if the result of the hashed access token is equal to the 'at_hash' claim.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @see <a hfre="http://openid.net/specs/openid-connect-core-1_0.html#ImplicitTokenValidation">http://openid.net/specs/openid-connect-core-1_0.html#ImplicitTokenValidation</a>
+     */
+    protected boolean isValidAccessToken(String accessTokenString, IdToken idToken) throws IOException, NoSuchAlgorithmException, InvalidKeyException {
+        boolean isValidAt = false;
+        if (!Strings.isEmpty(accessTokenString) && idToken != null) {
+            String alg = idToken.getHeader().getAlgorithm();
+            byte[] atBytes = accessTokenString.getBytes("UTF-8");
+            String atHash = idToken.getPayload().getAccessTokenHash();
+
+            String forgedAtHash;
+            if ("HS256".equals(alg) || "RS256".equals(alg) || "ES256".equals(alg)) {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(atBytes, 0, atBytes.length);
+                atBytes = digest.digest();
+                atBytes = Arrays.copyOfRange(atBytes, 0, atBytes.length / 2);
+                forgedAtHash = Platform.get().getBase64Codec().encodeToString(atBytes, true);
+
+                Log.d(TAG, "Checked at_hash with alg %1$s", alg);
+
+                isValidAt = atHash.equals(forgedAtHash);
+            } else {
+                Log.w(TAG, "Unsupported alg claim : %1$s. Supported alg are HS256, RS256, ES256", alg);
+            }
+
+        } else {
+            Log.w(TAG, "Can't verify access token, AT or idToken empty");
+        }
+
+        return isValidAt;
+    }
+
+    //endregion
+
+    //region Helper methods
+
+    /**
+     * Checks if OpenId Connect client settings are correctly set.
+     * @return true if all expected settings are set, false otherwise.
+     */
+    public boolean checkConfiguration() {
+        boolean isConfigOk = false;
+
+        if (!Strings.isEmpty(flowTypeName) && isSupportedFlow(flowTypeName)) {
+            Flows supportedFlow = Flows.valueOf(flowTypeName);
+
+            // RFC6749 https://tools.ietf.org/html/rfc6749#section-2.3  says that client_secret are OPTIONAL
+            // and if not set it usually means that the client is public and does not require to authenticate
+            // with the authorization server. When client_secret is set we will consider that client is
+            // confidential and as for now we will only support HTTP Basic authentication to authenticate
+            //  with the authorization server (others like public/private key pair, etc. are not yet supported).
+            if (Strings.isEmpty(clientSecret)) {
+                Log.d(TAG, "Undefined client_secret, OIDC client is public");
+            } else {
+                Log.d(TAG, "OIDC client is confidential and will be using HTTP Basic authentication");
+            }
+
+            // RFC6749 https://tools.ietf.org/html/rfc6749#section-3.3 says that scopes are OPTIONAL
+            // and if omited by client it means to use pre-defined default value or the authorization server fails
+            if (scopes.length == 0) {
+                Log.w(TAG, "Undefined scopes, OIDC client will use authorization server pre-defined default values");
+            }
+
+            switch (supportedFlow) {
+                case Code:
+                case Implicit:
+                case Hybrid:
+                    isConfigOk =
+                            !Strings.isEmpty(clientId) &&
+                                    // RFC6749 https://tools.ietf.org/html/rfc6749#section-4.1.1 says this is OPTIONAL
+                                    // but we need this to know when the WebView should to stop following redirects
+                                    !Strings.isEmpty(redirectUrl);
+                    break;
+                case Password:
+                    // RFC6749 https://tools.ietf.org/html/rfc6749#section-4.3.2 we don't need to check anything
+                    // here because resource owner username/password will be set by a form later on. We know that
+                    // this is not the way that it should be (username/password should be already be set on OIDC
+                    // client and be check if they are set here). Also this flow should NOT be use by an
+                    // Android App, this flow was added for completeness.
+                    Log.w(TAG, "Please be sure you know what you are doing when using the 'password' flow");
+                    isConfigOk = true;
+                    break;
+                default:
+                    Log.wtf(TAG, "An new/unknown flow type was added but it's configuration checks where not implemented");
+                    break;
+            }
+        } else {
+            Log.e(TAG, "Undefined or unsupported flow type, check your OIDC client configuration");
+        }
+        return isConfigOk;
+    }
+
+    /**
+     * Generates a secure state token
+     * @param opHint the OpenIdConnect Provider name or any other identifier that gives an idea of the
+     *               provider you are dealing with (i.e Google, Facebook, ...).
+     *               This will be use as part of the state token. Can be empty but not null.
+     * @return a state token.
+     */
+    public static String generateStateToken(String opHint){
+        SecureRandom sr = new SecureRandom();
+        String cleanOpName = opHint.replaceAll("\\W", "");
+        return  cleanOpName+sr.nextInt();
+    }
+
+    //endregion
+
+}
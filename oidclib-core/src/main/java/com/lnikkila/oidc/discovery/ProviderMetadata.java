@@ -0,0 +1,69 @@
+package com.lnikkila.oidc.discovery;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.util.List;
+
+/**
+ * The subset of the OpenID Provider metadata used by the library.
+ *
+ * @see <a href="http://openid.net/specs/openid-connect-discovery-1_0.html#ProviderMetadata">http://openid.net/specs/openid-connect-discovery-1_0.html#ProviderMetadata</a>
+ */
+public class ProviderMetadata {
+
+    @SerializedName("issuer")
+    private String issuer;
+
+    @SerializedName("authorization_endpoint")
+    private String authorizationEndpoint;
+
+    @SerializedName("token_endpoint")
+    private String tokenEndpoint;
+
+    @SerializedName("userinfo_endpoint")
+    private String userInfoEndpoint;
+
+    @SerializedName("jwks_uri")
+    private String jwksUri;
+
+    @SerializedName("revocation_endpoint")
+    private String revocationEndpoint;
+
+    @SerializedName("end_session_endpoint")
+    private String endSessionEndpoint;
+
+    @SerializedName("id_token_signing_alg_values_supported")
+    private List<String> idTokenSigningAlgValuesSupported;
+
+    public String getIssuer() {
+        return issuer;
+    }
+
+    public String getAuthorizationEndpoint() {
+        return authorizationEndpoint;
+    }
+
+    public String getTokenEndpoint() {
+        return tokenEndpoint;
+    }
+
+    public String getUserInfoEndpoint() {
+        return userInfoEndpoint;
+    }
+
+    public String getJwksUri() {
+        return jwksUri;
+    }
+
+    public String getRevocationEndpoint() {
+        return revocationEndpoint;
+    }
+
+    public String getEndSessionEndpoint() {
+        return endSessionEndpoint;
+    }
+
+    public List<String> getIdTokenSigningAlgValuesSupported() {
+        return idTokenSigningAlgValuesSupported;
+    }
+}
@@ -0,0 +1,35 @@
+package com.lnikkila.oidc.http;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal reading of the Cache-Control response header, used to know how long provider documents
+ * (discovery document, JWKS) can be kept without asking the provider again.
+ */
+public final class CacheControl {
+
+    private static final Pattern MAX_AGE_PATTERN = Pattern.compile("max-age\\s*=\\s*(\\d+)");
+
+    private CacheControl() {
+    }
+
+    /**
+     * Gets how long a response can be cached.
+     * @param cacheControl the Cache-Control header value, may be null
+     * @param defaultMaxAgeMillis the value to use when the header has no max-age directive
+     * @return the max age in milliseconds, 0 if the response must not be cached
+     */
+    public static long getMaxAgeMillis(String cacheControl, long defaultMaxAgeMillis) {
+        if (cacheControl != null) {
+            if (cacheControl.contains("no-cache") || cacheControl.contains("no-store")) {
+                return 0;
+            }
+            Matcher matcher = MAX_AGE_PATTERN.matcher(cacheControl);
+            if (matcher.find()) {
+                return Long.parseLong(matcher.group(1)) * 1000;
+            }
+        }
+        return defaultMaxAgeMillis;
+    }
+}
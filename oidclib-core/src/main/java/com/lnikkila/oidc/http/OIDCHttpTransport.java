@@ -0,0 +1,267 @@
+package com.lnikkila.oidc.http;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.ConnectionFactory;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.lnikkila.oidc.userinfo.UserInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Process-wide HTTP layer shared by every request made by the library (token, userinfo and
+ * revocation endpoints).
+ * <br/>
+ * A single {@link HttpTransport} and a single {@link SSLSocketFactory} are used for all the
+ * requests, so the underlying {@link HttpURLConnection} keep-alive pool and the TLS session cache
+ * are shared instead of paying a TCP+TLS handshake on every token round trip.
+ * <br/>
+ * The pool itself belongs to the platform {@link HttpURLConnection} and is sized by the app, not
+ * by the library: it keeps up to 5 idle connections per host by default (the
+ * {@code http.maxConnections} system property, read once when the pool is created).
+ */
+public final class OIDCHttpTransport {
+
+    //region Constants
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS  = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MS     = 20 * 1000;
+
+    //endregion
+
+    private static volatile OIDCHttpTransport defaultInstance;
+
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    private final HttpTransport httpTransport;
+    private final JsonFactory jsonFactory;
+    private final Gson gson;
+    private final HttpRequestInitializer requestInitializer;
+    private final HttpRequestFactory requestFactory;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong secureRequestCount = new AtomicLong();
+    private final AtomicLong newConnectionCount = new AtomicLong();
+
+    private OIDCHttpTransport(Builder builder) {
+        this.connectTimeout = builder.connectTimeout;
+        this.readTimeout = builder.readTimeout;
+
+        SSLSocketFactory sslSocketFactory = builder.sslSocketFactory != null
+                ? builder.sslSocketFactory : HttpsURLConnection.getDefaultSSLSocketFactory();
+        final SSLSocketFactory countingSocketFactory = new CountingSSLSocketFactory(sslSocketFactory, newConnectionCount);
+        final boolean keepAlive = builder.keepAlive;
+
+        this.httpTransport = new NetHttpTransport.Builder()
+                .setConnectionFactory(new ConnectionFactory() {
+                    @Override
+                    public HttpURLConnection openConnection(URL url) throws IOException, ClassCastException {
+                        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                        if (!keepAlive) {
+                            // Only for the library connections, the pool is left as is
+                            connection.setRequestProperty("Connection", "close");
+                        }
+                        if (connection instanceof HttpsURLConnection) {
+                            // Always handing out the same factory instance keeps pooled sockets
+                            // reusable and lets the TLS session cache resume sessions.
+                            ((HttpsURLConnection) connection).setSSLSocketFactory(countingSocketFactory);
+                            secureRequestCount.incrementAndGet();
+                        }
+                        requestCount.incrementAndGet();
+                        return connection;
+                    }
+                })
+                .build();
+        this.jsonFactory = GsonFactory.getDefaultInstance();
+        // Shared and thread-safe, with the streaming adapters of the OIDC types
+        this.gson = new GsonBuilder()
+                .registerTypeAdapter(UserInfo.class, new UserInfo.Adapter())
+                .create();
+        this.requestInitializer = new HttpRequestInitializer() {
+            @Override
+            public void initialize(HttpRequest request) throws IOException {
+                request.setConnectTimeout(connectTimeout);
+                request.setReadTimeout(readTimeout);
+            }
+        };
+        this.requestFactory = this.httpTransport.createRequestFactory(this.requestInitializer);
+    }
+
+    /**
+     * Gets the process-wide transport, creating it with the default settings if needed.
+     * @return the shared transport
+     */
+    public static OIDCHttpTransport getDefault() {
+        OIDCHttpTransport instance = defaultInstance;
+        if (instance == null) {
+            synchronized (OIDCHttpTransport.class) {
+                instance = defaultInstance;
+                if (instance == null) {
+                    instance = new Builder().build();
+                    defaultInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Replaces the process-wide transport. Should be called once, before any request manager is
+     * created (i.e. on Application#onCreate).
+     * @param transport the transport to share
+     */
+    public static void setDefault(OIDCHttpTransport transport) {
+        synchronized (OIDCHttpTransport.class) {
+            defaultInstance = transport;
+        }
+    }
+
+    //region Getters
+
+    public HttpTransport getHttpTransport() {
+        return httpTransport;
+    }
+
+    public JsonFactory getJsonFactory() {
+        return jsonFactory;
+    }
+
+    public Gson getGson() {
+        return gson;
+    }
+
+    /**
+     * @return a request factory whose requests use this transport configured timeouts.
+     */
+    public HttpRequestFactory getRequestFactory() {
+        return requestFactory;
+    }
+
+    /**
+     * @return an initializer applying this transport configured timeouts, to be set on the
+     * google-oauth-client token requests.
+     */
+    public HttpRequestInitializer getRequestInitializer() {
+        return requestInitializer;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    //endregion
+
+    /**
+     * Deserializes a JSON response while it is being read, without buffering the body as a String.
+     * The response isn't disconnected.
+     * @param response the response to read
+     * @param typeOfT the type to deserialize the response into
+     * @return the deserialized response, null for an empty body
+     * @throws IOException when the body can't be read or isn't valid JSON
+     */
+    public <T> T parseJson(HttpResponse response, Type typeOfT) throws IOException {
+        InputStream content = response.getContent();
+        if (content == null) {
+            return null;
+        }
+        Reader reader = new InputStreamReader(content, response.getContentCharset());
+        try {
+            return gson.fromJson(reader, typeOfT);
+        } catch (JsonParseException e) {
+            throw new IOException("Invalid JSON response", e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    //region Connection counters
+
+    /**
+     * @return the number of HTTP requests that went through this transport.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return the number of new TLS connections (TCP + handshake) opened by this transport.
+     */
+    public long getNewConnectionCount() {
+        return newConnectionCount.get();
+    }
+
+    /**
+     * @return the number of HTTPS requests served by an already opened pooled connection.
+     */
+    public long getReusedConnectionCount() {
+        return Math.max(0, secureRequestCount.get() - newConnectionCount.get());
+    }
+
+    //endregion
+
+    /**
+     * Builder for {@link OIDCHttpTransport}.
+     */
+    public static class Builder {
+        private int connectTimeout = DEFAULT_CONNECT_TIMEOUT_MS;
+        private int readTimeout = DEFAULT_READ_TIMEOUT_MS;
+        private boolean keepAlive = true;
+        private SSLSocketFactory sslSocketFactory;
+
+        public Builder setConnectTimeout(long timeout, TimeUnit unit) {
+            this.connectTimeout = (int) unit.toMillis(timeout);
+            return this;
+        }
+
+        public Builder setReadTimeout(long timeout, TimeUnit unit) {
+            this.readTimeout = (int) unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Sets whether the library connections go back to the pool after a request. Defaults to
+         * true.
+         */
+        public Builder setKeepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        /**
+         * Sets the socket factory used for HTTPS connections (i.e. for certificate pinning).
+         * Defaults to {@link HttpsURLConnection#getDefaultSSLSocketFactory()}.
+         */
+        public Builder setSslSocketFactory(SSLSocketFactory sslSocketFactory) {
+            this.sslSocketFactory = sslSocketFactory;
+            return this;
+        }
+
+        public OIDCHttpTransport build() {
+            return new OIDCHttpTransport(this);
+        }
+    }
+}
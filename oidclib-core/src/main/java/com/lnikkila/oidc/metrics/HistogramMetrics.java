@@ -0,0 +1,224 @@
+package com.lnikkila.oidc.metrics;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps a latency histogram and failure counts by type per operation, and a count per event, in
+ * memory. Recording is lock-free and doesn't allocate once an operation has been seen.
+ * <br/>
+ * {@link #dump()} gives a readable report (i.e. for logcat or a debug screen), {@link #getHistograms()}
+ * and {@link #getCounters()} the raw values to export.
+ */
+public class HistogramMetrics implements OIDCMetrics {
+
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    @Override
+    public void recordDuration(String operation, long durationNanos, Throwable failure) {
+        Histogram histogram = histograms.get(operation);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram();
+            histogram = histograms.putIfAbsent(operation, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        histogram.record(durationNanos, failure);
+    }
+
+    @Override
+    public void increment(String event) {
+        getCounter(counters, event).incrementAndGet();
+    }
+
+    /**
+     * @return the histogram of every operation recorded so far, by operation name
+     */
+    public Map<String, Histogram> getHistograms() {
+        return Collections.unmodifiableMap(new TreeMap<>(histograms));
+    }
+
+    /**
+     * @return the count of every event counted so far, by event name
+     */
+    public Map<String, Long> getCounters() {
+        return snapshot(counters);
+    }
+
+    public long getCount(String event) {
+        AtomicLong counter = counters.get(event);
+        return counter != null ? counter.get() : 0;
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public void reset() {
+        histograms.clear();
+        counters.clear();
+    }
+
+    /**
+     * @return a table of the operations (count, failures, p50/p90/p99/max latency, failure types)
+     * followed by the event counts
+     */
+    public String dump() {
+        StringBuilder dump = new StringBuilder(String.format(Locale.US, "%1$-36s %2$8s %3$8s %4$10s %5$10s %6$10s %7$10s%n",
+                "operation", "count", "failures", "p50 (ms)", "p90 (ms)", "p99 (ms)", "max (ms)"));
+        for (Map.Entry<String, Histogram> entry : getHistograms().entrySet()) {
+            Histogram histogram = entry.getValue();
+            dump.append(String.format(Locale.US, "%1$-36s %2$8d %3$8d %4$10.2f %5$10.2f %6$10.2f %7$10.2f",
+                    entry.getKey(), histogram.getCount(), histogram.getFailureCount(),
+                    toMillis(histogram.getPercentile(50)), toMillis(histogram.getPercentile(90)),
+                    toMillis(histogram.getPercentile(99)), toMillis(histogram.getMax())));
+            Map<String, Long> failures = histogram.getFailures();
+            if (!failures.isEmpty()) {
+                dump.append(' ').append(failures);
+            }
+            dump.append(String.format("%n"));
+        }
+        for (Map.Entry<String, Long> entry : getCounters().entrySet()) {
+            dump.append(String.format(Locale.US, "%1$-36s %2$8d%n", entry.getKey(), entry.getValue()));
+        }
+        return dump.toString();
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static AtomicLong getCounter(ConcurrentMap<String, AtomicLong> counters, String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    private static Map<String, Long> snapshot(ConcurrentMap<String, AtomicLong> counters) {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    /**
+     * The latencies of one operation, in log-linear buckets: every power of two is split in
+     * {@link #SUB_BUCKETS} buckets, so a percentile is at most 25% above the real value.
+     */
+    public static class Histogram {
+
+        //region Constants
+
+        private static final int SUB_BUCKET_BITS    = 2;
+        private static final int SUB_BUCKETS        = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS            = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        //endregion
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+        private final ConcurrentMap<String, AtomicLong> failures = new ConcurrentHashMap<>();
+
+        void record(long durationNanos, Throwable failure) {
+            long duration = Math.max(durationNanos, 0);
+            buckets.incrementAndGet(bucketOf(duration));
+            count.incrementAndGet();
+            sum.addAndGet(duration);
+            long currentMax;
+            while (duration > (currentMax = max.get()) && !max.compareAndSet(currentMax, duration)) {
+                // Lost the race, try again
+            }
+            if (failure != null) {
+                getCounter(failures, failure.getClass().getSimpleName()).incrementAndGet();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getFailureCount() {
+            long failureCount = 0;
+            for (AtomicLong counter : failures.values()) {
+                failureCount += counter.get();
+            }
+            return failureCount;
+        }
+
+        /**
+         * @return the number of failures by exception simple class name
+         */
+        public Map<String, Long> getFailures() {
+            return snapshot(failures);
+        }
+
+        public long getMean() {
+            long currentCount = count.get();
+            return currentCount > 0 ? sum.get() / currentCount : 0;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound of the bucket holding the given percentile, in nanoseconds
+         */
+        public long getPercentile(double percentile) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max((long) Math.ceil(percentile / 100 * total), 1);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long upperBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lowerBound + (1L << shift) - 1;
+        }
+    }
+}
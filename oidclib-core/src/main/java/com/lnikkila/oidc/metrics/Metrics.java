@@ -0,0 +1,138 @@
+package com.lnikkila.oidc.metrics;
+
+/**
+ * The process-wide {@link OIDCMetrics} the library reports into, doing nothing until one is set.
+ * <br/>
+ * Operations are timed with:
+ * <pre>
+ * Metrics.Timer timer = Metrics.startTimer(Metrics.TOKEN_REFRESH);
+ * try {
+ *     ...
+ * } catch (IOException | RuntimeException e) {
+ *     timer.fail(e);
+ *     throw e;
+ * } finally {
+ *     timer.stop();
+ * }
+ * </pre>
+ * which doesn't even read the clock while no metrics are set.
+ */
+public final class Metrics {
+
+    //region Constants
+
+    // Operations, timed
+    public static final String TOKEN_CODE_GRANT             = "token.code_grant";
+    public static final String TOKEN_PASSWORD_GRANT         = "token.password_grant";
+    public static final String TOKEN_REFRESH                = "token.refresh";
+    public static final String ID_TOKEN_VALIDATION          = "id_token.validation";
+    public static final String USERINFO_REQUEST             = "userinfo.request";
+    public static final String TOKEN_REVOCATION             = "token.revocation";
+    public static final String ACCOUNT_GET_TOKEN            = "account.get_token";
+    public static final String ACCOUNT_GET_TOKENS           = "account.get_tokens";
+    public static final String ACCOUNT_SAVE_TOKENS          = "account.save_tokens";
+    public static final String ACCOUNT_MANAGER_GET_AUTH_TOKEN = "account_manager.get_auth_token";
+    public static final String ACCOUNT_MANAGER_PEEK_AUTH_TOKEN = "account_manager.peek_auth_token";
+    public static final String ACCOUNT_MANAGER_SET_AUTH_TOKEN = "account_manager.set_auth_token";
+    public static final String AUTHENTICATOR_GET_AUTH_TOKEN = "authenticator.get_auth_token";
+    public static final String AUTHENTICATOR_REFRESH        = "authenticator.refresh";
+    public static final String STORAGE_ENCRYPT              = "storage.encrypt";
+    public static final String STORAGE_DECRYPT              = "storage.decrypt";
+
+    // Events, counted
+    public static final String TOKEN_CACHE_HIT              = "token_cache.hit";
+    public static final String TOKEN_CACHE_MISS             = "token_cache.miss";
+    public static final String USERINFO_CACHE_HIT           = "userinfo_cache.hit";
+    public static final String USERINFO_CACHE_REVALIDATED   = "userinfo_cache.revalidated";
+    public static final String USERINFO_CACHE_MISS          = "userinfo_cache.miss";
+    public static final String REFRESH_DEDUPLICATED         = "refresh.deduplicated";
+    public static final String REAUTHORIZATION_REQUIRED     = "authenticator.reauthorization_required";
+    public static final String LEGACY_RECORD_MIGRATED       = "storage.legacy_record_migrated";
+
+    /**
+     * The start time of the timers returned while no metrics are set.
+     */
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+
+    //endregion
+
+    /**
+     * The default, does nothing.
+     */
+    public static final OIDCMetrics NO_OP = new OIDCMetrics() {
+        @Override
+        public void recordDuration(String operation, long durationNanos, Throwable failure) {
+        }
+
+        @Override
+        public void increment(String event) {
+        }
+    };
+
+    private static volatile OIDCMetrics instance = NO_OP;
+
+    private Metrics() {
+    }
+
+    public static OIDCMetrics get() {
+        return instance;
+    }
+
+    /**
+     * Replaces the process-wide metrics, i.e. on Application#onCreate.
+     * @param metrics the metrics to report into, null to stop reporting
+     */
+    public static void set(OIDCMetrics metrics) {
+        instance = metrics != null ? metrics : NO_OP;
+    }
+
+    /**
+     * Starts timing an operation.
+     * @param operation one of the operation constants
+     * @return the timer to stop once the operation is over, shared while no metrics are set
+     */
+    public static Timer startTimer(String operation) {
+        return instance != NO_OP ? new Timer(operation, System.nanoTime()) : Timer.NOT_STARTED;
+    }
+
+    public static void increment(String event) {
+        instance.increment(event);
+    }
+
+    /**
+     * Times an operation started with {@link #startTimer(String)}.
+     */
+    public static final class Timer {
+
+        static final Timer NOT_STARTED = new Timer(null, Metrics.NOT_STARTED);
+
+        private final String operation;
+        private final long start;
+        private Throwable failure;
+
+        Timer(String operation, long start) {
+            this.operation = operation;
+            this.start = start;
+        }
+
+        /**
+         * Marks the operation as failed.
+         * @param failure what made it fail
+         */
+        public void fail(Throwable failure) {
+            if (start != Metrics.NOT_STARTED) {
+                this.failure = failure;
+            }
+        }
+
+        /**
+         * Records the operation, as failed if {@link #fail(Throwable)} was called. Call it from a
+         * finally block.
+         */
+        public void stop() {
+            if (start != Metrics.NOT_STARTED) {
+                instance.recordDuration(operation, System.nanoTime() - start, failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.lnikkila.oidc.metrics;
+
+/**
+ * Receives the timings and counts of the library operations: token requests, ID Token validation,
+ * AccountManager requests, token encryption, cache hits, refreshes...
+ * <br/>
+ * Install an implementation with {@link Metrics#set(OIDCMetrics)}, i.e. {@link HistogramMetrics}.
+ * Implementations are called concurrently from the library threads and must be thread-safe and
+ * cheap, they are on the path of every token read.
+ *
+ * @see Metrics for the operation and event names
+ */
+public interface OIDCMetrics {
+
+    /**
+     * Records a finished operation.
+     * @param operation the operation name, i.e. {@link Metrics#TOKEN_REFRESH}
+     * @param durationNanos how long it took, in nanoseconds
+     * @param failure what made it fail, null when it succeeded
+     */
+    void recordDuration(String operation, long durationNanos, Throwable failure);
+
+    /**
+     * Counts an event.
+     * @param event the event name, i.e. {@link Metrics#TOKEN_CACHE_HIT}
+     */
+    void increment(String event);
+}
@@ -0,0 +1,25 @@
+package com.lnikkila.oidc.platform;
+
+/**
+ * Base64 encoding, provided by the platform ({@code android.util.Base64} on Android).
+ */
+public interface Base64Codec {
+
+    /**
+     * Encodes to Base64.
+     * @param input the bytes to encode
+     * @param urlSafe true for the URL and filename safe alphabet without padding nor line breaks
+     *                (i.e. JWT segments, at_hash), false for the default alphabet
+     * @return the encoded string
+     */
+    String encodeToString(byte[] input, boolean urlSafe);
+
+    /**
+     * Decodes Base64, ignoring line breaks.
+     * @param input the string to decode
+     * @param urlSafe true for the URL and filename safe alphabet, false for the default alphabet
+     * @return the decoded bytes
+     * @throws IllegalArgumentException when the input isn't valid Base64
+     */
+    byte[] decode(String input, boolean urlSafe);
+}
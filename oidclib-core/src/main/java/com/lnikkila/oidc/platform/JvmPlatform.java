@@ -0,0 +1,62 @@
+package com.lnikkila.oidc.platform;
+
+import com.google.api.client.util.Base64;
+
+import java.util.logging.Level;
+
+/**
+ * The platform of a plain JVM: logs through java.util.logging and encodes Base64 with the codec
+ * of google-http-client.
+ */
+public class JvmPlatform extends Platform {
+
+    private final Logger logger = new Logger() {
+        @Override
+        public boolean isLoggable(String tag, int level) {
+            return java.util.logging.Logger.getLogger(tag).isLoggable(toJulLevel(level));
+        }
+
+        @Override
+        public void log(int level, String tag, String message, Throwable throwable) {
+            java.util.logging.Logger.getLogger(tag).log(toJulLevel(level), message, throwable);
+        }
+    };
+
+    private final Base64Codec base64Codec = new Base64Codec() {
+        @Override
+        public String encodeToString(byte[] input, boolean urlSafe) {
+            return urlSafe ? Base64.encodeBase64URLSafeString(input) : Base64.encodeBase64String(input);
+        }
+
+        @Override
+        public byte[] decode(String input, boolean urlSafe) {
+            // Decodes both alphabets, ignoring line breaks
+            return Base64.decodeBase64(input);
+        }
+    };
+
+    @Override
+    public Logger getLogger() {
+        return logger;
+    }
+
+    @Override
+    public Base64Codec getBase64Codec() {
+        return base64Codec;
+    }
+
+    private static Level toJulLevel(int level) {
+        switch (level) {
+            case Logger.VERBOSE:
+                return Level.FINEST;
+            case Logger.DEBUG:
+                return Level.FINE;
+            case Logger.INFO:
+                return Level.INFO;
+            case Logger.WARN:
+                return Level.WARNING;
+            default:
+                return Level.SEVERE;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.lnikkila.oidc.platform;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * The log of the library, with the same methods as {@code android.util.Log} so it reads like the
+ * rest of the code. Messages go to the {@link Logger} of the current {@link Platform}.
+ * <br/>
+ * Messages under the level set with {@link #setLevel(int)} (INFO by default) are dropped before
+ * anything is formatted, unless the platform logs them for their tag (i.e.
+ * {@code adb shell setprop log.tag.<tag> DEBUG}): use the format or {@link Message} variants
+ * rather than building the string at the call site, i.e.
+ * <pre>
+ * Log.d(TAG, "Refresh of account %1$s scheduled in %2$d s", account.name, delay);
+ * </pre>
+ * Tokens are never written as is: JWTs, bearer credentials and the token, code, secret and password
+ * parameters are redacted from every message, and other secrets can be passed through
+ * {@link #redact(String)}.
+ */
+public final class Log {
+
+    //region Constants
+
+    private static final String REDACTED = "[redacted]";
+
+    private static final Pattern JWT = Pattern.compile("eyJ[\\w-]*\\.[\\w-]*\\.[\\w-]*");
+    private static final Pattern BEARER = Pattern.compile("(?i)(bearer\\s+)[^\\s,\"']+");
+    private static final Pattern SECRET_PARAMETER = Pattern.compile(
+            "(?i)\\b(access_token|refresh_token|id_token|code|client_secret|password)(\"?\\s*[=:]\\s*\"?)[^&\\s,;\"}]+");
+
+    //endregion
+
+    /**
+     * Builds a message only when it is logged, for messages costlier than a format.
+     */
+    public interface Message {
+        String get();
+    }
+
+    private static volatile int level = Logger.INFO;
+
+    private Log() {
+    }
+
+    /**
+     * Sets the lowest level written, i.e. {@link Logger#DEBUG} in debug builds.
+     * @param level one of the {@link Logger} level constants
+     */
+    public static void setLevel(int level) {
+        Log.level = level;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    public static void d(String tag, String message) {
+        log(Logger.DEBUG, tag, message, null);
+    }
+
+    public static void d(String tag, String message, Throwable throwable) {
+        log(Logger.DEBUG, tag, message, throwable);
+    }
+
+    public static void d(String tag, String format, Object... args) {
+        if (isLoggable(tag, Logger.DEBUG)) {
+            write(Logger.DEBUG, tag, format(format, args), null);
+        }
+    }
+
+    public static void d(String tag, Message message) {
+        if (isLoggable(tag, Logger.DEBUG)) {
+            write(Logger.DEBUG, tag, message.get(), null);
+        }
+    }
+
+    public static void i(String tag, String message) {
+        log(Logger.INFO, tag, message, null);
+    }
+
+    public static void i(String tag, String message, Throwable throwable) {
+        log(Logger.INFO, tag, message, throwable);
+    }
+
+    public static void i(String tag, String format, Object... args) {
+        if (isLoggable(tag, Logger.INFO)) {
+            write(Logger.INFO, tag, format(format, args), null);
+        }
+    }
+
+    public static void w(String tag, String message) {
+        log(Logger.WARN, tag, message, null);
+    }
+
+    public static void w(String tag, String message, Throwable throwable) {
+        log(Logger.WARN, tag, message, throwable);
+    }
+
+    public static void w(String tag, String format, Object... args) {
+        if (isLoggable(tag, Logger.WARN)) {
+            write(Logger.WARN, tag, format(format, args), null);
+        }
+    }
+
+    public static void w(String tag, Throwable throwable, String format, Object... args) {
+        if (isLoggable(tag, Logger.WARN)) {
+            write(Logger.WARN, tag, format(format, args), throwable);
+        }
+    }
+
+    public static void e(String tag, String message) {
+        log(Logger.ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable throwable) {
+        log(Logger.ERROR, tag, message, throwable);
+    }
+
+    public static void e(String tag, String format, Object... args) {
+        if (isLoggable(tag, Logger.ERROR)) {
+            write(Logger.ERROR, tag, format(format, args), null);
+        }
+    }
+
+    public static void e(String tag, Throwable throwable, String format, Object... args) {
+        if (isLoggable(tag, Logger.ERROR)) {
+            write(Logger.ERROR, tag, format(format, args), throwable);
+        }
+    }
+
+    public static void wtf(String tag, String message) {
+        log(Logger.ASSERT, tag, message, null);
+    }
+
+    /**
+     * @return whether messages of the given level are written for the given tag, check it before
+     * building a costly message that none of the other methods can defer
+     */
+    public static boolean isLoggable(String tag, int level) {
+        return level >= Log.level || Platform.get().getLogger().isLoggable(tag, level);
+    }
+
+    /**
+     * @param secret a token or any other value that must not be logged
+     * @return an argument for the format variants, written as a placeholder telling only whether
+     * the secret was set and its length, and only when the message is logged
+     */
+    public static Object redact(final String secret) {
+        return new Object() {
+            @Override
+            public String toString() {
+                return secret != null ? "[redacted, " + secret.length() + " chars]" : "null";
+            }
+        };
+    }
+
+    private static String format(String format, Object... args) {
+        return String.format(Locale.US, format, args);
+    }
+
+    private static void log(int level, String tag, String message, Throwable throwable) {
+        if (isLoggable(tag, level)) {
+            write(level, tag, message, throwable);
+        }
+    }
+
+    private static void write(int level, String tag, String message, Throwable throwable) {
+        Platform.get().getLogger().log(level, tag, redactTokens(message), throwable);
+    }
+
+    static String redactTokens(String message) {
+        if (message == null) {
+            return null;
+        }
+        message = JWT.matcher(message).replaceAll(REDACTED);
+        message = BEARER.matcher(message).replaceAll("$1" + REDACTED);
+        return SECRET_PARAMETER.matcher(message).replaceAll("$1$2" + REDACTED);
+    }
+}
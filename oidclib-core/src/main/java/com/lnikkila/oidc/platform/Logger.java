@@ -0,0 +1,30 @@
+package com.lnikkila.oidc.platform;
+
+/**
+ * Writes the library log messages to the platform log (logcat on Android, java.util.logging on a
+ * plain JVM). The levels are the ones of {@code android.util.Log}.
+ *
+ * @see Log
+ */
+public interface Logger {
+
+    int VERBOSE = 2;
+    int DEBUG   = 3;
+    int INFO    = 4;
+    int WARN    = 5;
+    int ERROR   = 6;
+    int ASSERT  = 7;
+
+    /**
+     * @return whether messages of the given level are written for the given tag
+     */
+    boolean isLoggable(String tag, int level);
+
+    /**
+     * @param level one of the level constants
+     * @param tag identifies the source of the message
+     * @param message the message
+     * @param throwable an exception to log along with the message, may be null
+     */
+    void log(int level, String tag, String message, Throwable throwable);
+}
@@ -0,0 +1,49 @@
+package com.lnikkila.oidc.platform;
+
+/**
+ * The services the core of the library needs from the platform it runs on.
+ * <br/>
+ * On Android the {@code oidclib} module provides {@code com.lnikkila.oidc.platform.AndroidPlatform},
+ * which is picked up automatically. Anywhere else (i.e. benchmarks or load tests on a plain JVM)
+ * {@link JvmPlatform} is used, unless another platform is installed with {@link #set(Platform)}.
+ */
+public abstract class Platform {
+
+    //region Constants
+
+    private static final String ANDROID_PLATFORM = "com.lnikkila.oidc.platform.AndroidPlatform";
+
+    //endregion
+
+    private static volatile Platform instance = findPlatform();
+
+    /**
+     * @return the platform the library runs on
+     */
+    public static Platform get() {
+        return instance;
+    }
+
+    /**
+     * Replaces the platform, before the library is used.
+     * @param platform the platform to use, or null to go back to the detected one
+     */
+    public static void set(Platform platform) {
+        instance = platform != null ? platform : findPlatform();
+    }
+
+    private static Platform findPlatform() {
+        try {
+            return (Platform) Class.forName(ANDROID_PLATFORM).newInstance();
+        } catch (ClassNotFoundException e) {
+            // Not on Android
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new IllegalStateException("Could not create the Android platform", e);
+        }
+        return new JvmPlatform();
+    }
+
+    public abstract Logger getLogger();
+
+    public abstract Base64Codec getBase64Codec();
+}
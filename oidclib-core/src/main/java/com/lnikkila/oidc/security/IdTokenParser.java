@@ -0,0 +1,108 @@
+package com.lnikkila.oidc.security;
+
+import com.google.api.client.auth.openidconnect.IdToken;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parses ID Tokens, keeping the recently parsed ones keyed by their compact serialization.
+ * <br/>
+ * A token response is validated, checked against its at_hash, used to name the account and to
+ * compute the token expiration; with this parser all of these share a single parse. The parsed
+ * tokens must be treated as read-only.
+ */
+public class IdTokenParser {
+
+    //region Constants
+
+    public static final int DEFAULT_MAX_ENTRIES = 8;
+
+    //endregion
+
+    private static volatile IdTokenParser instance;
+
+    private final JsonFactory jsonFactory;
+    private final Map<String, IdToken> parsedTokens;
+
+    private final AtomicLong parseCount = new AtomicLong();
+
+    public IdTokenParser(JsonFactory jsonFactory, int maxEntries) {
+        this.jsonFactory = jsonFactory;
+        this.parsedTokens = new LruMap<>(maxEntries);
+    }
+
+    /**
+     * @return the process-wide parser
+     */
+    public static IdTokenParser getInstance() {
+        IdTokenParser parser = instance;
+        if (parser == null) {
+            synchronized (IdTokenParser.class) {
+                parser = instance;
+                if (parser == null) {
+                    parser = new IdTokenParser(GsonFactory.getDefaultInstance(), DEFAULT_MAX_ENTRIES);
+                    instance = parser;
+                }
+            }
+        }
+        return parser;
+    }
+
+    /**
+     * Parses an ID Token, or returns the already parsed instance of the same token.
+     * @param idTokenString the compact serialization of the ID Token
+     * @return the parsed token
+     * @throws IOException when the token can not be parsed
+     * @throws IllegalArgumentException when the token is not a JWS compact serialization
+     */
+    public IdToken parse(String idTokenString) throws IOException {
+        IdToken idToken;
+        synchronized (parsedTokens) {
+            idToken = parsedTokens.get(idTokenString);
+        }
+        if (idToken == null) {
+            idToken = IdToken.parse(jsonFactory, idTokenString);
+            parseCount.incrementAndGet();
+            synchronized (parsedTokens) {
+                parsedTokens.put(idTokenString, idToken);
+            }
+        }
+        return idToken;
+    }
+
+    /**
+     * @return the number of tokens actually parsed (cache misses).
+     */
+    public long getParseCount() {
+        return parseCount.get();
+    }
+
+    public void clear() {
+        synchronized (parsedTokens) {
+            parsedTokens.clear();
+        }
+    }
+
+    /**
+     * Keeps the most recently used entries only, evicting the least recently used one when full.
+     */
+    private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+        private final int maxEntries;
+
+        LruMap(int maxEntries) {
+            super(maxEntries, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxEntries;
+        }
+    }
+}
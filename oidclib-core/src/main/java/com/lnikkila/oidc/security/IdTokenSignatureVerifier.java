@@ -0,0 +1,206 @@
+package com.lnikkila.oidc.security;
+
+import com.google.api.client.auth.openidconnect.IdToken;
+import com.lnikkila.oidc.platform.Log;
+import com.lnikkila.oidc.util.Strings;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Verifies the JWS signature of an ID Token.
+ * <br/>
+ * Only the algorithm the provider is known to sign with is accepted, whatever the token header
+ * says: otherwise a token signed with HS256 and the client secret (which can be extracted from any
+ * native app) would pass for a provider that signs with RS256. Asymmetric algorithms (RS256, ES256)
+ * are verified with the provider keys found in a {@link JwksKeyCache}, HS256 with the client
+ * secret. Unsigned tokens (alg none) and any other algorithm are rejected.
+ *
+ * @see <a href="http://openid.net/specs/openid-connect-core-1_0.html#IDTokenValidation">http://openid.net/specs/openid-connect-core-1_0.html#IDTokenValidation</a>
+ */
+public class IdTokenSignatureVerifier {
+
+    private final String TAG = getClass().getSimpleName();
+
+    //region Constants
+
+    public static final String ALG_RS256 = "RS256";
+    public static final String ALG_ES256 = "ES256";
+    public static final String ALG_HS256 = "HS256";
+
+    /**
+     * The algorithm ID Tokens are signed with when the client didn't register another one.
+     */
+    public static final String DEFAULT_ALGORITHM = ALG_RS256;
+
+    /**
+     * Length of an ES256 JWS signature: R and S, 32 bytes each.
+     */
+    private static final int ES256_SIGNATURE_LENGTH = 64;
+
+    //endregion
+
+    private final JwksKeyCache keyCache;
+    private final String clientSecret;
+    private final String algorithm;
+
+    /**
+     * @param keyCache the provider keys, may be null when the provider has no JWKS endpoint
+     * @param clientSecret the client secret, used as key for HMAC signatures, may be null
+     * @param algorithm the only algorithm accepted, one of RS256, ES256 or HS256
+     */
+    public IdTokenSignatureVerifier(JwksKeyCache keyCache, String clientSecret, String algorithm) {
+        this.keyCache = keyCache;
+        this.clientSecret = clientSecret;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Picks the algorithm to accept from the ones a provider advertises
+     * ({@code id_token_signing_alg_values_supported}), asymmetric ones first.
+     * @param supportedAlgorithms the advertised algorithms, may be null
+     * @return the algorithm to accept, {@link #DEFAULT_ALGORITHM} when none is supported
+     */
+    public static String selectAlgorithm(List<String> supportedAlgorithms) {
+        if (supportedAlgorithms != null) {
+            for (String candidate : new String[]{ALG_RS256, ALG_ES256, ALG_HS256}) {
+                if (supportedAlgorithms.contains(candidate)) {
+                    return candidate;
+                }
+            }
+        }
+        return DEFAULT_ALGORITHM;
+    }
+
+    /**
+     * @return whether the given algorithm is verified with the provider keys
+     */
+    public static boolean isAsymmetric(String algorithm) {
+        return ALG_RS256.equals(algorithm) || ALG_ES256.equals(algorithm);
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Verifies the signature of an ID Token.
+     * @param idToken the parsed ID Token
+     * @return true if the token is signed with the expected algorithm and the signature matches
+     * @throws IOException when the provider keys can not be fetched
+     */
+    public boolean verify(IdToken idToken) throws IOException {
+        String alg = idToken.getHeader().getAlgorithm();
+        if (alg == null || !alg.equals(algorithm)) {
+            Log.w(TAG, "Rejecting ID Token signed with %1$s, expecting %2$s", alg, algorithm);
+            return false;
+        }
+        byte[] signedContent = idToken.getSignedContentBytes();
+        byte[] signature = idToken.getSignatureBytes();
+
+        try {
+            switch (alg) {
+                case ALG_RS256:
+                    return verifyWithPublicKey("SHA256withRSA", idToken, signedContent, signature);
+                case ALG_ES256:
+                    // JWS carries the raw R || S pair, the JCA expects a DER sequence
+                    return verifyWithPublicKey("SHA256withECDSA", idToken, signedContent, transcodeConcatToDer(signature));
+                case ALG_HS256:
+                    return verifyWithClientSecret("HmacSHA256", signedContent, signature);
+                default:
+                    Log.w(TAG, "Rejecting ID Token signed with unsupported algorithm %1$s", alg);
+                    return false;
+            }
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Could not verify the ID Token signature", e);
+            return false;
+        }
+    }
+
+    private boolean verifyWithPublicKey(String algorithm, IdToken idToken, byte[] signedContent, byte[] signature)
+            throws IOException, GeneralSecurityException {
+        if (keyCache == null) {
+            Log.w(TAG, "No JWKS endpoint configured, can not verify asymmetric ID Token signatures");
+            return false;
+        }
+        String kid = idToken.getHeader().getKeyId();
+        PublicKey key = keyCache.getKey(kid);
+        if (key == null) {
+            Log.w(TAG, "No key %1$s published on %2$s", kid, keyCache.getJwksUri());
+            return false;
+        }
+        Signature verifier = Signature.getInstance(algorithm);
+        verifier.initVerify(key);
+        verifier.update(signedContent);
+        return verifier.verify(signature);
+    }
+
+    private boolean verifyWithClientSecret(String algorithm, byte[] signedContent, byte[] signature)
+            throws GeneralSecurityException {
+        if (Strings.isEmpty(clientSecret)) {
+            Log.w(TAG, "No client secret configured, can not verify HMAC ID Token signatures");
+            return false;
+        }
+        Mac mac = Mac.getInstance(algorithm);
+        mac.init(new SecretKeySpec(clientSecret.getBytes(Charset.forName("UTF-8")), algorithm));
+        return MessageDigest.isEqual(mac.doFinal(signedContent), signature);
+    }
+
+    /**
+     * Converts a JWS ES256 signature (R || S, each half zero-padded to the curve size) to the ASN.1
+     * DER encoding expected by {@link Signature}.
+     * @see <a href="https://tools.ietf.org/html/rfc7518#section-3.4">RFC 7518 3.4 ECDSA</a>
+     */
+    static byte[] transcodeConcatToDer(byte[] concat) throws GeneralSecurityException {
+        if (concat.length != ES256_SIGNATURE_LENGTH) {
+            throw new GeneralSecurityException("Invalid ECDSA signature length " + concat.length);
+        }
+        int half = concat.length / 2;
+        byte[] r = toDerInteger(Arrays.copyOfRange(concat, 0, half));
+        byte[] s = toDerInteger(Arrays.copyOfRange(concat, half, concat.length));
+
+        ByteArrayOutputStream der = new ByteArrayOutputStream();
+        der.write(0x30);
+        writeDerLength(der, r.length + s.length);
+        der.write(r, 0, r.length);
+        der.write(s, 0, s.length);
+        return der.toByteArray();
+    }
+
+    private static byte[] toDerInteger(byte[] value) {
+        int start = 0;
+        while (start < value.length - 1 && value[start] == 0) {
+            start++;
+        }
+        boolean padding = (value[start] & 0x80) != 0;
+        int length = value.length - start + (padding ? 1 : 0);
+
+        ByteArrayOutputStream der = new ByteArrayOutputStream();
+        der.write(0x02);
+        writeDerLength(der, length);
+        if (padding) {
+            der.write(0);
+        }
+        der.write(value, start, value.length - start);
+        return der.toByteArray();
+    }
+
+    private static void writeDerLength(ByteArrayOutputStream der, int length) {
+        if (length < 0x80) {
+            der.write(length);
+        } else {
+            der.write(0x81);
+            der.write(length);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.lnikkila.oidc.security;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+import static com.lnikkila.oidc.security.SensitiveDataCipher.CIPHER_ALGO;
+import static com.lnikkila.oidc.security.SensitiveDataCipher.GCM_IV_LENGTH;
+import static com.lnikkila.oidc.security.SensitiveDataCipher.GCM_TAG_LENGTH;
+
+/**
+ * The AES primitives of {@link SensitiveDataCipher} implemented with the JCE, for a key held by a
+ * provider (i.e. the AndroidKeyStore) or in memory.
+ */
+public final class JceCipher {
+
+    //region Constants
+
+    private static final String CIPHER_BLOCKS               = "GCM";
+    private static final String CIPHER_PADDING              = "NoPadding";
+
+    // Former format: AES-CBC, only used to read old records
+    private static final String LEGACY_CIPHER_BLOCKS        = "CBC";
+    private static final String LEGACY_CIPHER_PADDING       = "PKCS7Padding";
+
+    //endregion
+
+    /**
+     * Ciphers are stateful, each thread gets its own so concurrent operations don't share state.
+     */
+    private static final ThreadLocal<Cipher> ciphers = new CipherThreadLocal(CIPHER_BLOCKS, CIPHER_PADDING);
+    private static final ThreadLocal<Cipher> legacyCiphers = new CipherThreadLocal(LEGACY_CIPHER_BLOCKS, LEGACY_CIPHER_PADDING);
+
+    private JceCipher() {
+    }
+
+    /**
+     * Encrypts with AES-GCM, the provider picking a fresh random IV.
+     * @return the IV followed by the ciphertext and tag
+     * @throws java.security.InvalidKeyException when the key can't be used, i.e.
+     * {@code UserNotAuthenticatedException} for an AndroidKeyStore key requiring the user
+     * authentication
+     * @see SensitiveDataCipher#seal(byte[], byte[])
+     */
+    public static byte[] seal(SecretKey key, byte[] header, byte[] data) throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        cipher.updateAAD(header);
+
+        byte[] iv = cipher.getIV();
+        byte[] sealed = new byte[iv.length + cipher.getOutputSize(data.length)];
+        System.arraycopy(iv, 0, sealed, 0, iv.length);
+        int length = cipher.doFinal(data, 0, data.length, sealed, iv.length);
+        return iv.length + length == sealed.length ? sealed : Arrays.copyOf(sealed, iv.length + length);
+    }
+
+    /**
+     * Decrypts and authenticates what {@link #seal(SecretKey, byte[], byte[])} returned.
+     * @see SensitiveDataCipher#open(byte[], byte[], int)
+     */
+    public static byte[] open(SecretKey key, byte[] header, byte[] data, int offset) throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, data, offset, GCM_IV_LENGTH));
+        cipher.updateAAD(header);
+        return cipher.doFinal(data, offset + GCM_IV_LENGTH, data.length - offset - GCM_IV_LENGTH);
+    }
+
+    /**
+     * Decrypts AES-CBC data with PKCS#7 padding, the former record format.
+     */
+    public static byte[] decryptCbc(SecretKey key, byte[] iv, byte[] data) throws GeneralSecurityException {
+        Cipher cipher = legacyCiphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+        return cipher.doFinal(data);
+    }
+
+    private static class CipherThreadLocal extends ThreadLocal<Cipher> {
+        private final String transformation;
+
+        CipherThreadLocal(String blockMode, String padding) {
+            this.transformation = String.format("%1$s/%2$s/%3$s", CIPHER_ALGO, blockMode, padding);
+        }
+
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(transformation);
+            } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
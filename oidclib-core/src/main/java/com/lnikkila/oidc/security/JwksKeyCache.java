@@ -0,0 +1,233 @@
+package com.lnikkila.oidc.security;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.util.Base64;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.lnikkila.oidc.http.CacheControl;
+import com.lnikkila.oidc.http.OIDCHttpTransport;
+import com.lnikkila.oidc.platform.Log;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EllipticCurve;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Local cache of the public keys published by the OpenID Provider on its JWKS endpoint, indexed by
+ * key id (kid).
+ * <br/>
+ * The key set is kept as long as the JWKS response Cache-Control allows, but at least
+ * {@link #MIN_MAX_AGE_MS}, so verifying an ID Token signature costs no network round trip in the
+ * steady state. An expired key set, or a token signed with an unknown kid (i.e. after a key
+ * rotation), triggers a refetch, at most once every {@link #MIN_REFETCH_INTERVAL_MS}. When the
+ * refetch fails the expired keys are still served.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7517">RFC 7517 JSON Web Key (JWK)</a>
+ */
+public class JwksKeyCache {
+
+    private static final String TAG = JwksKeyCache.class.getSimpleName();
+
+    //region Constants
+
+    /**
+     * How long the key set is kept when the JWKS response has no max-age directive.
+     */
+    public static final long DEFAULT_MAX_AGE_MS         = 60 * 60 * 1000;
+    /**
+     * Lower bound of the key set lifetime, a no-cache response would otherwise be fetched again for
+     * every ID Token.
+     */
+    public static final long MIN_MAX_AGE_MS             = 5 * 60 * 1000;
+    public static final long MIN_REFETCH_INTERVAL_MS    = 60 * 1000;
+
+    /**
+     * NIST P-256 (secp256r1) domain parameters, used to rebuild EC keys from their coordinates.
+     */
+    private static final ECParameterSpec P256 = new ECParameterSpec(
+            new EllipticCurve(
+                    new ECFieldFp(new BigInteger("ffffffff00000001000000000000000000000000ffffffffffffffffffffffff", 16)),
+                    new BigInteger("ffffffff00000001000000000000000000000000fffffffffffffffffffffffc", 16),
+                    new BigInteger("5ac635d8aa3a93e7b3ebbd55769886bc651d06b0cc53b0f63bce3c3e27d2604b", 16)),
+            new ECPoint(
+                    new BigInteger("6b17d1f2e12c4247f8bce6e563a440f277037d812deb33a0f4a13945d898c296", 16),
+                    new BigInteger("4fe342e2fe1a7f9b8ee7eb4a7c0f9e162bce33576b315ececbb6406837bf51f5", 16)),
+            new BigInteger("ffffffff00000000ffffffffffffffffbce6faada7179e84f3b9cac2fc632551", 16),
+            1);
+
+    //endregion
+
+    private static final ConcurrentMap<String, JwksKeyCache> instances = new ConcurrentHashMap<>();
+
+    private final String jwksUri;
+    private final OIDCHttpTransport transport;
+
+    private volatile Map<String, PublicKey> keys = Collections.emptyMap();
+    private volatile long expiresAt;
+    private long lastFetchAt;
+
+    public JwksKeyCache(String jwksUri, OIDCHttpTransport transport) {
+        this.jwksUri = jwksUri;
+        this.transport = transport;
+    }
+
+    /**
+     * Gets the process-wide key cache of the given JWKS endpoint.
+     * @param jwksUri the JWKS endpoint url
+     * @param transport the transport used to fetch the key set
+     * @return the shared key cache
+     */
+    public static JwksKeyCache getInstance(String jwksUri, OIDCHttpTransport transport) {
+        JwksKeyCache cache = instances.get(jwksUri);
+        if (cache == null) {
+            JwksKeyCache newCache = new JwksKeyCache(jwksUri, transport);
+            cache = instances.putIfAbsent(jwksUri, newCache);
+            if (cache == null) {
+                cache = newCache;
+            }
+        }
+        return cache;
+    }
+
+    public String getJwksUri() {
+        return jwksUri;
+    }
+
+    /**
+     * Gets the public key with the given key id, fetching the key set if it has expired or doesn't
+     * know the key id yet. The expired key is returned when the key set can't be fetched again.
+     * @param kid the key id from the JWS header, may be null when the provider publishes one key
+     * @return the key or null if the provider doesn't publish such key
+     * @throws IOException when the key set can not be fetched and no key is cached for the key id
+     */
+    public PublicKey getKey(String kid) throws IOException {
+        String keyId = kid != null ? kid : "";
+        PublicKey key = keys.get(keyId);
+        if (key != null && System.currentTimeMillis() < expiresAt) {
+            return key;
+        }
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            key = keys.get(keyId);
+            boolean expired = now >= expiresAt;
+            boolean mayRefetch = now - lastFetchAt >= MIN_REFETCH_INTERVAL_MS;
+            if ((expired || key == null) && mayRefetch) {
+                try {
+                    fetch();
+                    key = keys.get(keyId);
+                } catch (IOException e) {
+                    if (key == null) {
+                        throw e;
+                    }
+                    Log.w(TAG, "Could not refetch the key set, using the expired one", e);
+                }
+            } else if (key == null) {
+                Log.w(TAG, "Unknown kid '%1$s', key set fetched less than %2$d s ago", keyId, MIN_REFETCH_INTERVAL_MS / 1000);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Drops the cached key set, the next lookup will fetch it again.
+     */
+    public synchronized void invalidate() {
+        keys = Collections.emptyMap();
+        expiresAt = 0;
+        lastFetchAt = 0;
+    }
+
+    private void fetch() throws IOException {
+        lastFetchAt = System.currentTimeMillis();
+
+        HttpRequest request = transport.getRequestFactory().buildGetRequest(new GenericUrl(jwksUri));
+        request.getHeaders().setAccept("application/json");
+        HttpResponse response = request.execute();
+        try {
+            keys = parseKeys(readJwks(response));
+            long maxAge = CacheControl.getMaxAgeMillis(response.getHeaders().getCacheControl(), DEFAULT_MAX_AGE_MS);
+            expiresAt = lastFetchAt + Math.max(maxAge, MIN_MAX_AGE_MS);
+            Log.d(TAG, "Fetched %1$d keys from %2$s", keys.size(), jwksUri);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid JWKS document returned by " + jwksUri, e);
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Reads the key set as a JSON tree. The tree types can't go through the transport Gson: before
+     * Gson 2.3 it has no adapter for them and reflectively returns an empty object.
+     */
+    private static JsonObject readJwks(HttpResponse response) throws IOException {
+        Reader reader = new InputStreamReader(response.getContent(), response.getContentCharset());
+        try {
+            return new JsonParser().parse(reader).getAsJsonObject();
+        } finally {
+            reader.close();
+        }
+    }
+
+    static Map<String, PublicKey> parseKeys(JsonObject jwks) {
+        Map<String, PublicKey> parsedKeys = new HashMap<>();
+        JsonArray jwkArray = jwks.getAsJsonArray("keys");
+        for (JsonElement element : jwkArray) {
+            // A malformed key (i.e. missing or mistyped members) is skipped on its own, failing
+            // the whole document would leave no key to verify the ID Tokens with
+            try {
+                JsonObject jwk = element.getAsJsonObject();
+                if (jwk.has("use") && !"sig".equals(jwk.get("use").getAsString())) {
+                    continue;
+                }
+                PublicKey key = parseKey(jwk);
+                if (key != null) {
+                    String kid = jwk.has("kid") ? jwk.get("kid").getAsString() : "";
+                    parsedKeys.put(kid, key);
+                }
+            } catch (GeneralSecurityException | RuntimeException e) {
+                Log.w(TAG, "Ignoring invalid JWK", e);
+            }
+        }
+        // Tokens without kid can only be verified when the provider publishes a single key
+        if (parsedKeys.size() == 1 && !parsedKeys.containsKey("")) {
+            parsedKeys.put("", parsedKeys.values().iterator().next());
+        }
+        return Collections.unmodifiableMap(parsedKeys);
+    }
+
+    private static PublicKey parseKey(JsonObject jwk) throws GeneralSecurityException {
+        String kty = jwk.get("kty").getAsString();
+        if ("RSA".equals(kty)) {
+            BigInteger modulus = new BigInteger(1, Base64.decodeBase64(jwk.get("n").getAsString()));
+            BigInteger exponent = new BigInteger(1, Base64.decodeBase64(jwk.get("e").getAsString()));
+            return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, exponent));
+        } else if ("EC".equals(kty) && "P-256".equals(jwk.get("crv").getAsString())) {
+            BigInteger x = new BigInteger(1, Base64.decodeBase64(jwk.get("x").getAsString()));
+            BigInteger y = new BigInteger(1, Base64.decodeBase64(jwk.get("y").getAsString()));
+            return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(new ECPoint(x, y), P256));
+        } else {
+            Log.d(TAG, "Ignoring unsupported JWK type %1$s", kty);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.lnikkila.oidc.security;
+
+import com.lnikkila.oidc.platform.Log;
+import com.lnikkila.oidc.platform.Platform;
+import com.lnikkila.oidc.util.Strings;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * Encrypts sensitive data as self-describing, authenticated records, whatever holds the key.
+ * <br/>
+ * Subclasses provide the AES-GCM primitives with their key, usually through {@link SpongyCastleCipher}
+ * or {@link JceCipher}; this class lays out the records and encodes them in Base64.
+ */
+public abstract class SensitiveDataCipher {
+
+    //region Constants
+
+    protected static final String TAG = "SensitiveDataStorage";
+
+    protected static final String CIPHER_ALGO = "AES";
+    protected static final int CIPHER_KEY_LENGHT    = 256;
+
+    protected static final String IO_ENCODING = "UTF-8";
+
+    /**
+     * Encrypted records are laid out as: magic (2 bytes), format version, key version, IV, then the
+     * AES-GCM ciphertext and tag. The header is authenticated along with the data. Records without
+     * this header were written by the former AES-CBC implementations.
+     */
+    protected static final byte[] FORMAT_MAGIC          = {'O', 'I'};
+    protected static final byte FORMAT_VERSION_GCM      = 1;
+    protected static final int HEADER_LENGTH            = FORMAT_MAGIC.length + 2;
+    protected static final int GCM_IV_LENGTH            = 12;
+    protected static final int GCM_TAG_LENGTH           = 128;                                          // bits
+    protected static final int LEGACY_BLOCK_LENGTH      = 16;                                           // AES-CBC block
+
+    //endregion
+
+    /**
+     * @return the version of the key used to seal new records, stored in every record header.
+     */
+    protected abstract byte getKeyVersion();
+
+    /**
+     * Encrypts the given plaintext with AES-GCM using a fresh random IV.
+     * @param header the record header, to authenticate along with the data
+     * @param data The plaintext to encrypt
+     * @return the IV ({@link #GCM_IV_LENGTH} bytes) followed by the ciphertext and tag
+     */
+    protected abstract byte[] seal(byte[] header, byte[] data) throws UserNotAuthenticatedWrapperException;
+
+    /**
+     * Decrypts and authenticates a record sealed by {@link #seal(byte[], byte[])}.
+     * @param header the record header
+     * @param data the whole record
+     * @param offset where the IV starts in the record
+     * @return The decrypted bytes
+     */
+    protected abstract byte[] open(byte[] header, byte[] data, int offset) throws UserNotAuthenticatedWrapperException;
+
+    /**
+     * Decrypts a record written in the former AES-CBC format.
+     * @param data The data to decrypt
+     * @return The decrypted bytes
+     */
+    protected abstract byte[] decryptLegacy(byte[] data) throws UserNotAuthenticatedWrapperException;
+
+    /**
+     * Encrypt the given plaintext bytes as a self-describing record.
+     * @param data The plaintext to encrypt
+     * @return The encrypted record
+     */
+    protected byte[] encrypt(byte[] data) throws UserNotAuthenticatedWrapperException {
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(FORMAT_MAGIC, 0, header, 0, FORMAT_MAGIC.length);
+        header[FORMAT_MAGIC.length] = FORMAT_VERSION_GCM;
+        header[FORMAT_MAGIC.length + 1] = getKeyVersion();
+
+        byte[] sealed = seal(header, data);
+        if (sealed == null) {
+            return null;
+        }
+        byte[] record = new byte[HEADER_LENGTH + sealed.length];
+        System.arraycopy(header, 0, record, 0, HEADER_LENGTH);
+        System.arraycopy(sealed, 0, record, HEADER_LENGTH, sealed.length);
+        return record;
+    }
+
+    /**
+     * Encrypt the given plaintext using the priviously created key.
+     * @param data The plaintext to encrypt
+     * @return The encrypted string
+     */
+    public String encrypt(String data) throws UserNotAuthenticatedWrapperException {
+        String encryptedString = null;
+        if (!Strings.isEmpty(data)) {
+            try {
+                byte[] encrypted = encrypt(data.getBytes(IO_ENCODING));
+                encryptedString = encrypted != null ? Platform.get().getBase64Codec().encodeToString(encrypted, false) : null;
+            } catch (UnsupportedEncodingException e) {
+                Log.e(TAG, e, "The given data coud not be decoded using %1$s encoding", IO_ENCODING);
+            }
+        } else {
+            Log.e(TAG, "Can not encrypt empty data");
+        }
+        return encryptedString;
+    }
+
+    /**
+     * Decrypt the given record, whatever format it was written in.
+     * @param data The data to decrypt
+     * @return The decrypted bytes
+     */
+    protected byte[] decrypt(byte[] data) throws UserNotAuthenticatedWrapperException {
+        if (isRecordFormat(data)) {
+            byte[] header = Arrays.copyOfRange(data, 0, HEADER_LENGTH);
+            byte[] decrypted;
+            try {
+                decrypted = open(header, data, HEADER_LENGTH);
+            } catch (RuntimeException e) {
+                decrypted = decryptLegacyLookalike(data);
+                if (decrypted == null) {
+                    throw e;
+                }
+            }
+            return decrypted != null ? decrypted : decryptLegacyLookalike(data);
+        } else {
+            return decryptLegacy(data);
+        }
+    }
+
+    /**
+     * A legacy record starts with random looking bytes (its IV or its ciphertext), which match a
+     * record header once in 2^24 records: such a record is decrypted as legacy once it fails to open.
+     * @return the decrypted bytes, or null if the data isn't a legacy record either
+     */
+    private byte[] decryptLegacyLookalike(byte[] data) throws UserNotAuthenticatedWrapperException {
+        if (data.length % LEGACY_BLOCK_LENGTH != 0) {
+            return null;
+        }
+        try {
+            return decryptLegacy(data);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static boolean isRecordFormat(byte[] data) {
+        return data.length >= HEADER_LENGTH + GCM_IV_LENGTH + GCM_TAG_LENGTH / 8
+                && data[0] == FORMAT_MAGIC[0] && data[1] == FORMAT_MAGIC[1]
+                && data[FORMAT_MAGIC.length] == FORMAT_VERSION_GCM;
+    }
+
+    /**
+     * Tells whether the given encrypted data was written in the former AES-CBC format and should
+     * be encrypted again.
+     * @param encryptedData the Base64 encrypted data
+     * @return true if the data is not an authenticated record
+     */
+    public boolean isLegacyFormat(String encryptedData) {
+        return !Strings.isEmpty(encryptedData) && !isRecordFormat(Platform.get().getBase64Codec().decode(encryptedData, false));
+    }
+
+    /**
+     * Decrypt the given data using the priviously created key.
+     * @param encryptedData The data to decrypt
+     * @return The decrypted string
+     */
+    public String decrypt(String encryptedData) throws UserNotAuthenticatedWrapperException {
+        String data = null;
+        if (!Strings.isEmpty(encryptedData)) {
+            try {
+                byte[] decrypted = decrypt(Platform.get().getBase64Codec().decode(encryptedData, false));
+                data = decrypted != null ? new String(decrypted, IO_ENCODING) : null;
+            } catch (UnsupportedEncodingException e) {
+                Log.e(TAG, e, "The given data coud not be decoded using %1$s encoding", IO_ENCODING);
+            }
+        } else {
+            Log.e(TAG, "Can not decrypt empty data");
+        }
+        return data;
+    }
+}
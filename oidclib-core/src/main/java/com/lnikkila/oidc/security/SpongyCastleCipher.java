@@ -0,0 +1,98 @@
+package com.lnikkila.oidc.security;
+
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.engines.AESFastEngine;
+import org.spongycastle.crypto.modes.CBCBlockCipher;
+import org.spongycastle.crypto.modes.GCMBlockCipher;
+import org.spongycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.spongycastle.crypto.params.AEADParameters;
+import org.spongycastle.crypto.params.KeyParameter;
+import org.spongycastle.crypto.params.ParametersWithIV;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static com.lnikkila.oidc.security.SensitiveDataCipher.GCM_IV_LENGTH;
+import static com.lnikkila.oidc.security.SensitiveDataCipher.GCM_TAG_LENGTH;
+
+/**
+ * The AES primitives of {@link SensitiveDataCipher} implemented with
+ * <a href='https://rtyley.github.io/spongycastle/'>Spongy Castle</a>, for a key held in memory.
+ */
+public final class SpongyCastleCipher {
+
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    /**
+     * Cipher engines are stateful, each thread gets its own and re-initialises it for every operation.
+     */
+    private static final ThreadLocal<GCMBlockCipher> cipherEngine = new ThreadLocal<GCMBlockCipher>() {
+        @Override
+        protected GCMBlockCipher initialValue() {
+            return new GCMBlockCipher(new AESFastEngine());
+        }
+    };
+
+    private static final ThreadLocal<PaddedBufferedBlockCipher> legacyCipherEngine = new ThreadLocal<PaddedBufferedBlockCipher>() {
+        @Override
+        protected PaddedBufferedBlockCipher initialValue() {
+            return new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESFastEngine()));
+        }
+    };
+
+    private SpongyCastleCipher() {
+    }
+
+    /**
+     * Encrypts with AES-GCM using a fresh random IV.
+     * @return the IV followed by the ciphertext and tag
+     * @see SensitiveDataCipher#seal(byte[], byte[])
+     */
+    public static byte[] seal(KeyParameter key, byte[] header, byte[] data) throws InvalidCipherTextException {
+        // Random IV, embedded in the record
+        byte[] ivBytes = new byte[GCM_IV_LENGTH];
+        secureRandom.nextBytes(ivBytes);
+
+        GCMBlockCipher cipher = cipherEngine.get();
+        cipher.init(true, new AEADParameters(key, GCM_TAG_LENGTH, ivBytes, header));
+
+        byte[] sealed = new byte[GCM_IV_LENGTH + cipher.getOutputSize(data.length)];
+        System.arraycopy(ivBytes, 0, sealed, 0, GCM_IV_LENGTH);
+        int length = cipher.processBytes(data, 0, data.length, sealed, GCM_IV_LENGTH);
+        cipher.doFinal(sealed, GCM_IV_LENGTH + length);
+        return sealed;
+    }
+
+    /**
+     * Decrypts and authenticates what {@link #seal(KeyParameter, byte[], byte[])} returned.
+     * @see SensitiveDataCipher#open(byte[], byte[], int)
+     */
+    public static byte[] open(KeyParameter key, byte[] header, byte[] data, int offset) throws InvalidCipherTextException {
+        byte[] ivBytes = Arrays.copyOfRange(data, offset, offset + GCM_IV_LENGTH);
+        int cipherTextOffset = offset + GCM_IV_LENGTH;
+        int cipherTextLength = data.length - cipherTextOffset;
+
+        GCMBlockCipher cipher = cipherEngine.get();
+        cipher.init(false, new AEADParameters(key, GCM_TAG_LENGTH, ivBytes, header));
+
+        byte[] outBuf = new byte[cipher.getOutputSize(cipherTextLength)];
+        int length = cipher.processBytes(data, cipherTextOffset, cipherTextLength, outBuf, 0);
+        length += cipher.doFinal(outBuf, length);
+        return length == outBuf.length ? outBuf : Arrays.copyOf(outBuf, length);
+    }
+
+    /**
+     * Decrypts AES-CBC data prefixed by its IV, the former record format.
+     * @param ivLength the length of the IV at the start of the data
+     */
+    public static byte[] decryptCbc(KeyParameter key, byte[] data, int ivLength) throws InvalidCipherTextException {
+        PaddedBufferedBlockCipher cipher = legacyCipherEngine.get();
+        cipher.init(false, new ParametersWithIV(key, data, 0, ivLength));                                  // Get IV from data
+
+        int minSize = cipher.getOutputSize(data.length - ivLength);                                        // Then the encrypted data
+        byte[] outBuf = new byte[minSize];
+        int length1 = cipher.processBytes(data, ivLength, data.length - ivLength, outBuf, 0);
+        int length2 = cipher.doFinal(outBuf, length1);
+        return Arrays.copyOf(outBuf, length1 + length2);
+    }
+}
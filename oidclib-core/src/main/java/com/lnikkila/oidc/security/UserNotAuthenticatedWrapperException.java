@@ -1,8 +1,8 @@
 package com.lnikkila.oidc.security;
 
 /**
- * Wrapper for {@link android.security.keystore.UserNotAuthenticatedException} because it does not
- * exist in pre M APIs.
+ * Wrapper for {@code android.security.keystore.UserNotAuthenticatedException} because it does not
+ * exist in pre M APIs, nor outside of Android.
  * Created by Camilo Montes on 20/01/2016.
  */
 public class UserNotAuthenticatedWrapperException extends Exception {
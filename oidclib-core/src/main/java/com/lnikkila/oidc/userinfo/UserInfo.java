@@ -0,0 +1,351 @@
+package com.lnikkila.oidc.userinfo;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The claims returned by the UserInfo Endpoint.
+ * <br/>
+ * The standard claims are typed; any other claim is kept as a {@link JsonElement}. Instances are
+ * read straight from the response stream by {@link Adapter}, registered on the Gson instance of
+ * {@link com.lnikkila.oidc.http.OIDCHttpTransport}.
+ *
+ * @see <a href="http://openid.net/specs/openid-connect-core-1_0.html#StandardClaims">http://openid.net/specs/openid-connect-core-1_0.html#StandardClaims</a>
+ */
+public class UserInfo {
+
+    private String subject;
+    private String name;
+    private String givenName;
+    private String familyName;
+    private String middleName;
+    private String nickname;
+    private String preferredUsername;
+    private String profile;
+    private String picture;
+    private String website;
+    private String email;
+    private Boolean emailVerified;
+    private String gender;
+    private String birthdate;
+    private String zoneinfo;
+    private String locale;
+    private String phoneNumber;
+    private Boolean phoneNumberVerified;
+    private JsonElement address;
+    private Long updatedAt;
+
+    private final Map<String, JsonElement> additionalClaims = new LinkedHashMap<>();
+
+    //region Getters
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getGivenName() {
+        return givenName;
+    }
+
+    public String getFamilyName() {
+        return familyName;
+    }
+
+    public String getMiddleName() {
+        return middleName;
+    }
+
+    public String getNickname() {
+        return nickname;
+    }
+
+    public String getPreferredUsername() {
+        return preferredUsername;
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    public String getPicture() {
+        return picture;
+    }
+
+    public String getWebsite() {
+        return website;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public Boolean getEmailVerified() {
+        return emailVerified;
+    }
+
+    public String getGender() {
+        return gender;
+    }
+
+    public String getBirthdate() {
+        return birthdate;
+    }
+
+    public String getZoneinfo() {
+        return zoneinfo;
+    }
+
+    public String getLocale() {
+        return locale;
+    }
+
+    public String getPhoneNumber() {
+        return phoneNumber;
+    }
+
+    public Boolean getPhoneNumberVerified() {
+        return phoneNumberVerified;
+    }
+
+    /**
+     * @return the address claim (a JSON object), or null
+     */
+    public JsonElement getAddress() {
+        return address;
+    }
+
+    /**
+     * @return the time the information was last updated, in epoch seconds, or null
+     */
+    public Long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    /**
+     * @return the (unmodifiable) claims that aren't standard claims
+     */
+    public Map<String, JsonElement> getAdditionalClaims() {
+        return Collections.unmodifiableMap(additionalClaims);
+    }
+
+    //endregion
+
+    /**
+     * Gets a claim with a string value by its name, whether it is a standard claim or not.
+     * @param claim the claim name (ex: email, name, given_name)
+     * @return the value or null if the claim is missing or isn't a string
+     */
+    public String getString(String claim) {
+        switch (claim) {
+            case "sub": return subject;
+            case "name": return name;
+            case "given_name": return givenName;
+            case "family_name": return familyName;
+            case "middle_name": return middleName;
+            case "nickname": return nickname;
+            case "preferred_username": return preferredUsername;
+            case "profile": return profile;
+            case "picture": return picture;
+            case "website": return website;
+            case "email": return email;
+            case "gender": return gender;
+            case "birthdate": return birthdate;
+            case "zoneinfo": return zoneinfo;
+            case "locale": return locale;
+            case "phone_number": return phoneNumber;
+            default:
+                JsonElement value = additionalClaims.get(claim);
+                if (value != null && value.isJsonPrimitive() && value.getAsJsonPrimitive().isString()) {
+                    return value.getAsString();
+                }
+                return null;
+        }
+    }
+
+    /**
+     * Streaming (de)serializer of {@link UserInfo}: the response is decoded token by token, without
+     * building an intermediate tree for the standard claims.
+     */
+    public static class Adapter extends TypeAdapter<UserInfo> {
+
+        private final JsonParser parser = new JsonParser();
+
+        @Override
+        public UserInfo read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            UserInfo userInfo = new UserInfo();
+            in.beginObject();
+            while (in.hasNext()) {
+                String claim = in.nextName();
+                switch (claim) {
+                    case "sub": userInfo.subject = readString(in); break;
+                    case "name": userInfo.name = readString(in); break;
+                    case "given_name": userInfo.givenName = readString(in); break;
+                    case "family_name": userInfo.familyName = readString(in); break;
+                    case "middle_name": userInfo.middleName = readString(in); break;
+                    case "nickname": userInfo.nickname = readString(in); break;
+                    case "preferred_username": userInfo.preferredUsername = readString(in); break;
+                    case "profile": userInfo.profile = readString(in); break;
+                    case "picture": userInfo.picture = readString(in); break;
+                    case "website": userInfo.website = readString(in); break;
+                    case "email": userInfo.email = readString(in); break;
+                    case "email_verified": userInfo.emailVerified = readBoolean(in); break;
+                    case "gender": userInfo.gender = readString(in); break;
+                    case "birthdate": userInfo.birthdate = readString(in); break;
+                    case "zoneinfo": userInfo.zoneinfo = readString(in); break;
+                    case "locale": userInfo.locale = readString(in); break;
+                    case "phone_number": userInfo.phoneNumber = readString(in); break;
+                    case "phone_number_verified": userInfo.phoneNumberVerified = readBoolean(in); break;
+                    case "address": userInfo.address = parser.parse(in); break;
+                    case "updated_at": userInfo.updatedAt = readLong(in); break;
+                    default: userInfo.additionalClaims.put(claim, parser.parse(in)); break;
+                }
+            }
+            in.endObject();
+            return userInfo;
+        }
+
+        @Override
+        public void write(JsonWriter out, UserInfo userInfo) throws IOException {
+            if (userInfo == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            writeString(out, "sub", userInfo.subject);
+            writeString(out, "name", userInfo.name);
+            writeString(out, "given_name", userInfo.givenName);
+            writeString(out, "family_name", userInfo.familyName);
+            writeString(out, "middle_name", userInfo.middleName);
+            writeString(out, "nickname", userInfo.nickname);
+            writeString(out, "preferred_username", userInfo.preferredUsername);
+            writeString(out, "profile", userInfo.profile);
+            writeString(out, "picture", userInfo.picture);
+            writeString(out, "website", userInfo.website);
+            writeString(out, "email", userInfo.email);
+            if (userInfo.emailVerified != null) {
+                out.name("email_verified").value(userInfo.emailVerified);
+            }
+            writeString(out, "gender", userInfo.gender);
+            writeString(out, "birthdate", userInfo.birthdate);
+            writeString(out, "zoneinfo", userInfo.zoneinfo);
+            writeString(out, "locale", userInfo.locale);
+            writeString(out, "phone_number", userInfo.phoneNumber);
+            if (userInfo.phoneNumberVerified != null) {
+                out.name("phone_number_verified").value(userInfo.phoneNumberVerified);
+            }
+            if (userInfo.address != null) {
+                out.name("address");
+                writeElement(out, userInfo.address);
+            }
+            if (userInfo.updatedAt != null) {
+                out.name("updated_at").value(userInfo.updatedAt);
+            }
+            for (Map.Entry<String, JsonElement> claim : userInfo.additionalClaims.entrySet()) {
+                out.name(claim.getKey());
+                writeElement(out, claim.getValue());
+            }
+            out.endObject();
+        }
+
+        private static String readString(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            } else if (in.peek() == JsonToken.BEGIN_OBJECT || in.peek() == JsonToken.BEGIN_ARRAY) {
+                // Not what the spec says, ignored rather than failing the whole response
+                in.skipValue();
+                return null;
+            }
+            return in.nextString();
+        }
+
+        private static Boolean readBoolean(JsonReader in) throws IOException {
+            switch (in.peek()) {
+                case BOOLEAN:
+                    return in.nextBoolean();
+                case STRING:
+                    // Some providers send "true" or "false"
+                    return Boolean.valueOf(in.nextString());
+                default:
+                    in.skipValue();
+                    return null;
+            }
+        }
+
+        private static Long readLong(JsonReader in) throws IOException {
+            switch (in.peek()) {
+                case NUMBER:
+                    try {
+                        return in.nextLong();
+                    } catch (NumberFormatException e) {
+                        // Not an integer, or out of range
+                        in.skipValue();
+                        return null;
+                    }
+                case STRING:
+                    try {
+                        return Long.valueOf(in.nextString());
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                default:
+                    in.skipValue();
+                    return null;
+            }
+        }
+
+        private static void writeString(JsonWriter out, String claim, String value) throws IOException {
+            if (value != null) {
+                out.name(claim).value(value);
+            }
+        }
+
+        private static void writeElement(JsonWriter out, JsonElement element) throws IOException {
+            if (element.isJsonPrimitive()) {
+                JsonPrimitive primitive = element.getAsJsonPrimitive();
+                if (primitive.isBoolean()) {
+                    out.value(primitive.getAsBoolean());
+                } else if (primitive.isNumber()) {
+                    out.value(primitive.getAsNumber());
+                } else {
+                    out.value(primitive.getAsString());
+                }
+            } else if (element.isJsonObject()) {
+                out.beginObject();
+                for (Map.Entry<String, JsonElement> member : element.getAsJsonObject().entrySet()) {
+                    out.name(member.getKey());
+                    writeElement(out, member.getValue());
+                }
+                out.endObject();
+            } else if (element.isJsonArray()) {
+                out.beginArray();
+                for (JsonElement item : element.getAsJsonArray()) {
+                    writeElement(out, item);
+                }
+                out.endArray();
+            } else {
+                out.nullValue();
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.lnikkila.oidc.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent executions of the same work. The first caller for a given key runs the
+ * {@link Callable}; callers arriving while it is still running wait for it and share its result
+ * (or its failure) instead of running the work again.
+ *
+ * @param <K> the key identifying the work (i.e. an account)
+ * @param <V> the result of the work
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong executionCount = new AtomicLong();
+    private final AtomicLong deduplicatedCount = new AtomicLong();
+
+    /**
+     * Runs the given work, or waits for the identical work already running for the same key.
+     * @param key the key identifying the work
+     * @param callable the work to run if nobody is running it yet
+     * @return the result of the work
+     * @throws ExecutionException wrapping the exception thrown by the work
+     * @throws InterruptedException if interrupted while waiting for another caller's work
+     */
+    public V execute(K key, Callable<V> callable) throws ExecutionException, InterruptedException {
+        FutureTask<V> task = new FutureTask<>(callable);
+        FutureTask<V> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            executionCount.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+            running = task;
+        } else {
+            deduplicatedCount.incrementAndGet();
+        }
+        return running.get();
+    }
+
+    /**
+     * @return the number of times the work was actually run.
+     */
+    public long getExecutionCount() {
+        return executionCount.get();
+    }
+
+    /**
+     * @return the number of callers that shared the result of an already running work.
+     */
+    public long getDeduplicatedCount() {
+        return deduplicatedCount.get();
+    }
+}
@@ -0,0 +1,17 @@
+package com.lnikkila.oidc.util;
+
+/**
+ * String helpers of the library core, in place of {@code android.text.TextUtils}.
+ */
+public final class Strings {
+
+    private Strings() {
+    }
+
+    /**
+     * @return true if the string is null or 0-length.
+     */
+    public static boolean isEmpty(CharSequence str) {
+        return str == null || str.length() == 0;
+    }
+}
@@ -0,0 +1,31 @@
+package com.lnikkila.oidc.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CacheControlTest {
+
+    private static final long DEFAULT_MAX_AGE_MS = 42000;
+
+    @Test
+    public void readsMaxAge() {
+        assertEquals(3600000, CacheControl.getMaxAgeMillis("public, max-age=3600", DEFAULT_MAX_AGE_MS));
+        assertEquals(60000, CacheControl.getMaxAgeMillis("max-age = 60, must-revalidate", DEFAULT_MAX_AGE_MS));
+        assertEquals(0, CacheControl.getMaxAgeMillis("max-age=0", DEFAULT_MAX_AGE_MS));
+    }
+
+    @Test
+    public void forbidsCachingForNoCacheAndNoStore() {
+        assertEquals(0, CacheControl.getMaxAgeMillis("no-cache", DEFAULT_MAX_AGE_MS));
+        assertEquals(0, CacheControl.getMaxAgeMillis("private, no-store, max-age=3600", DEFAULT_MAX_AGE_MS));
+    }
+
+    @Test
+    public void defaultsWithoutMaxAge() {
+        assertEquals(DEFAULT_MAX_AGE_MS, CacheControl.getMaxAgeMillis(null, DEFAULT_MAX_AGE_MS));
+        assertEquals(DEFAULT_MAX_AGE_MS, CacheControl.getMaxAgeMillis("", DEFAULT_MAX_AGE_MS));
+        assertEquals(DEFAULT_MAX_AGE_MS, CacheControl.getMaxAgeMillis("public", DEFAULT_MAX_AGE_MS));
+        assertEquals(DEFAULT_MAX_AGE_MS, CacheControl.getMaxAgeMillis("max-age=soon", DEFAULT_MAX_AGE_MS));
+    }
+}
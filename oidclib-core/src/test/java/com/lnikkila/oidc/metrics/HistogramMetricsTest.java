@@ -0,0 +1,52 @@
+package com.lnikkila.oidc.metrics;
+
+import org.junit.Test;
+
+import static com.lnikkila.oidc.metrics.HistogramMetrics.Histogram.bucketOf;
+import static com.lnikkila.oidc.metrics.HistogramMetrics.Histogram.upperBoundOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramMetricsTest {
+
+    @Test
+    public void keepsSmallValuesExact() {
+        for (int value = 0; value < 4; value++) {
+            assertEquals(value, bucketOf(value));
+            assertEquals(value, upperBoundOf(value));
+        }
+    }
+
+    @Test
+    public void splitsPowersOfTwoInFourBuckets() {
+        assertEquals(4, bucketOf(4));
+        assertEquals(7, bucketOf(7));
+        assertEquals(8, bucketOf(8));
+        assertEquals(8, bucketOf(9));
+        assertEquals(9, bucketOf(10));
+        assertEquals(9, upperBoundOf(8));
+        assertEquals(15, upperBoundOf(11));
+    }
+
+    @Test
+    public void boundsEveryValueWithinAQuarter() {
+        long[] values = {5, 100, 1023, 1024, 1025, 123456789, 1000000000000L, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = bucketOf(value);
+            long upperBound = upperBoundOf(bucket);
+            assertTrue(value + " above its bucket", value <= upperBound);
+            assertTrue(value + " below its bucket", value > upperBoundOf(bucket - 1));
+            assertTrue(value + " bucket too wide", upperBound - value <= value / 4);
+        }
+        assertEquals(Long.MAX_VALUE, upperBoundOf(bucketOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void makesConsecutiveBuckets() {
+        for (int bucket = 1; bucket < bucketOf(Long.MAX_VALUE); bucket++) {
+            long lowerBound = upperBoundOf(bucket - 1) + 1;
+            assertEquals(bucket, bucketOf(lowerBound));
+            assertEquals(bucket, bucketOf(upperBoundOf(bucket)));
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.lnikkila.oidc.security;
+
+import com.google.api.client.auth.openidconnect.IdToken;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import com.google.api.client.util.Base64;
+import com.google.api.client.util.StringUtils;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IdTokenSignatureVerifierTest {
+
+    //region Constants
+
+    private static final String KEY_ID          = "test-key";
+    private static final String CLIENT_SECRET   = "test-client-secret-0123456789abcdef";
+
+    //endregion
+
+    private static final JsonFactory JSON_FACTORY = new GsonFactory();
+
+    @Test
+    public void verifiesRs256WithProviderKey() throws Exception {
+        KeyPair keyPair = generateKeyPair("RSA", null);
+        IdToken idToken = sign("RS256", "SHA256withRSA", keyPair.getPrivate());
+
+        assertTrue(verifier(keyPair.getPublic(), IdTokenSignatureVerifier.ALG_RS256).verify(idToken));
+        assertFalse(verifier(generateKeyPair("RSA", null).getPublic(), IdTokenSignatureVerifier.ALG_RS256).verify(idToken));
+    }
+
+    @Test
+    public void verifiesEs256WithProviderKey() throws Exception {
+        KeyPair keyPair = generateKeyPair("EC", new ECGenParameterSpec("secp256r1"));
+        IdToken idToken = sign("ES256", "SHA256withECDSA", keyPair.getPrivate());
+
+        assertTrue(verifier(keyPair.getPublic(), IdTokenSignatureVerifier.ALG_ES256).verify(idToken));
+    }
+
+    @Test
+    public void verifiesHs256WithClientSecret() throws Exception {
+        IdToken idToken = signHs256(CLIENT_SECRET);
+
+        assertTrue(new IdTokenSignatureVerifier(null, CLIENT_SECRET, IdTokenSignatureVerifier.ALG_HS256).verify(idToken));
+        assertFalse(new IdTokenSignatureVerifier(null, "another-secret", IdTokenSignatureVerifier.ALG_HS256).verify(idToken));
+        assertFalse(new IdTokenSignatureVerifier(null, null, IdTokenSignatureVerifier.ALG_HS256).verify(idToken));
+    }
+
+    @Test
+    public void rejectsAlgorithmOtherThanPinned() throws Exception {
+        // Signed with the client secret, which any user of the app can extract
+        IdToken idToken = signHs256(CLIENT_SECRET);
+        KeyPair keyPair = generateKeyPair("RSA", null);
+
+        IdTokenSignatureVerifier verifier = new IdTokenSignatureVerifier(
+                new StaticKeyCache(keyPair.getPublic()), CLIENT_SECRET, IdTokenSignatureVerifier.ALG_RS256);
+        assertFalse(verifier.verify(idToken));
+    }
+
+    @Test
+    public void rejectsUnsignedTokens() throws Exception {
+        IdToken idToken = IdToken.parse(JSON_FACTORY, encode("none") + ".");
+
+        assertFalse(new IdTokenSignatureVerifier(null, CLIENT_SECRET, IdTokenSignatureVerifier.ALG_HS256).verify(idToken));
+    }
+
+    @Test
+    public void selectsAsymmetricAlgorithmFirst() {
+        assertEquals(IdTokenSignatureVerifier.ALG_RS256, IdTokenSignatureVerifier.selectAlgorithm(
+                Arrays.asList("HS256", "ES256", "RS256")));
+        assertEquals(IdTokenSignatureVerifier.ALG_ES256, IdTokenSignatureVerifier.selectAlgorithm(
+                Arrays.asList("HS256", "ES256")));
+        assertEquals(IdTokenSignatureVerifier.ALG_HS256, IdTokenSignatureVerifier.selectAlgorithm(
+                Collections.singletonList("HS256")));
+        assertEquals(IdTokenSignatureVerifier.DEFAULT_ALGORITHM, IdTokenSignatureVerifier.selectAlgorithm(
+                Collections.singletonList("PS256")));
+        assertEquals(IdTokenSignatureVerifier.DEFAULT_ALGORITHM, IdTokenSignatureVerifier.selectAlgorithm(null));
+    }
+
+    @Test
+    public void transcodesConcatSignatureToDer() throws Exception {
+        byte[] r = new byte[32];
+        byte[] s = new byte[32];
+        // R has its high bit set and needs a leading zero, S has leading zeros to strip
+        r[0] = (byte) 0x80;
+        r[31] = 1;
+        s[30] = 0x7f;
+        s[31] = 2;
+
+        byte[] expected = {
+                0x30, 0x27,
+                0x02, 0x21, 0x00, (byte) 0x80, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1,
+                0x02, 0x02, 0x7f, 2};
+        assertArrayEquals(expected, IdTokenSignatureVerifier.transcodeConcatToDer(concat(r, s)));
+    }
+
+    @Test
+    public void transcodesZeroHalfToSingleByteInteger() throws Exception {
+        byte[] der = IdTokenSignatureVerifier.transcodeConcatToDer(new byte[64]);
+
+        assertArrayEquals(new byte[]{0x30, 0x06, 0x02, 0x01, 0x00, 0x02, 0x01, 0x00}, der);
+    }
+
+    @Test
+    public void transcodesWhatTheJcaVerifies() throws Exception {
+        KeyPair keyPair = generateKeyPair("EC", new ECGenParameterSpec("secp256r1"));
+        byte[] content = StringUtils.getBytesUtf8("header.payload");
+        Signature signer = Signature.getInstance("SHA256withECDSA");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(content);
+        byte[] der = signer.sign();
+
+        Signature verifier = Signature.getInstance("SHA256withECDSA");
+        verifier.initVerify(keyPair.getPublic());
+        verifier.update(content);
+        assertTrue(verifier.verify(IdTokenSignatureVerifier.transcodeConcatToDer(derToConcat(der))));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void rejectsOddLengthSignature() throws Exception {
+        IdTokenSignatureVerifier.transcodeConcatToDer(new byte[63]);
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void rejectsSignatureOfAnotherCurveSize() throws Exception {
+        // P-384 length, a 64 bytes ES256 signature is required
+        IdTokenSignatureVerifier.transcodeConcatToDer(new byte[96]);
+    }
+
+    //region Signing
+
+    private static IdTokenSignatureVerifier verifier(PublicKey key, String algorithm) {
+        return new IdTokenSignatureVerifier(new StaticKeyCache(key), CLIENT_SECRET, algorithm);
+    }
+
+    private static KeyPair generateKeyPair(String algorithm, ECGenParameterSpec spec) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+        if (spec != null) {
+            generator.initialize(spec);
+        } else {
+            generator.initialize(2048);
+        }
+        return generator.generateKeyPair();
+    }
+
+    private static IdToken sign(String alg, String jcaAlgorithm, PrivateKey key) throws Exception {
+        String content = encode(alg);
+        Signature signer = Signature.getInstance(jcaAlgorithm);
+        signer.initSign(key);
+        signer.update(StringUtils.getBytesUtf8(content));
+        byte[] signature = signer.sign();
+        if ("ES256".equals(alg)) {
+            // JWS carries R || S rather than the DER sequence the JCA produces
+            signature = derToConcat(signature);
+        }
+        return IdToken.parse(JSON_FACTORY, content + "." + Base64.encodeBase64URLSafeString(signature));
+    }
+
+    private static IdToken signHs256(String secret) throws Exception {
+        String content = encode("HS256");
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(StringUtils.getBytesUtf8(secret), "HmacSHA256"));
+        byte[] signature = mac.doFinal(StringUtils.getBytesUtf8(content));
+        return IdToken.parse(JSON_FACTORY, content + "." + Base64.encodeBase64URLSafeString(signature));
+    }
+
+    /**
+     * @return the encoded header and claims of an ID Token
+     */
+    private static String encode(String alg) throws Exception {
+        JsonWebSignature.Header header = new JsonWebSignature.Header();
+        header.setAlgorithm(alg);
+        header.setType("JWT");
+        header.setKeyId(KEY_ID);
+
+        long now = System.currentTimeMillis() / 1000;
+        IdToken.Payload payload = new IdToken.Payload();
+        payload.setIssuer("https://op.example.com");
+        payload.setAudience("test-client");
+        payload.setSubject("248289761001");
+        payload.setIssuedAtTimeSeconds(now);
+        payload.setExpirationTimeSeconds(now + 3600);
+
+        return Base64.encodeBase64URLSafeString(JSON_FACTORY.toByteArray(header)) + "."
+                + Base64.encodeBase64URLSafeString(JSON_FACTORY.toByteArray(payload));
+    }
+
+    /**
+     * Converts a DER ECDSA signature to R || S, each half zero-padded to 32 bytes.
+     */
+    private static byte[] derToConcat(byte[] der) {
+        int offset = 2;
+        int rLength = der[offset + 1];
+        byte[] r = Arrays.copyOfRange(der, offset + 2, offset + 2 + rLength);
+        offset += 2 + rLength;
+        int sLength = der[offset + 1];
+        byte[] s = Arrays.copyOfRange(der, offset + 2, offset + 2 + sLength);
+        return concat(toUnsigned32(r), toUnsigned32(s));
+    }
+
+    private static byte[] toUnsigned32(byte[] integer) {
+        byte[] magnitude = new BigInteger(1, integer).toByteArray();
+        byte[] padded = new byte[32];
+        int length = Math.min(magnitude.length, 32);
+        System.arraycopy(magnitude, magnitude.length - length, padded, 32 - length, length);
+        return padded;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] concat = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, concat, first.length, second.length);
+        return concat;
+    }
+
+    //endregion
+
+    /**
+     * Serves a single key, without any JWKS endpoint.
+     */
+    private static class StaticKeyCache extends JwksKeyCache {
+
+        private final PublicKey key;
+
+        StaticKeyCache(PublicKey key) {
+            super("https://op.example.com/jwks", null);
+            this.key = key;
+        }
+
+        @Override
+        public PublicKey getKey(String kid) {
+            return KEY_ID.equals(kid) ? key : null;
+        }
+    }
+}
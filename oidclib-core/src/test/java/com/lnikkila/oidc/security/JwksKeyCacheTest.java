@@ -0,0 +1,126 @@
+package com.lnikkila.oidc.security;
+
+import com.google.api.client.util.Base64;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.lnikkila.oidc.http.OIDCHttpTransport;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Fetches a key set over HTTP, so the JWKS document goes through the JSON library the build
+ * resolves.
+ */
+public class JwksKeyCacheTest {
+
+    private RSAPublicKey rsaKey;
+    private ECPublicKey ecKey;
+    private HttpServer server;
+    private final AtomicInteger fetchCount = new AtomicInteger();
+    private volatile String cacheControl = "max-age=3600";
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+        rsa.initialize(2048);
+        rsaKey = (RSAPublicKey) rsa.generateKeyPair().getPublic();
+        KeyPairGenerator ec = KeyPairGenerator.getInstance("EC");
+        ec.initialize(new ECGenParameterSpec("secp256r1"));
+        ecKey = (ECPublicKey) ec.generateKeyPair().getPublic();
+
+        final byte[] jwks = ("{\"keys\":["
+                + "{\"kty\":\"RSA\",\"use\":\"sig\",\"kid\":\"rsa-key\",\"alg\":\"RS256\","
+                + "\"n\":\"" + encode(rsaKey.getModulus()) + "\",\"e\":\"" + encode(rsaKey.getPublicExponent()) + "\"},"
+                + "{\"kty\":\"EC\",\"kid\":\"ec-key\",\"crv\":\"P-256\","
+                + "\"x\":\"" + encode(ecKey.getW().getAffineX()) + "\",\"y\":\"" + encode(ecKey.getW().getAffineY()) + "\"},"
+                + "{\"kty\":\"RSA\",\"use\":\"enc\",\"kid\":\"enc-key\","
+                + "\"n\":\"" + encode(rsaKey.getModulus()) + "\",\"e\":\"" + encode(rsaKey.getPublicExponent()) + "\"}"
+                + "]}").getBytes("UTF-8");
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/jwks", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                fetchCount.incrementAndGet();
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+                exchange.sendResponseHeaders(200, jwks.length);
+                OutputStream body = exchange.getResponseBody();
+                body.write(jwks);
+                body.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void fetchesSigningKeys() throws IOException {
+        JwksKeyCache cache = new JwksKeyCache("http://127.0.0.1:" + server.getAddress().getPort() + "/jwks",
+                new OIDCHttpTransport.Builder().build());
+
+        assertEquals(rsaKey, cache.getKey("rsa-key"));
+        assertEquals(ecKey, cache.getKey("ec-key"));
+        assertNull(cache.getKey("enc-key"));
+        assertEquals(1, fetchCount.get());
+    }
+
+    @Test
+    public void keepsUncacheableKeySetForMinMaxAge() throws IOException {
+        cacheControl = "no-cache";
+        JwksKeyCache cache = new JwksKeyCache("http://127.0.0.1:" + server.getAddress().getPort() + "/jwks",
+                new OIDCHttpTransport.Builder().build());
+
+        assertEquals(rsaKey, cache.getKey("rsa-key"));
+        assertEquals(rsaKey, cache.getKey("rsa-key"));
+        assertEquals(1, fetchCount.get());
+    }
+
+    @Test
+    public void skipsKeysWithoutType() {
+        JsonObject jwks = new JsonParser().parse("{\"keys\":["
+                + "{\"use\":\"sig\",\"kid\":\"untyped-key\","
+                + "\"n\":\"" + encode(rsaKey.getModulus()) + "\",\"e\":\"" + encode(rsaKey.getPublicExponent()) + "\"},"
+                + "{\"kty\":\"RSA\",\"use\":\"sig\",\"kid\":\"rsa-key\","
+                + "\"n\":\"" + encode(rsaKey.getModulus()) + "\",\"e\":\"" + encode(rsaKey.getPublicExponent()) + "\"}"
+                + "]}").getAsJsonObject();
+
+        Map<String, PublicKey> keys = JwksKeyCache.parseKeys(jwks);
+
+        assertEquals(rsaKey, keys.get("rsa-key"));
+        assertNull(keys.get("untyped-key"));
+    }
+
+    private static String encode(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        int offset = bytes[0] == 0 && bytes.length > 1 ? 1 : 0;
+        byte[] unsigned = new byte[bytes.length - offset];
+        System.arraycopy(bytes, offset, unsigned, 0, unsigned.length);
+        return Base64.encodeBase64URLSafeString(unsigned);
+    }
+}
@@ -0,0 +1,188 @@
+package com.lnikkila.oidc.security;
+
+import com.lnikkila.oidc.platform.Platform;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SensitiveDataCipherTest {
+
+    private static final byte KEY_VERSION = 3;
+    private static final int LEGACY_IV_LENGTH = 16;
+
+    private byte[] keyBytes;
+    private InMemoryCipher cipher;
+
+    @Before
+    public void setUp() {
+        keyBytes = new byte[SensitiveDataCipher.CIPHER_KEY_LENGHT / 8];
+        new SecureRandom().nextBytes(keyBytes);
+        cipher = new InMemoryCipher(keyBytes);
+    }
+
+    @Test
+    public void encryptsAsRecordWithHeader() throws Exception {
+        byte[] record = cipher.encrypt("secret".getBytes("UTF-8"));
+
+        assertEquals('O', record[0]);
+        assertEquals('I', record[1]);
+        assertEquals(SensitiveDataCipher.FORMAT_VERSION_GCM, record[2]);
+        assertEquals(KEY_VERSION, record[3]);
+        assertEquals(SensitiveDataCipher.HEADER_LENGTH + SensitiveDataCipher.GCM_IV_LENGTH
+                + "secret".length() + SensitiveDataCipher.GCM_TAG_LENGTH / 8, record.length);
+    }
+
+    @Test
+    public void decryptsItsOwnRecords() throws Exception {
+        String encrypted = cipher.encrypt("{\"access_token\":\"abc\"}");
+
+        assertEquals("{\"access_token\":\"abc\"}", cipher.decrypt(encrypted));
+        assertFalse(cipher.isLegacyFormat(encrypted));
+    }
+
+    @Test
+    public void usesFreshIvForEveryRecord() throws Exception {
+        assertNotEquals(cipher.encrypt("same data"), cipher.encrypt("same data"));
+    }
+
+    @Test
+    public void rejectsTamperedHeader() throws Exception {
+        byte[] record = cipher.encrypt("secret".getBytes("UTF-8"));
+        // Same layout, another key version: the header is authenticated with the data
+        record[3]++;
+        try {
+            cipher.decrypt(record);
+            fail("A record with a modified header was decrypted");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof AEADBadTagException);
+        }
+    }
+
+    @Test
+    public void detectsAndDecryptsLegacyRecords() throws Exception {
+        String legacy = encryptLegacy("legacy secret");
+
+        assertTrue(cipher.isLegacyFormat(legacy));
+        assertEquals("legacy secret", cipher.decrypt(legacy));
+    }
+
+    @Test
+    public void decryptsLegacyRecordsStartingLikeRecords() throws Exception {
+        byte[] iv = new byte[LEGACY_IV_LENGTH];
+        new SecureRandom().nextBytes(iv);
+        // The random IV happens to start with a record header
+        iv[0] = 'O';
+        iv[1] = 'I';
+        iv[2] = SensitiveDataCipher.FORMAT_VERSION_GCM;
+        String legacy = encryptLegacy("legacy secret", iv);
+
+        assertFalse(cipher.isLegacyFormat(legacy));
+        assertEquals("legacy secret", cipher.decrypt(legacy));
+    }
+
+    @Test
+    public void treatsShortRecordsAsLegacy() throws Exception {
+        byte[] record = cipher.encrypt("secret".getBytes("UTF-8"));
+        byte[] truncated = Arrays.copyOf(record, SensitiveDataCipher.HEADER_LENGTH + SensitiveDataCipher.GCM_IV_LENGTH);
+
+        assertTrue(cipher.isLegacyFormat(Platform.get().getBase64Codec().encodeToString(truncated, false)));
+    }
+
+    @Test
+    public void ignoresEmptyData() throws Exception {
+        assertNull(cipher.encrypt(""));
+        assertNull(cipher.decrypt((String) null));
+        assertFalse(cipher.isLegacyFormat(""));
+    }
+
+    @Test
+    public void roundTripsNonAsciiData() throws Exception {
+        byte[] data = "Nikkilä ✓".getBytes("UTF-8");
+        assertArrayEquals(data, cipher.decrypt(cipher.encrypt(data)));
+    }
+
+    /**
+     * AES-CBC with PKCS#7 padding and the IV prefixed, as the former implementations wrote it.
+     */
+    private String encryptLegacy(String data) throws Exception {
+        byte[] iv = new byte[LEGACY_IV_LENGTH];
+        new SecureRandom().nextBytes(iv);
+        return encryptLegacy(data, iv);
+    }
+
+    private String encryptLegacy(String data, byte[] iv) throws Exception {
+        Cipher cbc = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cbc.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes, "AES"), new IvParameterSpec(iv));
+        byte[] encrypted = cbc.doFinal(data.getBytes("UTF-8"));
+
+        byte[] legacy = new byte[iv.length + encrypted.length];
+        System.arraycopy(iv, 0, legacy, 0, iv.length);
+        System.arraycopy(encrypted, 0, legacy, iv.length, encrypted.length);
+        return Platform.get().getBase64Codec().encodeToString(legacy, false);
+    }
+
+    /**
+     * The record layout over the JCE, with the key in memory.
+     */
+    private static class InMemoryCipher extends SensitiveDataCipher {
+
+        private final SecretKey key;
+
+        InMemoryCipher(byte[] key) {
+            this.key = new SecretKeySpec(key, CIPHER_ALGO);
+        }
+
+        @Override
+        protected byte getKeyVersion() {
+            return KEY_VERSION;
+        }
+
+        @Override
+        protected byte[] seal(byte[] header, byte[] data) {
+            try {
+                return JceCipher.seal(key, header, data);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        protected byte[] open(byte[] header, byte[] data, int offset) {
+            try {
+                return JceCipher.open(key, header, data, offset);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        protected byte[] decryptLegacy(byte[] data) {
+            try {
+                // PKCS#5 and PKCS#7 paddings are the same for AES, only the name differs
+                Cipher cbc = Cipher.getInstance("AES/CBC/PKCS5Padding");
+                cbc.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(data, 0, LEGACY_IV_LENGTH));
+                return cbc.doFinal(data, LEGACY_IV_LENGTH, data.length - LEGACY_IV_LENGTH);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.lnikkila.oidc.userinfo;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class UserInfoTest {
+
+    private final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(UserInfo.class, new UserInfo.Adapter())
+            .create();
+
+    @Test
+    public void readsIntegersBeyondDoublePrecision() {
+        UserInfo userInfo = gson.fromJson("{\"sub\":\"248289761001\",\"updated_at\":9007199254740993}", UserInfo.class);
+
+        assertEquals(Long.valueOf(9007199254740993L), userInfo.getUpdatedAt());
+    }
+
+    @Test
+    public void ignoresNonIntegerNumbers() {
+        UserInfo userInfo = gson.fromJson("{\"updated_at\":1311280970.5,\"sub\":\"248289761001\"}", UserInfo.class);
+
+        assertNull(userInfo.getUpdatedAt());
+        assertEquals("248289761001", userInfo.getSubject());
+    }
+}
@@ -0,0 +1,136 @@
+package com.lnikkila.oidc.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    private static final int CALLERS = 8;
+
+    @Test
+    public void runsSequentialCallsEachTime() throws Exception {
+        SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+        final AtomicInteger runs = new AtomicInteger();
+        Callable<Integer> work = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return runs.incrementAndGet();
+            }
+        };
+
+        assertEquals(1, (int) singleFlight.execute("account", work));
+        assertEquals(2, (int) singleFlight.execute("account", work));
+        assertEquals(2, singleFlight.getExecutionCount());
+        assertEquals(0, singleFlight.getDeduplicatedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void sharesResultWithConcurrentCallers() throws Exception {
+        final SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            // The first caller holds the work until the others are waiting for it
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return singleFlight.execute("account", new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            started.countDown();
+                            release.await();
+                            return runs.incrementAndGet();
+                        }
+                    });
+                }
+            }));
+            started.await();
+            for (int i = 1; i < CALLERS; i++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return singleFlight.execute("account", new Callable<Integer>() {
+                            @Override
+                            public Integer call() {
+                                return runs.incrementAndGet();
+                            }
+                        });
+                    }
+                }));
+            }
+            while (singleFlight.getDeduplicatedCount() < CALLERS - 1) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            for (Future<Integer> result : results) {
+                assertEquals(1, (int) result.get());
+            }
+            assertEquals(1, runs.get());
+            assertEquals(1, singleFlight.getExecutionCount());
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void keepsKeysIndependent() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+
+        assertEquals("first", singleFlight.execute("first", new Constant("first")));
+        assertEquals("second", singleFlight.execute("second", new Constant("second")));
+        assertEquals(2, singleFlight.getExecutionCount());
+    }
+
+    @Test
+    public void propagatesFailureAndForgetsIt() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        try {
+            singleFlight.execute("account", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    throw new IOException("offline");
+                }
+            });
+            fail("The failure of the work wasn't propagated");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+
+        // The failed work isn't kept, the next call runs again
+        assertEquals("online", singleFlight.execute("account", new Constant("online")));
+    }
+
+    private static class Constant implements Callable<String> {
+        private final String value;
+
+        Constant(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String call() {
+            return value;
+        }
+    }
+}
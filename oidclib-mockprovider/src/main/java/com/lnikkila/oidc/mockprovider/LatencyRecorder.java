@@ -0,0 +1,137 @@
+package com.lnikkila.oidc.mockprovider;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the latency of every operation of a load run, by operation name, and reports their
+ * percentiles.
+ */
+public class LatencyRecorder {
+
+    private final Map<String, Samples> samples = new TreeMap<>();
+
+    /**
+     * @param operation the operation name, i.e. "refresh"
+     * @param startNanos the {@link System#nanoTime()} when the operation started
+     * @param success false when the operation failed, its latency is recorded all the same
+     */
+    public void record(String operation, long startNanos, boolean success) {
+        long latency = System.nanoTime() - startNanos;
+        Samples operationSamples;
+        synchronized (samples) {
+            operationSamples = samples.get(operation);
+            if (operationSamples == null) {
+                operationSamples = new Samples();
+                samples.put(operation, operationSamples);
+            }
+        }
+        operationSamples.add(latency, success);
+    }
+
+    /**
+     * @return the total number of recorded operations, failed ones included
+     */
+    public long getCount() {
+        long count = 0;
+        synchronized (samples) {
+            for (Samples operationSamples : samples.values()) {
+                count += operationSamples.getCount();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param operation the operation name
+     * @return the number of times the operation was recorded, failed ones included
+     */
+    public long getCount(String operation) {
+        Samples operationSamples;
+        synchronized (samples) {
+            operationSamples = samples.get(operation);
+        }
+        return operationSamples != null ? operationSamples.getCount() : 0;
+    }
+
+    /**
+     * @param operation the operation name
+     * @return the number of times the operation failed
+     */
+    public long getErrorCount(String operation) {
+        Samples operationSamples;
+        synchronized (samples) {
+            operationSamples = samples.get(operation);
+        }
+        return operationSamples != null ? operationSamples.getErrorCount() : 0;
+    }
+
+    /**
+     * @return a table of the count, failures and p50/p99/max latency of every operation
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder(String.format(Locale.US, "%1$-12s %2$8s %3$8s %4$10s %5$10s %6$10s%n",
+                "operation", "count", "errors", "p50 (ms)", "p99 (ms)", "max (ms)"));
+        synchronized (samples) {
+            for (Map.Entry<String, Samples> entry : samples.entrySet()) {
+                long[] sorted = entry.getValue().sorted();
+                report.append(String.format(Locale.US, "%1$-12s %2$8d %3$8d %4$10.2f %5$10.2f %6$10.2f%n",
+                        entry.getKey(), sorted.length, entry.getValue().getErrorCount(),
+                        toMillis(percentile(sorted, 50)), toMillis(percentile(sorted, 99)),
+                        toMillis(sorted.length > 0 ? sorted[sorted.length - 1] : 0)));
+            }
+        }
+        return report.toString();
+    }
+
+    /**
+     * Nearest-rank percentile of sorted latencies.
+     */
+    static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * The latencies of one operation, in a growing array.
+     */
+    private static class Samples {
+        private long[] latencies = new long[1024];
+        private int count;
+        private int errorCount;
+
+        synchronized void add(long latency, boolean success) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+            if (!success) {
+                errorCount++;
+            }
+        }
+
+        synchronized int getCount() {
+            return count;
+        }
+
+        synchronized int getErrorCount() {
+            return errorCount;
+        }
+
+        synchronized long[] sorted() {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.lnikkila.oidc.mockprovider;
+
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.http.UrlEncodedParser;
+import com.lnikkila.oidc.OIDCProtocolClient;
+import com.lnikkila.oidc.http.OIDCHttpTransport;
+import com.lnikkila.oidc.metrics.HistogramMetrics;
+import com.lnikkila.oidc.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs simulated accounts against a {@link MockProvider} through the library: each account logs in
+ * with the code flow, then refreshes its tokens and reads its user information a number of times.
+ * Reports the p50/p99 latency of every operation and the overall requests per second, followed
+ * by the library's own {@link HistogramMetrics}.
+ * <br/>
+ * Usage: {@code LoadDriver [--accounts 50] [--threads 16] [--iterations 20] [--latency-ms 0]
+ * [--error-rate 0] [--access-token-lifetime-s 3600]}
+ */
+public class LoadDriver {
+
+    //region Constants
+
+    private static final String REDIRECT_URL = "com.lnikkila.oidc.loaddriver:/callback";
+
+    public static final String OPERATION_AUTHORIZE  = "authorize";
+    public static final String OPERATION_CODE       = "code";
+    public static final String OPERATION_REFRESH    = "refresh";
+    public static final String OPERATION_USERINFO   = "userinfo";
+
+    //endregion
+
+    private final MockProvider provider;
+    private final OIDCProtocolClient client;
+    private final int iterations;
+    private final LatencyRecorder recorder = new LatencyRecorder();
+    private final AtomicInteger loggedInCount = new AtomicInteger();
+    private final AtomicReference<IOException> firstLoginFailure = new AtomicReference<>();
+
+    public LoadDriver(MockProvider provider, OIDCHttpTransport transport, int iterations) {
+        this.provider = provider;
+        this.iterations = iterations;
+        this.client = new OIDCProtocolClient(transport)
+                .setClientId(provider.getClientId())
+                .setClientSecret(provider.getClientSecret())
+                .setRedirectUrl(REDIRECT_URL)
+                .setScopes(new String[]{"openid", "profile", "email", "offline_access"})
+                .setFlowType(OIDCProtocolClient.Flows.Code)
+                .setIssuerId(provider.getIssuer())
+                .setAuthorizationEndpoint(provider.getAuthorizationEndpoint())
+                .setTokenEndpoint(provider.getTokenEndpoint())
+                .setUserInfoEndpoint(provider.getUserInfoEndpoint())
+                .setJwksEndpoint(provider.getJwksEndpoint())
+                .setRevocationEndpoint(provider.getRevocationEndpoint())
+                .setEndSessionEndpoint(provider.getEndSessionEndpoint());
+    }
+
+    public LatencyRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * @return the number of accounts that got their tokens and went on to the refreshes
+     */
+    public int getLoggedInCount() {
+        return loggedInCount.get();
+    }
+
+    /**
+     * @return the first failure of a login, null if every account logged in
+     */
+    public IOException getFirstLoginFailure() {
+        return firstLoginFailure.get();
+    }
+
+    /**
+     * Runs the accounts concurrently and waits for all of them.
+     * @param accounts the number of simulated accounts
+     * @param threads the number of accounts running at the same time
+     * @return the wall clock duration of the run, in nanoseconds
+     */
+    public long run(int accounts, int threads) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch done = new CountDownLatch(accounts);
+        long start = System.nanoTime();
+        for (int i = 0; i < accounts; i++) {
+            final String subject = "account-" + i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runAccount(subject);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+        long duration = System.nanoTime() - start;
+        executor.shutdown();
+        return duration;
+    }
+
+    /**
+     * One account: a login, then {@link #iterations} refreshes and userinfo requests. A failed
+     * request is recorded and the account carries on with the tokens it has, like the app would.
+     */
+    private void runAccount(String subject) {
+        String code;
+        long start = System.nanoTime();
+        try {
+            code = authorize(subject);
+            recorder.record(OPERATION_AUTHORIZE, start, true);
+        } catch (IOException e) {
+            recorder.record(OPERATION_AUTHORIZE, start, false);
+            firstLoginFailure.compareAndSet(null, e);
+            return;
+        }
+
+        TokenResponse tokens;
+        start = System.nanoTime();
+        try {
+            tokens = client.requestTokensWithCodeGrant(code);
+            recorder.record(OPERATION_CODE, start, true);
+        } catch (IOException e) {
+            recorder.record(OPERATION_CODE, start, false);
+            firstLoginFailure.compareAndSet(null, e);
+            return;
+        }
+        loggedInCount.incrementAndGet();
+        String accessToken = tokens.getAccessToken();
+        String refreshToken = tokens.getRefreshToken();
+
+        for (int i = 0; i < iterations; i++) {
+            start = System.nanoTime();
+            try {
+                tokens = client.refreshTokens(refreshToken);
+                recorder.record(OPERATION_REFRESH, start, true);
+                accessToken = tokens.getAccessToken();
+                if (tokens.getRefreshToken() != null) {
+                    refreshToken = tokens.getRefreshToken();
+                }
+            } catch (IOException e) {
+                recorder.record(OPERATION_REFRESH, start, false);
+            }
+
+            start = System.nanoTime();
+            try {
+                client.getUserInfo(accessToken);
+                recorder.record(OPERATION_USERINFO, start, true);
+            } catch (IOException e) {
+                recorder.record(OPERATION_USERINFO, start, false);
+            }
+        }
+    }
+
+    /**
+     * Plays the WebView's part: loads the authorization url and reads the code from the redirect.
+     */
+    private String authorize(String subject) throws IOException {
+        String state = OIDCProtocolClient.generateStateToken("MockProvider");
+        URL url = new URL(client.getAuthenticationUrl(state) + "&login_hint=" + URLEncoder.encode(subject, "UTF-8"));
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setInstanceFollowRedirects(false);
+        try {
+            String location = connection.getHeaderField("Location");
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_MOVED_TEMP || location == null
+                    || !client.isRedirectUrl(location)) {
+                throw new IOException("Authorization failed with HTTP " + connection.getResponseCode());
+            }
+
+            Map<String, Object> parameters = new HashMap<>();
+            UrlEncodedParser.parse(location.substring(location.indexOf('?') + 1), parameters);
+            if (!state.equals(first(parameters.get("state")))) {
+                throw new IOException("Local and returned states don't match");
+            }
+            return first(parameters.get("code"));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String first(Object value) {
+        if (value instanceof Collection) {
+            Collection<?> values = (Collection<?>) value;
+            value = values.isEmpty() ? null : values.iterator().next();
+        }
+        return value != null ? value.toString() : null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int accounts = 50;
+        int threads = 16;
+        int iterations = 20;
+        long latencyMs = 0;
+        double errorRate = 0;
+        long accessTokenLifetimeS = TimeUnit.HOURS.toSeconds(1);
+        boolean noLogin = false;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--accounts":
+                    accounts = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--latency-ms":
+                    latencyMs = Long.parseLong(args[i + 1]);
+                    break;
+                case "--error-rate":
+                    errorRate = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--access-token-lifetime-s":
+                    accessTokenLifetimeS = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        MockProvider provider = new MockProvider.Builder()
+                .setLatency(latencyMs, TimeUnit.MILLISECONDS)
+                .setErrorRate(errorRate)
+                .setAccessTokenLifetime(accessTokenLifetimeS, TimeUnit.SECONDS)
+                .build()
+                .start();
+        // Enough pooled connections for every thread, so they aren't reopened between requests. The
+        // driver owns the process, so it can size the JDK pool before the first connection.
+        System.setProperty("http.maxConnections", String.valueOf(threads));
+        OIDCHttpTransport transport = new OIDCHttpTransport.Builder().build();
+        HistogramMetrics metrics = new HistogramMetrics();
+        Metrics.set(metrics);
+        try {
+            LoadDriver driver = new LoadDriver(provider, transport, iterations);
+            long duration = driver.run(accounts, threads);
+
+            double seconds = duration / (double) TimeUnit.SECONDS.toNanos(1);
+            System.out.printf(Locale.US, "%1$d accounts, %2$d threads, %3$d iterations in %4$.2f s%n",
+                    accounts, threads, iterations, seconds);
+            System.out.print(driver.getRecorder().report());
+            System.out.printf(Locale.US, "%1$.1f operations/s, %2$.1f provider requests/s (%3$d injected errors)%n",
+                    driver.getRecorder().getCount() / seconds, provider.getRequestCount() / seconds,
+                    provider.getInjectedErrorCount());
+            System.out.println();
+            System.out.print(metrics.dump());
+
+            if (driver.getFirstLoginFailure() != null) {
+                // Without a login nothing else is measured, so don't let it go unnoticed
+                System.err.printf(Locale.US, "%1$d of %2$d accounts could not log in, the first failure was:%n",
+                        accounts - driver.getLoggedInCount(), accounts);
+                driver.getFirstLoginFailure().printStackTrace();
+                noLogin = driver.getLoggedInCount() == 0;
+            }
+        } finally {
+            provider.stop();
+            Metrics.set(null);
+        }
+        if (noLogin) {
+            System.exit(1);
+        }
+    }
+}
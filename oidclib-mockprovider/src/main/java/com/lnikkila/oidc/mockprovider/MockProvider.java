@@ -0,0 +1,719 @@
+package com.lnikkila.oidc.mockprovider;
+
+import com.google.api.client.auth.openidconnect.IdToken;
+import com.google.api.client.http.UrlEncodedParser;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import com.google.api.client.util.Base64;
+import com.google.api.client.util.StringUtils;
+import com.google.gson.Gson;
+import com.lnikkila.oidc.platform.Log;
+import com.lnikkila.oidc.util.Strings;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An embeddable OpenID Provider on the loopback interface, to run the library flows end to end
+ * without a real provider: authorization, token, userinfo, JWKS, revocation, end session and
+ * discovery endpoints.
+ * <br/>
+ * The authorization endpoint grants every request straight away, to the End-User named by the
+ * {@code login_hint} parameter (or {@link #DEFAULT_SUBJECT}); the token endpoint accepts the
+ * authorization code, refresh token and password grants. ID Tokens are signed with RS256.
+ * <br/>
+ * Latency, failures and token lifetimes are set on the {@link Builder}, i.e.:
+ * <pre>
+ * MockProvider provider = new MockProvider.Builder()
+ *         .setLatency(50, TimeUnit.MILLISECONDS)
+ *         .setErrorRate(0.01)
+ *         .build()
+ *         .start();
+ * </pre>
+ */
+public class MockProvider {
+
+    private static final String TAG = "MockProvider";
+
+    //region Constants
+
+    public static final String DEFAULT_CLIENT_ID        = "mock-client";
+    public static final String DEFAULT_CLIENT_SECRET    = "mock-client-secret";
+    public static final String DEFAULT_SUBJECT          = "mock-user";
+
+    public static final String AUTHORIZATION_PATH       = "/authorize";
+    public static final String TOKEN_PATH               = "/token";
+    public static final String USERINFO_PATH            = "/userinfo";
+    public static final String JWKS_PATH                = "/jwks";
+    public static final String REVOCATION_PATH          = "/revoke";
+    public static final String END_SESSION_PATH         = "/logout";
+    public static final String DISCOVERY_PATH           = "/.well-known/openid-configuration";
+
+    private static final String KEY_ID                  = "mock-key";
+    private static final int USERINFO_MAX_AGE_SECONDS   = 60;
+
+    //endregion
+
+    private final String clientId;
+    private final String clientSecret;
+    private final long latencyMs;
+    private final double errorRate;
+    private final long codeLifetimeMs;
+    private final long accessTokenLifetimeMs;
+    private final long idTokenLifetimeMs;
+    private final long refreshTokenLifetimeMs;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String issuer;
+
+    private final KeyPair keyPair;
+    private final JsonFactory jsonFactory = GsonFactory.getDefaultInstance();
+    private final Gson gson = new Gson();
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    private final ConcurrentMap<String, Grant> codes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Grant> accessTokens = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Grant> refreshTokens = new ConcurrentHashMap<>();
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong injectedErrorCount = new AtomicLong();
+
+    private MockProvider(Builder builder) throws IOException {
+        this.clientId = builder.clientId;
+        this.clientSecret = builder.clientSecret;
+        this.latencyMs = builder.latencyMs;
+        this.errorRate = builder.errorRate;
+        this.codeLifetimeMs = builder.codeLifetimeMs;
+        this.accessTokenLifetimeMs = builder.accessTokenLifetimeMs;
+        this.idTokenLifetimeMs = builder.idTokenLifetimeMs;
+        this.refreshTokenLifetimeMs = builder.refreshTokenLifetimeMs;
+
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            this.keyPair = generator.generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("RSA is not available", e);
+        }
+
+        // The JDK server writes the headers and the body separately, with Nagle's algorithm every
+        // response would wait for the client delayed ACK (~40 ms) and skew the latencies
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), builder.port), 0);
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "OIDCMockProvider-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.server.setExecutor(executor);
+        this.issuer = String.format("http://%1$s:%2$d", server.getAddress().getHostString(), server.getAddress().getPort());
+
+        server.createContext(AUTHORIZATION_PATH, new Endpoint() {
+            @Override
+            void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+                authorize(exchange, parameters);
+            }
+        });
+        server.createContext(TOKEN_PATH, new Endpoint() {
+            @Override
+            void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+                token(exchange, parameters);
+            }
+        });
+        server.createContext(USERINFO_PATH, new Endpoint() {
+            @Override
+            void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+                userInfo(exchange);
+            }
+        });
+        server.createContext(JWKS_PATH, new Endpoint() {
+            @Override
+            void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+                jwks(exchange);
+            }
+        });
+        server.createContext(REVOCATION_PATH, new Endpoint() {
+            @Override
+            void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+                revoke(exchange, parameters);
+            }
+        });
+        server.createContext(END_SESSION_PATH, new Endpoint() {
+            @Override
+            void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+                endSession(exchange, parameters);
+            }
+        });
+        server.createContext(DISCOVERY_PATH, new Endpoint() {
+            @Override
+            void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+                discovery(exchange);
+            }
+        });
+    }
+
+    //region Lifecycle
+
+    public MockProvider start() {
+        server.start();
+        Log.i(TAG, "Mock provider listening on %1$s", issuer);
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    //endregion
+
+    //region Setters/Getters
+
+    /**
+     * @return the issuer identifier, also the base url of the endpoints (i.e. http://127.0.0.1:port)
+     */
+    public String getIssuer() {
+        return issuer;
+    }
+
+    public String getAuthorizationEndpoint() {
+        return issuer + AUTHORIZATION_PATH;
+    }
+
+    public String getTokenEndpoint() {
+        return issuer + TOKEN_PATH;
+    }
+
+    public String getUserInfoEndpoint() {
+        return issuer + USERINFO_PATH;
+    }
+
+    public String getJwksEndpoint() {
+        return issuer + JWKS_PATH;
+    }
+
+    public String getRevocationEndpoint() {
+        return issuer + REVOCATION_PATH;
+    }
+
+    public String getEndSessionEndpoint() {
+        return issuer + END_SESSION_PATH;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getClientSecret() {
+        return clientSecret;
+    }
+
+    /**
+     * @return the number of requests served, injected errors included
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getInjectedErrorCount() {
+        return injectedErrorCount.get();
+    }
+
+    //endregion
+
+    //region Endpoints
+
+    private void authorize(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+        String redirectUri = parameters.get("redirect_uri");
+        String responseType = parameters.get("response_type");
+        if (!clientId.equals(parameters.get("client_id")) || Strings.isEmpty(redirectUri) || Strings.isEmpty(responseType)) {
+            sendError(exchange, 400, "invalid_request");
+            return;
+        }
+
+        String subject = !Strings.isEmpty(parameters.get("login_hint")) ? parameters.get("login_hint") : DEFAULT_SUBJECT;
+        Grant grant = new Grant(subject, parameters.get("scope"), parameters.get("nonce"), redirectUri);
+        Collection<String> responseTypes = Arrays.asList(responseType.split(" "));
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        if (responseTypes.contains("code")) {
+            String code = newToken();
+            codes.put(code, grant.expiringIn(codeLifetimeMs));
+            response.put("code", code);
+        }
+        String accessToken = null;
+        if (responseTypes.contains("token")) {
+            accessToken = issueAccessToken(grant);
+            response.put("access_token", accessToken);
+            response.put("token_type", "Bearer");
+            response.put("expires_in", TimeUnit.MILLISECONDS.toSeconds(accessTokenLifetimeMs));
+        }
+        if (responseTypes.contains("id_token")) {
+            response.put("id_token", newIdToken(grant, accessToken));
+        }
+        if (parameters.get("state") != null) {
+            response.put("state", parameters.get("state"));
+        }
+
+        // The code flow answers in the query, the implicit and hybrid flows in the fragment
+        char separator = responseTypes.size() == 1 && responseTypes.contains("code")
+                ? (redirectUri.contains("?") ? '&' : '?') : '#';
+        exchange.getResponseHeaders().set("Location", redirectUri + separator + toQuery(response));
+        sendEmpty(exchange, 302);
+    }
+
+    private void token(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+        if (!isAuthenticatedClient(exchange, parameters)) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"" + issuer + "\"");
+            sendError(exchange, 401, "invalid_client");
+            return;
+        }
+
+        String grantType = parameters.get("grant_type");
+        Grant grant;
+        if ("authorization_code".equals(grantType)) {
+            // Codes are single use
+            grant = valid(codes.remove(String.valueOf(parameters.get("code"))));
+            if (grant != null && !grant.redirectUri.equals(parameters.get("redirect_uri"))) {
+                grant = null;
+            }
+        } else if ("refresh_token".equals(grantType)) {
+            grant = valid(refreshTokens.get(String.valueOf(parameters.get("refresh_token"))));
+        } else if ("password".equals(grantType)) {
+            grant = !Strings.isEmpty(parameters.get("username"))
+                    ? new Grant(parameters.get("username"), parameters.get("scope"), null, null) : null;
+        } else {
+            sendError(exchange, 400, "unsupported_grant_type");
+            return;
+        }
+        if (grant == null) {
+            sendError(exchange, 400, "invalid_grant");
+            return;
+        }
+
+        String accessToken = issueAccessToken(grant);
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("access_token", accessToken);
+        response.put("token_type", "Bearer");
+        response.put("expires_in", TimeUnit.MILLISECONDS.toSeconds(accessTokenLifetimeMs));
+        if (!"refresh_token".equals(grantType)) {
+            String refreshToken = newToken();
+            refreshTokens.put(refreshToken, grant.expiringIn(refreshTokenLifetimeMs));
+            response.put("refresh_token", refreshToken);
+        }
+        response.put("id_token", newIdToken(grant, accessToken));
+        if (grant.scope != null) {
+            response.put("scope", grant.scope);
+        }
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        sendJson(exchange, 200, response);
+    }
+
+    private void userInfo(HttpExchange exchange) throws IOException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        Grant grant = null;
+        if (authorization != null && authorization.startsWith("Bearer ")) {
+            grant = valid(accessTokens.get(authorization.substring("Bearer ".length())));
+        }
+        if (grant == null) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer error=\"invalid_token\"");
+            sendError(exchange, 401, "invalid_token");
+            return;
+        }
+
+        Map<String, Object> claims = new LinkedHashMap<>();
+        claims.put("sub", grant.subject);
+        claims.put("name", "Mock User " + grant.subject);
+        claims.put("preferred_username", grant.subject);
+        claims.put("email", grant.subject + "@mock.example.com");
+        claims.put("email_verified", true);
+        byte[] body = StringUtils.getBytesUtf8(gson.toJson(claims));
+
+        String etag = '"' + Integer.toHexString(Arrays.hashCode(body)) + '"';
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Cache-Control", "private, max-age=" + USERINFO_MAX_AGE_SECONDS);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            sendEmpty(exchange, 304);
+        } else {
+            send(exchange, 200, "application/json", body);
+        }
+    }
+
+    private void jwks(HttpExchange exchange) throws IOException {
+        RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+        Map<String, Object> key = new LinkedHashMap<>();
+        key.put("kty", "RSA");
+        key.put("use", "sig");
+        key.put("alg", "RS256");
+        key.put("kid", KEY_ID);
+        key.put("n", toBase64UrlUInt(publicKey.getModulus()));
+        key.put("e", toBase64UrlUInt(publicKey.getPublicExponent()));
+
+        exchange.getResponseHeaders().set("Cache-Control", "public, max-age=3600");
+        sendJson(exchange, 200, Collections.singletonMap("keys", Collections.singletonList(key)));
+    }
+
+    private void revoke(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+        if (!isAuthenticatedClient(exchange, parameters)) {
+            sendError(exchange, 401, "invalid_client");
+            return;
+        }
+        // RFC 7009: unknown tokens are not an error
+        String token = String.valueOf(parameters.get("token"));
+        accessTokens.remove(token);
+        refreshTokens.remove(token);
+        sendEmpty(exchange, 200);
+    }
+
+    private void endSession(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+        String postLogoutRedirectUri = parameters.get("post_logout_redirect_uri");
+        if (Strings.isEmpty(postLogoutRedirectUri)) {
+            send(exchange, 200, "text/plain", StringUtils.getBytesUtf8("Logged out"));
+            return;
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        if (parameters.get("state") != null) {
+            response.put("state", parameters.get("state"));
+        }
+        exchange.getResponseHeaders().set("Location", response.isEmpty() ? postLogoutRedirectUri
+                : postLogoutRedirectUri + (postLogoutRedirectUri.contains("?") ? '&' : '?') + toQuery(response));
+        sendEmpty(exchange, 302);
+    }
+
+    private void discovery(HttpExchange exchange) throws IOException {
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put("issuer", issuer);
+        metadata.put("authorization_endpoint", getAuthorizationEndpoint());
+        metadata.put("token_endpoint", getTokenEndpoint());
+        metadata.put("userinfo_endpoint", getUserInfoEndpoint());
+        metadata.put("jwks_uri", getJwksEndpoint());
+        metadata.put("revocation_endpoint", getRevocationEndpoint());
+        metadata.put("end_session_endpoint", getEndSessionEndpoint());
+        metadata.put("response_types_supported", Arrays.asList("code", "id_token token", "code id_token"));
+        metadata.put("grant_types_supported", Arrays.asList("authorization_code", "refresh_token", "password"));
+        metadata.put("subject_types_supported", Collections.singletonList("public"));
+        metadata.put("id_token_signing_alg_values_supported", Collections.singletonList("RS256"));
+
+        exchange.getResponseHeaders().set("Cache-Control", "public, max-age=86400");
+        sendJson(exchange, 200, metadata);
+    }
+
+    //endregion
+
+    //region Helper methods
+
+    private String issueAccessToken(Grant grant) {
+        String accessToken = newToken();
+        accessTokens.put(accessToken, grant.expiringIn(accessTokenLifetimeMs));
+        return accessToken;
+    }
+
+    private String newIdToken(Grant grant, String accessToken) throws IOException {
+        long now = System.currentTimeMillis() / 1000;
+        IdToken.Payload payload = new IdToken.Payload();
+        payload.setIssuer(issuer);
+        payload.setAudience(clientId);
+        payload.setSubject(grant.subject);
+        payload.setIssuedAtTimeSeconds(now);
+        payload.setExpirationTimeSeconds(now + TimeUnit.MILLISECONDS.toSeconds(idTokenLifetimeMs));
+        if (!Strings.isEmpty(grant.nonce)) {
+            payload.setNonce(grant.nonce);
+        }
+
+        JsonWebSignature.Header header = new JsonWebSignature.Header();
+        header.setAlgorithm("RS256");
+        header.setType("JWT");
+        header.setKeyId(KEY_ID);
+        try {
+            if (accessToken != null) {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(StringUtils.getBytesUtf8(accessToken));
+                payload.setAccessTokenHash(Base64.encodeBase64URLSafeString(Arrays.copyOf(digest, digest.length / 2)));
+            }
+            return JsonWebSignature.signUsingRsaSha256(keyPair.getPrivate(), jsonFactory, header, payload);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not sign the ID Token", e);
+        }
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[32];
+        secureRandom.nextBytes(bytes);
+        return Base64.encodeBase64URLSafeString(bytes);
+    }
+
+    /**
+     * @return the grant, or null when there is none or it has expired
+     */
+    private static Grant valid(Grant grant) {
+        return grant != null && System.currentTimeMillis() < grant.expiresAt ? grant : null;
+    }
+
+    private boolean isAuthenticatedClient(HttpExchange exchange, Map<String, String> parameters) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization != null && authorization.startsWith("Basic ")) {
+            String credentials = StringUtils.newStringUtf8(Base64.decodeBase64(authorization.substring("Basic ".length())));
+            return credentials.equals(clientId + ":" + clientSecret);
+        }
+        // A public client, only when the provider has no secret for it
+        return Strings.isEmpty(clientSecret) && clientId.equals(parameters.get("client_id"));
+    }
+
+    private static String toBase64UrlUInt(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        // Drop the sign byte of the two's complement representation
+        if (bytes.length > 1 && bytes[0] == 0) {
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        return Base64.encodeBase64URLSafeString(bytes);
+    }
+
+    private static String toQuery(Map<String, Object> parameters) throws IOException {
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+            if (query.length() > 0) {
+                query.append('&');
+            }
+            query.append(URLEncoder.encode(parameter.getKey(), "UTF-8"))
+                    .append('=')
+                    .append(URLEncoder.encode(String.valueOf(parameter.getValue()), "UTF-8"));
+        }
+        return query.toString();
+    }
+
+    private void sendError(HttpExchange exchange, int status, String error) throws IOException {
+        sendJson(exchange, status, Collections.singletonMap("error", error));
+    }
+
+    private void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        send(exchange, status, "application/json", StringUtils.getBytesUtf8(gson.toJson(body)));
+    }
+
+    private static void sendEmpty(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+        // Closing the exchange without having opened its streams drops the connection, after
+        // a response that didn't say so: the client would then reuse a closed connection
+        exchange.getResponseBody().close();
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    //endregion
+
+    /**
+     * An endpoint: waits for the configured latency, fails at the configured rate, then handles the
+     * request with its query and form parameters.
+     */
+    private abstract class Endpoint implements HttpHandler {
+
+        abstract void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            requestCount.incrementAndGet();
+            try {
+                if (latencyMs > 0) {
+                    Thread.sleep(latencyMs);
+                }
+                if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                    injectedErrorCount.incrementAndGet();
+                    sendError(exchange, 503, "temporarily_unavailable");
+                    return;
+                }
+                handle(exchange, readParameters(exchange));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, e, "Could not handle %1$s", exchange.getRequestURI());
+                sendError(exchange, 500, "server_error");
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private Map<String, String> readParameters(HttpExchange exchange) throws IOException {
+            Map<String, Object> parsed = new HashMap<>();
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query != null) {
+                UrlEncodedParser.parse(query, parsed);
+            }
+            if ("POST".equals(exchange.getRequestMethod())) {
+                UrlEncodedParser.parse(readBody(exchange.getRequestBody()), parsed);
+            }
+
+            // Single valued, as every OAuth parameter
+            Map<String, String> parameters = new HashMap<>();
+            for (Map.Entry<String, Object> parameter : parsed.entrySet()) {
+                Object value = parameter.getValue();
+                if (value instanceof Collection) {
+                    Collection<?> values = (Collection<?>) value;
+                    value = values.isEmpty() ? null : values.iterator().next();
+                }
+                parameters.put(parameter.getKey(), value != null ? value.toString() : null);
+            }
+            return parameters;
+        }
+
+        private String readBody(InputStream in) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+            return StringUtils.newStringUtf8(body.toByteArray());
+        }
+    }
+
+    /**
+     * What a code or a token was issued for.
+     */
+    private static class Grant {
+        final String subject;
+        final String scope;
+        final String nonce;
+        final String redirectUri;
+        final long expiresAt;
+
+        Grant(String subject, String scope, String nonce, String redirectUri) {
+            this(subject, scope, nonce, redirectUri, Long.MAX_VALUE);
+        }
+
+        private Grant(String subject, String scope, String nonce, String redirectUri, long expiresAt) {
+            this.subject = subject;
+            this.scope = scope;
+            this.nonce = nonce;
+            this.redirectUri = redirectUri;
+            this.expiresAt = expiresAt;
+        }
+
+        Grant expiringIn(long lifetimeMs) {
+            return new Grant(subject, scope, nonce, redirectUri, System.currentTimeMillis() + lifetimeMs);
+        }
+    }
+
+    /**
+     * Builder for {@link MockProvider}.
+     */
+    public static class Builder {
+        private int port;
+        private String clientId = DEFAULT_CLIENT_ID;
+        private String clientSecret = DEFAULT_CLIENT_SECRET;
+        private long latencyMs;
+        private double errorRate;
+        private long codeLifetimeMs = TimeUnit.MINUTES.toMillis(1);
+        private long accessTokenLifetimeMs = TimeUnit.HOURS.toMillis(1);
+        private long idTokenLifetimeMs = TimeUnit.HOURS.toMillis(1);
+        private long refreshTokenLifetimeMs = TimeUnit.DAYS.toMillis(30);
+
+        /**
+         * @param port the port to listen on, 0 (the default) for any free port
+         */
+        public Builder setPort(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder setClientId(String clientId) {
+            this.clientId = clientId;
+            return this;
+        }
+
+        /**
+         * @param clientSecret the secret of a confidential client, null for a public client
+         */
+        public Builder setClientSecret(String clientSecret) {
+            this.clientSecret = clientSecret;
+            return this;
+        }
+
+        /**
+         * Delays every response, to simulate the network and the provider processing time.
+         */
+        public Builder setLatency(long latency, TimeUnit unit) {
+            this.latencyMs = unit.toMillis(latency);
+            return this;
+        }
+
+        /**
+         * Fails this fraction of the requests (0 to 1) with a 503 temporarily_unavailable error.
+         */
+        public Builder setErrorRate(double errorRate) {
+            if (errorRate < 0 || errorRate > 1) {
+                throw new IllegalArgumentException("The error rate must be between 0 and 1");
+            }
+            this.errorRate = errorRate;
+            return this;
+        }
+
+        public Builder setCodeLifetime(long lifetime, TimeUnit unit) {
+            this.codeLifetimeMs = unit.toMillis(lifetime);
+            return this;
+        }
+
+        public Builder setAccessTokenLifetime(long lifetime, TimeUnit unit) {
+            this.accessTokenLifetimeMs = unit.toMillis(lifetime);
+            return this;
+        }
+
+        public Builder setIdTokenLifetime(long lifetime, TimeUnit unit) {
+            this.idTokenLifetimeMs = unit.toMillis(lifetime);
+            return this;
+        }
+
+        public Builder setRefreshTokenLifetime(long lifetime, TimeUnit unit) {
+            this.refreshTokenLifetimeMs = unit.toMillis(lifetime);
+            return this;
+        }
+
+        public MockProvider build() throws IOException {
+            return new MockProvider(this);
+        }
+    }
+}
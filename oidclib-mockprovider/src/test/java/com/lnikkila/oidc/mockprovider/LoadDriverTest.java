@@ -0,0 +1,56 @@
+package com.lnikkila.oidc.mockprovider;
+
+import com.lnikkila.oidc.http.OIDCHttpTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * A small load run end to end: every account logs in, so its refreshes and UserInfo requests are
+ * measured.
+ */
+public class LoadDriverTest {
+
+    //region Constants
+
+    private static final int ACCOUNTS   = 4;
+    private static final int ITERATIONS = 3;
+
+    //endregion
+
+    private MockProvider provider;
+
+    @Before
+    public void setUp() throws IOException {
+        provider = new MockProvider.Builder().build().start();
+    }
+
+    @After
+    public void tearDown() {
+        provider.stop();
+    }
+
+    @Test
+    public void measuresEveryOperation() throws InterruptedException {
+        LoadDriver driver = new LoadDriver(provider, new OIDCHttpTransport.Builder().build(), ITERATIONS);
+        driver.run(ACCOUNTS, 2);
+
+        assertNull(driver.getFirstLoginFailure());
+        assertEquals(ACCOUNTS, driver.getLoggedInCount());
+        LatencyRecorder recorder = driver.getRecorder();
+        for (String operation : new String[]{LoadDriver.OPERATION_AUTHORIZE, LoadDriver.OPERATION_CODE}) {
+            assertEquals(operation, ACCOUNTS, recorder.getCount(operation));
+            assertEquals(operation, 0, recorder.getErrorCount(operation));
+        }
+        for (String operation : new String[]{LoadDriver.OPERATION_REFRESH, LoadDriver.OPERATION_USERINFO}) {
+            assertEquals(operation, ACCOUNTS * ITERATIONS, recorder.getCount(operation));
+            assertEquals(operation, 0, recorder.getErrorCount(operation));
+        }
+    }
+}
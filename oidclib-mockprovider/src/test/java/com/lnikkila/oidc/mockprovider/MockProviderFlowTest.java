@@ -0,0 +1,156 @@
+package com.lnikkila.oidc.mockprovider;
+
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.auth.oauth2.TokenResponseException;
+import com.google.api.client.auth.openidconnect.IdToken;
+import com.google.api.client.auth.openidconnect.IdTokenResponse;
+import com.google.api.client.http.UrlEncodedParser;
+import com.lnikkila.oidc.OIDCProtocolClient;
+import com.lnikkila.oidc.http.OIDCHttpTransport;
+import com.lnikkila.oidc.userinfo.UserInfo;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the client against the mock provider over HTTP: code grant, refresh and UserInfo request,
+ * with the ID Token signatures checked against the provider JWKS.
+ */
+public class MockProviderFlowTest {
+
+    //region Constants
+
+    private static final String REDIRECT_URL    = "com.lnikkila.oidc.test:/callback";
+    private static final String SUBJECT         = "flow-test-user";
+
+    //endregion
+
+    /**
+     * Shared by the tests, the provider keys are generated once.
+     */
+    private static MockProvider provider;
+
+    private OIDCProtocolClient client;
+
+    @BeforeClass
+    public static void startProvider() throws IOException {
+        provider = new MockProvider.Builder().build().start();
+    }
+
+    @AfterClass
+    public static void stopProvider() {
+        provider.stop();
+    }
+
+    @Before
+    public void setUp() {
+        client = new OIDCProtocolClient(new OIDCHttpTransport.Builder().build())
+                .setClientId(provider.getClientId())
+                .setClientSecret(provider.getClientSecret())
+                .setRedirectUrl(REDIRECT_URL)
+                .setScopes(new String[]{"openid", "profile", "email", "offline_access"})
+                .setFlowType(OIDCProtocolClient.Flows.Code)
+                .setIssuerId(provider.getIssuer())
+                .setAuthorizationEndpoint(provider.getAuthorizationEndpoint())
+                .setTokenEndpoint(provider.getTokenEndpoint())
+                .setUserInfoEndpoint(provider.getUserInfoEndpoint())
+                .setJwksEndpoint(provider.getJwksEndpoint())
+                .setRevocationEndpoint(provider.getRevocationEndpoint());
+    }
+
+    @Test
+    public void exchangesCodeForValidTokens() throws IOException {
+        TokenResponse tokens = client.requestTokensWithCodeGrant(authorize(SUBJECT));
+
+        assertNotNull(tokens.getAccessToken());
+        assertNotNull(tokens.getRefreshToken());
+        assertTrue(tokens instanceof IdTokenResponse);
+        IdToken idToken = client.parseIdToken(((IdTokenResponse) tokens).getIdToken());
+        assertEquals(SUBJECT, idToken.getPayload().getSubject());
+        assertEquals(provider.getIssuer(), idToken.getPayload().getIssuer());
+    }
+
+    @Test
+    public void rejectsReusedCode() throws IOException {
+        String code = authorize(SUBJECT);
+        client.requestTokensWithCodeGrant(code);
+        try {
+            client.requestTokensWithCodeGrant(code);
+            fail("A code was exchanged twice");
+        } catch (TokenResponseException e) {
+            assertEquals("invalid_grant", e.getDetails().getError());
+        }
+    }
+
+    @Test
+    public void refreshesAndReadsUserInfo() throws IOException {
+        TokenResponse tokens = client.requestTokensWithCodeGrant(authorize(SUBJECT));
+
+        TokenResponse refreshed = client.refreshTokens(tokens.getRefreshToken());
+        assertNotEquals(tokens.getAccessToken(), refreshed.getAccessToken());
+
+        UserInfo userInfo = client.getUserInfo(refreshed.getAccessToken());
+        assertEquals(SUBJECT, userInfo.getSubject());
+        assertEquals(SUBJECT, userInfo.getPreferredUsername());
+    }
+
+    @Test
+    public void revokedRefreshTokenCanNotBeUsed() throws IOException {
+        TokenResponse tokens = client.requestTokensWithCodeGrant(authorize(SUBJECT));
+
+        client.revokeToken(tokens.getRefreshToken(), OIDCProtocolClient.TOKEN_TYPE_HINT_REFRESH);
+        try {
+            client.refreshTokens(tokens.getRefreshToken());
+            fail("A revoked refresh token was accepted");
+        } catch (TokenResponseException e) {
+            assertEquals("invalid_grant", e.getDetails().getError());
+        }
+    }
+
+    /**
+     * Plays the WebView's part: loads the authorization url and reads the code from the redirect.
+     */
+    private String authorize(String subject) throws IOException {
+        String state = OIDCProtocolClient.generateStateToken("MockProvider");
+        URL url = new URL(client.getAuthenticationUrl(state) + "&login_hint=" + URLEncoder.encode(subject, "UTF-8"));
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setInstanceFollowRedirects(false);
+        try {
+            assertEquals(HttpURLConnection.HTTP_MOVED_TEMP, connection.getResponseCode());
+            String location = connection.getHeaderField("Location");
+            assertTrue(client.isRedirectUrl(location));
+
+            Map<String, Object> parameters = new HashMap<>();
+            UrlEncodedParser.parse(location.substring(location.indexOf('?') + 1), parameters);
+            assertEquals(state, first(parameters.get("state")));
+            return first(parameters.get("code"));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String first(Object value) {
+        if (value instanceof Collection) {
+            Collection<?> values = (Collection<?>) value;
+            value = values.isEmpty() ? null : values.iterator().next();
+        }
+        return value != null ? value.toString() : null;
+    }
+}
@@ -10,6 +10,7 @@ import android.annotation.SuppressLint;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
@@ -21,9 +22,17 @@ import android.widget.Button;
 import android.widget.ProgressBar;
 import android.widget.Toast;
 
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
 import com.lnikkila.oidc.OIDCAccountManager;
+import com.lnikkila.oidc.OIDCRequestManager;
+import com.lnikkila.oidc.OIDCTokenBundle;
+import com.lnikkila.oidc.OIDCTokenRefreshScheduler;
+import com.lnikkila.oidc.authenticator.Authenticator;
 import com.lnikkila.oidc.authenticator.OIDCClientConfigurationActivity;
+import com.lnikkila.oidc.platform.Logger;
 import com.lnikkila.oidc.security.UserNotAuthenticatedWrapperException;
+import com.lnikkila.oidc.userinfo.UserInfo;
 
 import java.io.IOException;
 import java.util.Map;
@@ -51,6 +60,7 @@ public class HomeActivity extends AppCompatActivity {
 
     private ProgressBar progressBar;
     private OIDCAccountManager accountManager;
+    private OIDCRequestManager requestManager;
     private Account availableAccounts[];
 
     private int selectedAccountIndex;
@@ -62,6 +72,11 @@ public class HomeActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_home);
 
+        if (BuildConfig.DEBUG) {
+            // The library only logs from INFO up by default
+            com.lnikkila.oidc.platform.Log.setLevel(Logger.DEBUG);
+        }
+
         userInfoEndpoint = getString(R.string.op_userInfoEndpoint);
 
         loginButton = (Button) findViewById(R.id.loginButton);
@@ -71,6 +86,10 @@ public class HomeActivity extends AppCompatActivity {
         progressBar.setVisibility(View.INVISIBLE);
 
         accountManager = new OIDCAccountManager(this);
+        requestManager = new OIDCRequestManager(this);
+
+        // Refreshes the access tokens before they expire so requests don't have to wait for it
+        OIDCTokenRefreshScheduler.getInstance(this).start();
     }
 
     @Override
@@ -186,14 +205,14 @@ public class HomeActivity extends AppCompatActivity {
     }
 
     public void doLogout(View view) {
-        new LogoutTask(false).execute(availableAccounts[selectedAccountIndex]);
+        new LogoutTask(true).execute(availableAccounts[selectedAccountIndex]);
     }
 
     //endregion
 
     //region Background tasks
 
-    private class LoginTask extends AsyncTask<Account, Void, Map> {
+    private class LoginTask extends AsyncTask<Account, Void, UserInfo> {
 
         @Override
         protected void onPreExecute() {
@@ -202,15 +221,16 @@ public class HomeActivity extends AppCompatActivity {
         }
 
         /**
-         * Makes the API request. We could use the OIDCRequestManager.getUserInfo() method, but we'll do it
-         * like this to illustrate making generic API requests after we've logged in.
+         * Gets the user info. After the first login it is served by the library cache, or
+         * revalidated with a conditional request, rather than downloaded again.
          */
         @Override
-        protected Map doInBackground(Account... args) {
+        protected UserInfo doInBackground(Account... args) {
             Account account = args[0];
 
             try {
-                return APIUtility.getJson(accountManager, userInfoEndpoint, account, null);
+                OIDCTokenBundle tokens = accountManager.getTokens(account);
+                return requestManager.getUserInfo(tokens.getAccessToken(), tokens.getIdToken());
             } catch (IOException e) {
                 Log.w(TAG, "We couldn't fetch userinfo from server", e);
                 handleTokenExpireException(account, e);
@@ -226,19 +246,20 @@ public class HomeActivity extends AppCompatActivity {
          * Processes the API's response.
          */
         @Override
-        protected void onPostExecute(Map result) {
+        protected void onPostExecute(UserInfo result) {
             progressBar.setVisibility(View.INVISIBLE);
 
             if (result == null) {
                 loginButton.setText("Couldn't get user info");
             } else {
-                loginButton.setText("Logged in as " + result.get("given_name"));
+                loginButton.setText("Logged in as " + result.getGivenName());
                 Log.i(TAG, "We manage to login user to server");
             }
         }
 
         private void handleTokenExpireException(Account account, IOException e){
-            if (e.getMessage().contains("Access Token not valid")) {
+            if (e instanceof HttpResponseException
+                    && ((HttpResponseException) e).getStatusCode() == HttpStatusCodes.STATUS_CODE_UNAUTHORIZED) {
                 accountManager.invalidateAllAccountTokens(account);
                 Log.i(TAG, "User should authenticate one more");
                 launchExpiredTokensIntent(account);
@@ -287,7 +308,7 @@ public class HomeActivity extends AppCompatActivity {
             Account account = args[0];
 
             try {
-                return APIUtility.getJson(accountManager, protectedResUrl, account, null);
+                return APIUtility.getJson(accountManager, protectedResUrl, account);
             } catch (AuthenticatorException | OperationCanceledException |IOException e) {
                 e.printStackTrace();
             } catch (UserNotAuthenticatedWrapperException e) {
@@ -314,6 +335,7 @@ public class HomeActivity extends AppCompatActivity {
     private class LogoutTask extends AsyncTask<Account, Void, Boolean> {
 
         private boolean requestServerLogout;
+        private String endSessionUrl;
 
         public LogoutTask(boolean requestServerLogout){
             this.requestServerLogout = requestServerLogout;
@@ -327,40 +349,50 @@ public class HomeActivity extends AppCompatActivity {
         @Override
         protected Boolean doInBackground(Account... args) {
             Account account = args[0];
-            return !requestServerLogout || requestServerLogout(account);
+            if (requestServerLogout) {
+                endSessionUrl = getEndSessionUrl(account);
+            }
+            // The tokens are revoked in the background, the account is removed right away
+            return accountManager.logout(account);
         }
 
         /**
-         * Processes the API's response.
+         * Processes the logout result.
          */
         @Override
-        protected void onPostExecute(Boolean result) {
+        protected void onPostExecute(Boolean removed) {
             progressBar.setVisibility(View.INVISIBLE);
 
-            if (result) {
-                boolean removed = accountManager.removeAccount(availableAccounts[0]);
-                if (removed) {
-                    loginButton.setText(R.string.loginButtonText);
-                    requestButton.setVisibility(View.INVISIBLE);
-                    logoutButton.setVisibility(View.INVISIBLE);
-                    refreshAvailableAccounts();
-
-                    Toast.makeText(HomeActivity.this,
-                            "Session closed",
-                            Toast.LENGTH_SHORT).show();
-                }
-                else {
-                    //TODO: show error message "Couldn't remove account"
+            if (removed) {
+                loginButton.setText(R.string.loginButtonText);
+                requestButton.setVisibility(View.INVISIBLE);
+                logoutButton.setVisibility(View.INVISIBLE);
+                refreshAvailableAccounts();
+
+                Toast.makeText(HomeActivity.this,
+                        "Session closed",
+                        Toast.LENGTH_SHORT).show();
+
+                if (endSessionUrl != null) {
+                    // Ends the session at the OP too
+                    startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(endSessionUrl)));
                 }
-            } else {
-                //TODO: show error message "Couldn't logout"
+            }
+            else {
+                Toast.makeText(HomeActivity.this,
+                        "Couldn't remove account",
+                        Toast.LENGTH_SHORT).show();
             }
         }
 
-        private boolean requestServerLogout(Account account) {
-            //TODO: make a request to the OP's revoke endpoint to invalidate the current tokens
-            //See https://github.com/kalemontes/OIDCAndroidLib/issues/5 discution
-            return false;
+        private String getEndSessionUrl(Account account) {
+            try {
+                String idToken = accountManager.peekToken(account, Authenticator.TOKEN_TYPE_ID);
+                return requestManager.getEndSessionUrl(idToken, null, null);
+            } catch (UserNotAuthenticatedWrapperException e) {
+                Log.w(TAG, "Could not read the ID Token, ending the session without a hint", e);
+                return requestManager.getEndSessionUrl(null, null, null);
+            }
         }
     }
 
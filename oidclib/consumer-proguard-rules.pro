@@ -0,0 +1,7 @@
+# ProGuard rules applied to the apps using this library, when they minify their code.
+
+# Platform.get() loads the Android platform by name, without it the library would fall back
+# to the JVM platform (java.util.logging, another Base64 codec)
+-keep class com.lnikkila.oidc.platform.AndroidPlatform {
+    <init>();
+}
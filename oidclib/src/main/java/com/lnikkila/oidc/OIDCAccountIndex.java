@@ -0,0 +1,111 @@
+package com.lnikkila.oidc;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.OnAccountsUpdateListener;
+import android.content.Context;
+
+import com.google.api.client.util.Preconditions;
+import com.lnikkila.oidc.platform.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory index of the accounts of the library account type, keyed by account name.
+ * <br/>
+ * Resolving an account name used to cost a {@link AccountManager#getAccountsByType(String)} binder
+ * call and a linear scan on every token request. The index is built once, kept up to date by an
+ * {@link OnAccountsUpdateListener}, and only read again from the AccountManager when a name is
+ * missing (i.e. an account added before the listener has been called). Listing the accounts
+ * doesn't go through the index, it would miss an account just added for the same reason.
+ */
+public class OIDCAccountIndex implements OnAccountsUpdateListener {
+
+    private static final String TAG = OIDCAccountIndex.class.getSimpleName();
+
+    private static volatile OIDCAccountIndex instance;
+
+    private final AccountManager manager;
+    private final String accountType;
+
+    private volatile Map<String, Account> accountsByName;
+
+    protected OIDCAccountIndex(Context context) {
+        Context applicationContext = Preconditions.checkNotNull(context).getApplicationContext();
+        this.manager = AccountManager.get(applicationContext);
+        this.accountType = applicationContext.getString(R.string.account_authenticator_type);
+        reload();
+        // Updates are delivered on the main thread
+        this.manager.addOnAccountsUpdatedListener(this, null, false);
+    }
+
+    /**
+     * @param context any context, only the application context is kept
+     * @return the process-wide account index
+     */
+    public static OIDCAccountIndex getInstance(Context context) {
+        OIDCAccountIndex index = instance;
+        if (index == null) {
+            synchronized (OIDCAccountIndex.class) {
+                index = instance;
+                if (index == null) {
+                    index = new OIDCAccountIndex(context);
+                    instance = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Gets an account by its name, reading the accounts again from the AccountManager only when the
+     * name isn't indexed.
+     * @param accountName the account name, may be null
+     * @return the account or null if there is no account with this name
+     */
+    public Account getAccountByName(String accountName) {
+        if (accountName == null) {
+            return null;
+        }
+        Account account = accountsByName.get(accountName);
+        if (account == null) {
+            account = reload().get(accountName);
+        }
+        return account;
+    }
+
+    /**
+     * Reads the accounts again from the AccountManager, i.e. right after removing an account since
+     * the listener is called asynchronously.
+     */
+    public void refresh() {
+        reload();
+    }
+
+    @Override
+    public void onAccountsUpdated(Account[] accounts) {
+        Log.d(TAG, "Accounts updated, rebuilding the index.");
+        index(accounts);
+    }
+
+    private Map<String, Account> reload() {
+        return index(manager.getAccountsByType(accountType));
+    }
+
+    private Map<String, Account> index(Account[] accounts) {
+        Map<String, Account> index = new HashMap<>();
+        if (accounts != null) {
+            for (Account account : accounts) {
+                // The listener is told about the accounts of every type
+                if (accountType.equals(account.type)) {
+                    index.put(account.name, account);
+                }
+            }
+        }
+        Map<String, Account> unmodifiableIndex = Collections.unmodifiableMap(index);
+        accountsByName = unmodifiableIndex;
+        return unmodifiableIndex;
+    }
+}
@@ -10,16 +10,24 @@ import android.app.Activity;
 import android.content.Context;
 import android.os.Build;
 import android.os.Bundle;
-import android.util.Log;
 
 import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.auth.openidconnect.IdToken;
 import com.google.api.client.auth.openidconnect.IdTokenResponse;
 import com.google.api.client.util.Preconditions;
 import com.lnikkila.oidc.authenticator.Authenticator;
+import com.lnikkila.oidc.metrics.Metrics;
+import com.lnikkila.oidc.platform.Log;
 import com.lnikkila.oidc.security.AccountSensitiveDataStorageUtils;
+import com.lnikkila.oidc.security.IdTokenParser;
+import com.lnikkila.oidc.security.TokenCache;
 import com.lnikkila.oidc.security.UserNotAuthenticatedWrapperException;
+import com.lnikkila.oidc.userinfo.UserInfoCache;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * A layer of syntactic sugar around the AccountManager and the Accounts.
@@ -30,15 +38,33 @@ public class OIDCAccountManager {
 
     private final String TAG = getClass().getSimpleName();
 
+    /**
+     * Account user data key holding the access token expiration time (epoch milliseconds).
+     */
+    public static final String KEY_ACCESS_TOKEN_EXPIRES_AT = "com.lnikkila.oidc.KEY_ACCESS_TOKEN_EXPIRES_AT";
+
+    /**
+     * The token types of the account tokens, all stored in the record of
+     * {@link Authenticator#TOKEN_TYPE_BUNDLE}. Records found under these types are either left by an
+     * invalidation or copies the AccountManager keeps, see {@link Authenticator}.
+     */
+    private static final String[] TOKEN_TYPES = {
+            Authenticator.TOKEN_TYPE_ID, Authenticator.TOKEN_TYPE_ACCESS, Authenticator.TOKEN_TYPE_REFRESH};
+
     private final Context context;
     private final AccountManager manager;
     private final AccountSensitiveDataStorageUtils secureStorage;
+    private final TokenCache tokenCache;
+    private final OIDCAccountIndex accountIndex;
 
 
     public OIDCAccountManager(Context context) {
         this.context = Preconditions.checkNotNull(context);
         this.manager = AccountManager.get(this.context);
         this.secureStorage = new AccountSensitiveDataStorageUtils(context);
+        // Keeping decrypted tokens in memory is opt-in, see res/values/oidc_clientoptions.xml
+        this.tokenCache = context.getResources().getBoolean(R.bool.oidc_tokenCacheEnabled) ? TokenCache.getInstance() : null;
+        this.accountIndex = OIDCAccountIndex.getInstance(context);
     }
 
     public AccountManager getAccountManager() {
@@ -50,19 +76,12 @@ public class OIDCAccountManager {
     }
 
     public Account[] getAccounts() {
+        // Read live: the index is only refreshed asynchronously after an account is added
         return this.manager.getAccountsByType(getAccountType());
     }
 
     public Account getAccountByName(String accountName) {
-        if(accountName != null) {
-            Account[] accounts = this.getAccounts();
-            for (Account account : accounts) {
-                if (accountName.equals(account.name)) {
-                    return account;
-                }
-            }
-        }
-        return null;
+        return this.accountIndex.getAccountByName(accountName);
     }
 
     public void createAccount(Activity activity, AccountManagerCallback<Bundle> callback) {
@@ -75,6 +94,7 @@ public class OIDCAccountManager {
     }
 
     public boolean removeAccount(Account account) {
+        IdToken.Payload idToken = getIdTokenPayload(account);
         boolean removed = false;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1){
             removed = this.manager.removeAccountExplicitly(account);
@@ -87,9 +107,56 @@ public class OIDCAccountManager {
                 Log.w("LogoutTask", "Coudln't remove account using pre LOLIPOP remove call");
             }
         }
+        if (removed) {
+            accountIndex.refresh();
+            if (idToken != null) {
+                UserInfoCache.getInstance(context).remove(idToken.getIssuer(), idToken.getSubject());
+            }
+            if (tokenCache != null) {
+                tokenCache.invalidate(account);
+            }
+            OIDCTokenRefreshScheduler.notifyAccountRemoved(account);
+        }
         return removed;
     }
 
+    /**
+     * Logs an account out: its tokens are queued for revocation at the OP and the account is
+     * removed right away, without waiting for the network.
+     * @see OIDCRevocationQueue
+     * @see OIDCRequestManager#getEndSessionUrl(String, String, String)
+     */
+    public boolean logout(Account account) {
+        try {
+            OIDCTokenBundle tokens = peekTokens(account);
+            if (tokens != null) {
+                OIDCRevocationQueue.getInstance(context).enqueue(tokens);
+            }
+        } catch (UserNotAuthenticatedWrapperException e) {
+            // The tokens can't be read, they will expire at the OP
+            Log.w(TAG, "Could not read the tokens to revoke, the user isn't authenticated.");
+        }
+        return removeAccount(account);
+    }
+
+    /**
+     * Gets the claims of the stored ID Token, without going through the authenticator.
+     * @return the claims or null if unknown
+     */
+    private IdToken.Payload getIdTokenPayload(Account account) {
+        if (account != null) {
+            try {
+                OIDCTokenBundle tokens = peekTokens(account);
+                if (tokens != null && tokens.getIdToken() != null) {
+                    return IdTokenParser.getInstance().parse(tokens.getIdToken()).getPayload();
+                }
+            } catch (UserNotAuthenticatedWrapperException | IOException | IllegalArgumentException e) {
+                Log.w(TAG, e, "Could not read the ID Token of account %1$s", account.name);
+            }
+        }
+        return null;
+    }
+
     public boolean isKeyPinRequired() {
         boolean keyPinRequired = false;
         if (context != null) {
@@ -100,40 +167,38 @@ public class OIDCAccountManager {
 
     public void invalidateAllAccountTokens(Account account) {
         if(account != null) {
-            try {
-                String idToken = getIdToken(account.name, null);
-                String accessToken = getAccessToken(account.name, null);
-                String refreshToken = getRefreshToken(account.name, null);
-                this.secureStorage.invalidateStringData(this.manager, account, idToken);
-                this.secureStorage.invalidateStringData(this.manager, account, accessToken);
-                this.secureStorage.invalidateStringData(this.manager, account, refreshToken);
-            } catch (AuthenticatorException | UserNotAuthenticatedWrapperException | OperationCanceledException | IOException e) {
-                Log.w(TAG, String.format("Could not invalidate account %1$s tokens", account.name), e);
-            }
+            this.secureStorage.invalidateStoredData(this.manager, account, Authenticator.TOKEN_TYPE_BUNDLE, Authenticator.TOKEN_TYPE_ID,
+                    Authenticator.TOKEN_TYPE_ACCESS, Authenticator.TOKEN_TYPE_REFRESH);
+            invalidateCachedTokens(account, TOKEN_TYPES);
         }
     }
 
     public void invalidateAuthTokens(Account account) {
-        if(account != null) {
-            try {
-                String idToken = getIdToken(account.name, null);
-                String accessToken = getAccessToken(account.name, null);
-                this.secureStorage.invalidateStringData(this.manager, account, idToken);
-                this.secureStorage.invalidateStringData(this.manager, account, accessToken);
-            } catch (AuthenticatorException | UserNotAuthenticatedWrapperException | OperationCanceledException | IOException e) {
-                Log.w(TAG, String.format("Could not invalidate account %1$s tokens", account.name), e);
-            }
-        }
+        invalidateTokens(account, Authenticator.TOKEN_TYPE_ID, Authenticator.TOKEN_TYPE_ACCESS);
     }
 
-
     public void invalidateAccessToken(Account account) {
+        invalidateTokens(account, Authenticator.TOKEN_TYPE_ACCESS);
+    }
+
+    /**
+     * Invalidates the stored tokens but the refresh token, without any request to the authenticator
+     * nor decryption, so the next request of the tokens refreshes them. The ID and access tokens
+     * share the bundle record and its expiration time, so both are invalidated.
+     * @param tokenTypes the token types whose cached tokens are dropped
+     */
+    private void invalidateTokens(Account account, String... tokenTypes) {
         if(account != null) {
-            try {
-                String accessToken = getAccessToken(account, null);
-                this.secureStorage.invalidateStringData(this.manager, account, accessToken);
-            } catch (AuthenticatorException | UserNotAuthenticatedWrapperException | OperationCanceledException | IOException e) {
-                Log.w(TAG, String.format("Could not invalidate account %1$s AT", account.name), e);
+            this.secureStorage.invalidateTokenBundle(this.manager, account, Authenticator.TOKEN_TYPE_BUNDLE,
+                    Authenticator.TOKEN_TYPE_REFRESH, Authenticator.TOKEN_TYPE_ID, Authenticator.TOKEN_TYPE_ACCESS);
+            invalidateCachedTokens(account, tokenTypes);
+        }
+    }
+
+    private void invalidateCachedTokens(Account account, String... tokenTypes) {
+        if (tokenCache != null) {
+            for (String tokenType : tokenTypes) {
+                tokenCache.invalidate(account, tokenType);
             }
         }
     }
@@ -158,6 +223,76 @@ public class OIDCAccountManager {
         return getToken(accountName, Authenticator.TOKEN_TYPE_REFRESH, callback);
     }
 
+    /**
+     * Gets all the account tokens with a single AccountManager request and a single decryption,
+     * refreshing them first if the access token has been invalidated.
+     * @param account the account owning the tokens
+     * @return the tokens, individual tokens may be null
+     */
+    public OIDCTokenBundle getTokens(Account account)
+            throws AuthenticatorException, UserNotAuthenticatedWrapperException, OperationCanceledException, IOException {
+        Metrics.Timer timer = Metrics.startTimer(Metrics.ACCOUNT_GET_TOKENS);
+        try {
+            OIDCTokenBundle tokens = this.secureStorage.retrieveTokenBundle(this.manager, account, Authenticator.TOKEN_TYPE_BUNDLE, null);
+            if (tokens == null) {
+                // Not refreshed, what is left may have been stored without a bundle by a former
+                // version of the library
+                tokens = peekTokens(account);
+            }
+            if (tokens == null) {
+                tokens = new OIDCTokenBundle(null, null, null, null);
+            } else {
+                cacheTokens(account, tokens);
+            }
+            return tokens;
+        } catch (AuthenticatorException | UserNotAuthenticatedWrapperException | OperationCanceledException | IOException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Gets the stored account tokens without going through the authenticator, so without refreshing
+     * them when they are missing.
+     * @param account the account owning the tokens
+     * @return the stored tokens or null if there is none
+     */
+    public OIDCTokenBundle peekTokens(Account account) throws UserNotAuthenticatedWrapperException {
+        OIDCTokenBundle tokens = this.secureStorage.peekTokenBundle(this.manager, account, Authenticator.TOKEN_TYPE_BUNDLE,
+                Authenticator.TOKEN_TYPE_REFRESH, Authenticator.TOKEN_TYPE_ACCESS, Authenticator.TOKEN_TYPE_ID);
+        if (tokens != null && tokens.getAccessTokenExpiresAt() == null) {
+            // Built from tokens stored one by one, the expiration time is in the account user data
+            tokens = new OIDCTokenBundle(tokens.getIdToken(), tokens.getAccessToken(), tokens.getRefreshToken(),
+                    getAccessTokenExpiresAt(account));
+        }
+        return tokens;
+    }
+
+    /**
+     * Gets a stored token without going through the authenticator, so without refreshing it when it
+     * is missing.
+     * @param account the account owning the token
+     * @param tokenType the token type
+     * @return the stored token or null if there is none
+     */
+    public String peekToken(Account account, String tokenType) throws UserNotAuthenticatedWrapperException {
+        OIDCTokenBundle tokens = peekTokens(account);
+        return tokens != null ? tokens.getToken(tokenType) : null;
+    }
+
+    /**
+     * Builds the encrypted record of a single token out of the encrypted bundle record, see
+     * {@link Authenticator}.
+     * @param encryptedBundle the record stored under {@link Authenticator#TOKEN_TYPE_BUNDLE}
+     * @param tokenType the type of the token to extract
+     * @return the encrypted token or null if the bundle has no token of this type
+     */
+    public String extractTokenRecord(String encryptedBundle, String tokenType) throws UserNotAuthenticatedWrapperException {
+        return this.secureStorage.extractTokenRecord(encryptedBundle, tokenType);
+    }
+
     private String getToken(String accountName, String tokenType, AccountManagerCallback<Bundle> callback)
             throws AuthenticatorException, UserNotAuthenticatedWrapperException, OperationCanceledException, IOException {
         Account account = getAccountByName(accountName);
@@ -166,31 +301,293 @@ public class OIDCAccountManager {
 
     private String getToken(Account account, String tokenType, AccountManagerCallback<Bundle> callback)
             throws AuthenticatorException, UserNotAuthenticatedWrapperException, OperationCanceledException, IOException {
-        return this.secureStorage.retrieveStringData(this.manager, account, tokenType, callback);
+        Metrics.Timer timer = Metrics.startTimer(Metrics.ACCOUNT_GET_TOKEN);
+        try {
+            // Callers giving a callback expect it to be called, so they always go through the AccountManager
+            boolean useCache = tokenCache != null && account != null && callback == null;
+            if (useCache) {
+                String token = tokenCache.get(account, tokenType);
+                if (token != null) {
+                    Metrics.increment(Metrics.TOKEN_CACHE_HIT);
+                    return token;
+                }
+                Metrics.increment(Metrics.TOKEN_CACHE_MISS);
+            }
+
+            // Every token is read from the bundle record, see #getTokens(Account)
+            OIDCTokenBundle tokens = this.secureStorage.retrieveTokenBundle(this.manager, account, Authenticator.TOKEN_TYPE_BUNDLE, callback);
+            if (tokens == null) {
+                tokens = peekTokens(account);
+            }
+            String token = tokens != null ? tokens.getToken(tokenType) : null;
+            if (useCache && token != null) {
+                cacheToken(account, tokenType, token);
+            }
+            return token;
+        } catch (AuthenticatorException | UserNotAuthenticatedWrapperException | OperationCanceledException | IOException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private void cacheToken(Account account, String tokenType, String token) {
+        Long expiresAt = Authenticator.TOKEN_TYPE_REFRESH.equals(tokenType) ? null : getAccessTokenExpiresAt(account);
+        tokenCache.put(account, tokenType, token, expiresAt);
+    }
+
+    private void cacheTokens(Account account, OIDCTokenBundle tokens) {
+        if (tokenCache != null) {
+            for (String tokenType : TOKEN_TYPES) {
+                Long expiresAt = Authenticator.TOKEN_TYPE_REFRESH.equals(tokenType) ? null : tokens.getAccessTokenExpiresAt();
+                tokenCache.put(account, tokenType, tokens.getToken(tokenType), expiresAt);
+            }
+        }
+    }
+
+    //region Asynchronous API
+
+    /**
+     * Reads the result of an AccountManager token request, on the worker executor.
+     */
+    private interface TokenRequestReader<T> {
+        T read(AccountManagerFuture<Bundle> result) throws Exception;
+    }
+
+    /**
+     * Gets the ID Token without blocking the calling thread.
+     * @see #getTokenAsync(Account, String, OIDCCallback)
+     */
+    public OIDCFuture<String> getIdTokenAsync(Account account, OIDCCallback<String> callback) {
+        return getTokenAsync(account, Authenticator.TOKEN_TYPE_ID, callback);
+    }
+
+    /**
+     * Gets the access token without blocking the calling thread.
+     * @see #getTokenAsync(Account, String, OIDCCallback)
+     */
+    public OIDCFuture<String> getAccessTokenAsync(Account account, OIDCCallback<String> callback) {
+        return getTokenAsync(account, Authenticator.TOKEN_TYPE_ACCESS, callback);
+    }
+
+    /**
+     * Gets a token without blocking the calling thread: no thread waits for the AccountManager or
+     * the Authenticator, only the decryption runs on {@link OIDCExecutors#getWorkerExecutor()}.
+     * @param account the account owning the token
+     * @param tokenType the token type
+     * @param callback called on the main thread with the token, may be null
+     * @return the pending token, cancelling it cancels the AccountManager request
+     */
+    public OIDCFuture<String> getTokenAsync(final Account account, final String tokenType, OIDCCallback<String> callback) {
+        if (tokenCache != null && account != null) {
+            String token = tokenCache.get(account, tokenType);
+            if (token != null) {
+                Metrics.increment(Metrics.TOKEN_CACHE_HIT);
+                return withCallback(OIDCFuture.completed(token), callback);
+            }
+            Metrics.increment(Metrics.TOKEN_CACHE_MISS);
+        }
+        return requestAsync(account, Authenticator.TOKEN_TYPE_BUNDLE, new TokenRequestReader<String>() {
+            @Override
+            public String read(AccountManagerFuture<Bundle> result) throws Exception {
+                OIDCTokenBundle tokens = secureStorage.readTokenBundle(manager, account, Authenticator.TOKEN_TYPE_BUNDLE, result);
+                if (tokens == null) {
+                    tokens = peekTokens(account);
+                }
+                String token = tokens != null ? tokens.getToken(tokenType) : null;
+                if (tokenCache != null && token != null) {
+                    cacheToken(account, tokenType, token);
+                }
+                return token;
+            }
+        }, callback);
+    }
+
+    /**
+     * Gets all the account tokens without blocking the calling thread.
+     * @param account the account owning the tokens
+     * @param callback called on the main thread with the tokens, may be null
+     * @return the pending tokens, cancelling them cancels the AccountManager request
+     * @see #getTokens(Account)
+     */
+    public OIDCFuture<OIDCTokenBundle> getTokensAsync(final Account account, OIDCCallback<OIDCTokenBundle> callback) {
+        return requestAsync(account, Authenticator.TOKEN_TYPE_BUNDLE, new TokenRequestReader<OIDCTokenBundle>() {
+            @Override
+            public OIDCTokenBundle read(AccountManagerFuture<Bundle> result) throws Exception {
+                OIDCTokenBundle tokens = secureStorage.readTokenBundle(manager, account, Authenticator.TOKEN_TYPE_BUNDLE, result);
+                if (tokens == null) {
+                    // Not refreshed, or stored without a bundle by a former version of the library
+                    tokens = peekTokens(account);
+                }
+                if (tokens != null) {
+                    cacheTokens(account, tokens);
+                }
+                return tokens;
+            }
+        }, callback);
+    }
+
+    /**
+     * Refreshes the account tokens without blocking the calling thread: the current ID and access
+     * tokens are invalidated and the Authenticator gets new ones with the refresh token.
+     * @param account the account owning the tokens
+     * @param callback called on the main thread with the new tokens, may be null
+     * @return the pending tokens
+     */
+    public OIDCFuture<OIDCTokenBundle> refreshTokensAsync(Account account, OIDCCallback<OIDCTokenBundle> callback) {
+        invalidateAuthTokens(account);
+        return getTokensAsync(account, callback);
+    }
+
+    /**
+     * Saves the tokens of a token response on {@link OIDCExecutors#getWorkerExecutor()}.
+     * @param callback called on the main thread once the tokens are saved, may be null
+     * @return the pending save
+     * @see #saveTokens(Account, TokenResponse)
+     */
+    public OIDCFuture<Void> saveTokensAsync(final Account account, final TokenResponse tokenResponse, OIDCCallback<Void> callback) {
+        OIDCFuture<Void> future = new OIDCFuture<>();
+        submit(future, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                saveTokens(account, tokenResponse);
+                return null;
+            }
+        });
+        return withCallback(future, callback);
+    }
+
+    private <T> OIDCFuture<T> requestAsync(Account account, String tokenType, final TokenRequestReader<T> reader, OIDCCallback<T> callback) {
+        final OIDCFuture<T> future = new OIDCFuture<>();
+        try {
+            AccountManagerFuture<Bundle> request = this.secureStorage.requestStoredData(this.manager, account, tokenType,
+                    new AccountManagerCallback<Bundle>() {
+                        @Override
+                        public void run(final AccountManagerFuture<Bundle> result) {
+                            if (!future.isDone()) {
+                                submit(future, new Callable<T>() {
+                                    @Override
+                                    public T call() throws Exception {
+                                        return reader.read(result);
+                                    }
+                                });
+                            }
+                        }
+                    }, OIDCExecutors.getCallbackHandler());
+            future.setPendingRequest(request);
+        } catch (IllegalArgumentException e) {
+            // i.e. no account
+            future.setException(e);
+        }
+        return withCallback(future, callback);
+    }
+
+    private static <T> void submit(final OIDCFuture<T> future, final Callable<T> work) {
+        FutureTask<Void> task = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.set(work.call());
+                } catch (Exception e) {
+                    future.setException(e);
+                }
+            }
+        }, null);
+        future.setPendingWork(task);
+        try {
+            OIDCExecutors.getWorkerExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            future.setException(e);
+        }
     }
 
+    private static <T> OIDCFuture<T> withCallback(OIDCFuture<T> future, OIDCCallback<T> callback) {
+        if (callback != null) {
+            future.addCallback(callback);
+        }
+        return future;
+    }
+
+    //endregion
+
     public void saveTokens(Account account, TokenResponse tokenResponse) throws UserNotAuthenticatedWrapperException {
-        if (tokenResponse instanceof IdTokenResponse) {
-            saveToken(account, Authenticator.TOKEN_TYPE_ID, ((IdTokenResponse) tokenResponse).getIdToken());
+        String idToken = tokenResponse instanceof IdTokenResponse ? ((IdTokenResponse) tokenResponse).getIdToken() : null;
+        OIDCTokenBundle tokens = new OIDCTokenBundle(idToken, tokenResponse.getAccessToken(),
+                tokenResponse.getRefreshToken(), getExpiresAt(tokenResponse));
+        if (tokens.getIdToken() == null || tokens.getRefreshToken() == null) {
+            // Refresh responses may omit the ID Token and the refresh token, the current ones are kept
+            tokens = tokens.withDefaults(peekTokens(account));
         }
-        saveToken(account, Authenticator.TOKEN_TYPE_ACCESS, tokenResponse.getAccessToken());
-        saveToken(account, Authenticator.TOKEN_TYPE_REFRESH, tokenResponse.getRefreshToken());
+        saveTokens(account, tokens);
     }
 
-    public void saveTokens(String accountName, TokenResponse tokenResponse) throws UserNotAuthenticatedWrapperException {
-        if (tokenResponse instanceof IdTokenResponse) {
-            saveToken(accountName, Authenticator.TOKEN_TYPE_ID, ((IdTokenResponse)tokenResponse).getIdToken());
+    /**
+     * Saves all the account tokens at once, as a single record under the bundle token type.
+     * @param account the account owning the tokens
+     * @param tokens the tokens to save, missing ones are removed
+     */
+    public void saveTokens(Account account, OIDCTokenBundle tokens) throws UserNotAuthenticatedWrapperException {
+        Metrics.Timer timer = Metrics.startTimer(Metrics.ACCOUNT_SAVE_TOKENS);
+        try {
+            Long expiresAt = tokens.getAccessTokenExpiresAt();
+            // The refresh token record left by an invalidation would outlive a rotated refresh token,
+            // and the copies the AccountManager keeps of the single tokens the old ones
+            this.secureStorage.storeTokenBundle(this.manager, account, tokens, Authenticator.TOKEN_TYPE_BUNDLE,
+                    TOKEN_TYPES);
+            cacheTokens(account, tokens);
+
+            this.manager.setUserData(account, KEY_ACCESS_TOKEN_EXPIRES_AT, expiresAt != null ? String.valueOf(expiresAt) : null);
+            OIDCTokenRefreshScheduler.notifyTokensSaved(account);
+        } catch (UserNotAuthenticatedWrapperException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            timer.stop();
         }
-        saveToken(accountName, Authenticator.TOKEN_TYPE_ACCESS, tokenResponse.getAccessToken());
-        saveToken(accountName, Authenticator.TOKEN_TYPE_REFRESH, tokenResponse.getRefreshToken());
     }
 
-    private void saveToken(String accountName, String tokenType, String token) throws UserNotAuthenticatedWrapperException {
+    public void saveTokens(String accountName, TokenResponse tokenResponse) throws UserNotAuthenticatedWrapperException {
         Account account = getAccountByName(accountName);
-        saveToken(account, tokenType, token);
+        saveTokens(account, tokenResponse);
     }
 
-    private void saveToken(Account account, String tokenType, String token) throws UserNotAuthenticatedWrapperException {
-        this.secureStorage.storeStringData(this.manager, account, tokenType, token);
+    /**
+     * Gets the access token expiration time saved alongside the tokens.
+     * @param account the account owning the token
+     * @return the expiration time in epoch milliseconds, or null if unknown
+     */
+    public Long getAccessTokenExpiresAt(Account account) {
+        String expiresAt = this.manager.getUserData(account, KEY_ACCESS_TOKEN_EXPIRES_AT);
+        if (expiresAt != null) {
+            try {
+                return Long.valueOf(expiresAt);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring malformed expiration time for account %1$s", account.name);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Computes when the access token of the given response expires, using the `expires_in` of the
+     * response or, when missing, the `exp` claim of the ID Token.
+     * @return the expiration time in epoch milliseconds, or null if unknown
+     */
+    private Long getExpiresAt(TokenResponse tokenResponse) {
+        Long expiresAt = null;
+        if (tokenResponse.getExpiresInSeconds() != null) {
+            expiresAt = System.currentTimeMillis() + tokenResponse.getExpiresInSeconds() * 1000;
+        } else if (tokenResponse instanceof IdTokenResponse && ((IdTokenResponse) tokenResponse).getIdToken() != null) {
+            try {
+                Long exp = IdTokenParser.getInstance().parse(((IdTokenResponse) tokenResponse).getIdToken()).getPayload().getExpirationTimeSeconds();
+                if (exp != null) {
+                    expiresAt = exp * 1000;
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                Log.w(TAG, "Could not read the exp claim of the ID Token", e);
+            }
+        }
+        return expiresAt;
     }
 }
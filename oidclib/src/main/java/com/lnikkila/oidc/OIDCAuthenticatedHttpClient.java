@@ -0,0 +1,206 @@
+package com.lnikkila.oidc;
+
+import android.accounts.Account;
+import android.accounts.AuthenticatorException;
+import android.accounts.OperationCanceledException;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.util.Preconditions;
+import com.lnikkila.oidc.authenticator.Authenticator;
+import com.lnikkila.oidc.http.OIDCHttpTransport;
+import com.lnikkila.oidc.platform.Log;
+import com.lnikkila.oidc.security.UserNotAuthenticatedWrapperException;
+import com.lnikkila.oidc.util.SingleFlight;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Makes requests to protected resources on behalf of an account.
+ * <br/>
+ * The requests built by {@link #getRequestFactory()} carry the account access token as a Bearer
+ * token. When the resource server rejects the token (401, or a {@code WWW-Authenticate} challenge
+ * with {@code error="invalid_token"}), the tokens are refreshed and the request is replayed once.
+ * Concurrent requests rejected with the same token share a single refresh, and a token already
+ * replaced by another refresh isn't invalidated again.
+ * <br/>
+ * Must not be used from the main thread.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc6750">https://tools.ietf.org/html/rfc6750</a>
+ */
+public class OIDCAuthenticatedHttpClient {
+
+    private final String TAG = getClass().getSimpleName();
+
+    private static final SingleFlight<String, String> refreshFlights = new SingleFlight<>();
+
+    private final OIDCAccountManager accountManager;
+    private final Account account;
+    private final OIDCHttpTransport transport;
+    private final HttpRequestFactory requestFactory;
+
+    public OIDCAuthenticatedHttpClient(OIDCAccountManager accountManager, Account account) {
+        this(accountManager, account, OIDCHttpTransport.getDefault());
+    }
+
+    public OIDCAuthenticatedHttpClient(OIDCAccountManager accountManager, Account account, OIDCHttpTransport transport) {
+        this.accountManager = Preconditions.checkNotNull(accountManager);
+        this.account = Preconditions.checkNotNull(account);
+        this.transport = Preconditions.checkNotNull(transport);
+        this.requestFactory = transport.getHttpTransport().createRequestFactory(new HttpRequestInitializer() {
+            @Override
+            public void initialize(HttpRequest request) throws IOException {
+                OIDCAuthenticatedHttpClient.this.transport.getRequestInitializer().initialize(request);
+                BearerTokenHandler handler = new BearerTokenHandler();
+                request.setInterceptor(handler);
+                request.setUnsuccessfulResponseHandler(handler);
+            }
+        });
+    }
+
+    public Account getAccount() {
+        return account;
+    }
+
+    /**
+     * @return a factory whose requests are authenticated with the account access token.
+     */
+    public HttpRequestFactory getRequestFactory() {
+        return requestFactory;
+    }
+
+    /**
+     * Makes a GET request. The response body isn't read: stream it with
+     * {@link HttpResponse#getContent()} and disconnect the response once done.
+     * @param url the protected resource
+     * @return the successful response
+     * @throws com.google.api.client.http.HttpResponseException for an error response
+     */
+    public HttpResponse get(String url) throws IOException {
+        HttpRequest request = requestFactory.buildGetRequest(new GenericUrl(url));
+        request.getHeaders().setAccept("application/json");
+        return request.execute();
+    }
+
+    /**
+     * Makes a GET request and deserializes the JSON response while it is being read, without
+     * buffering the body as a String.
+     * @param url the protected resource
+     * @param classOfT the class used to deserialize the response into
+     * @return the parsed response
+     * @throws com.google.api.client.http.HttpResponseException for an error response
+     */
+    public <T> T getJson(String url, Class<T> classOfT) throws IOException {
+        HttpResponse response = get(url);
+        try {
+            return transport.parseJson(response, classOfT);
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Refreshes the access token rejected by the resource server, sharing the refresh with the
+     * requests rejected concurrently.
+     * @param rejectedToken the access token the resource server rejected
+     * @return the new access token, or null if it can't be refreshed (i.e. the refresh token expired)
+     */
+    protected String refreshAccessToken(final String rejectedToken) throws IOException {
+        try {
+            return refreshFlights.execute(account.type + "/" + account.name, new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    String currentToken = accountManager.peekToken(account, Authenticator.TOKEN_TYPE_ACCESS);
+                    if (currentToken == null || currentToken.equals(rejectedToken)) {
+                        // Nobody replaced the token yet, the Authenticator refreshes it on the next get
+                        accountManager.invalidateAccessToken(account);
+                    }
+                    return accountManager.getAccessToken(account, null);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw asIOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while refreshing the access token", e);
+        }
+    }
+
+    private String getAccessToken() throws IOException {
+        try {
+            return accountManager.getAccessToken(account, null);
+        } catch (AuthenticatorException | OperationCanceledException | UserNotAuthenticatedWrapperException e) {
+            throw asIOException(e);
+        }
+    }
+
+    private static IOException asIOException(Throwable throwable) {
+        if (throwable instanceof IOException) {
+            return (IOException) throwable;
+        }
+        return new IOException("Could not get the access token", throwable);
+    }
+
+    /**
+     * Tells whether the resource server rejected the access token itself (as opposed to, say, an
+     * insufficient scope).
+     */
+    private static boolean isInvalidToken(HttpResponse response) {
+        int statusCode = response.getStatusCode();
+        if (statusCode == HttpStatusCodes.STATUS_CODE_UNAUTHORIZED) {
+            return true;
+        }
+        List<String> challenges = response.getHeaders().getAuthenticateAsList();
+        if (challenges != null) {
+            for (String challenge : challenges) {
+                if (challenge.contains("invalid_token")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Authenticates one request and replays it once when its token is rejected.
+     */
+    private class BearerTokenHandler implements HttpExecuteInterceptor, HttpUnsuccessfulResponseHandler {
+
+        private String sentToken;
+        private boolean retried;
+
+        @Override
+        public void intercept(HttpRequest request) throws IOException {
+            if (sentToken == null) {
+                sentToken = getAccessToken();
+            }
+            if (sentToken != null) {
+                request.getHeaders().setAuthorization("Bearer " + sentToken);
+            }
+        }
+
+        @Override
+        public boolean handleResponse(HttpRequest request, HttpResponse response, boolean supportsRetry) throws IOException {
+            if (retried || !supportsRetry || sentToken == null || !isInvalidToken(response)) {
+                return false;
+            }
+            retried = true;
+            Log.d(TAG, "Access token rejected with status %1$d, refreshing it.", response.getStatusCode());
+            String refreshedToken = refreshAccessToken(sentToken);
+            if (refreshedToken == null || refreshedToken.equals(sentToken)) {
+                return false;
+            }
+            sentToken = refreshedToken;
+            return true;
+        }
+    }
+}
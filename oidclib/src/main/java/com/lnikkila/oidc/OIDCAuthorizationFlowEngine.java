@@ -0,0 +1,379 @@
+package com.lnikkila.oidc;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.auth.openidconnect.IdTokenResponse;
+import com.google.api.client.util.Preconditions;
+import com.lnikkila.oidc.platform.Log;
+import com.lnikkila.oidc.security.UserNotAuthenticatedWrapperException;
+import com.lnikkila.oidc.userinfo.UserInfo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the end of the authorization flows (token requests, account creation and token storage)
+ * independently of the Activity that started them.
+ * <br/>
+ * Flows run on {@link OIDCExecutors#getAuthorizationExecutor()} and are identified by the id
+ * returned when they are started. The Activity keeps the id across configuration changes and
+ * {@link #attach(String, OIDCCallback) attaches} to the flow when it resumes: the result is
+ * delivered on the main thread to the attached callback only, and kept until a callback is
+ * attached if the Activity was being recreated when the flow completed. Nothing holds on to a
+ * detached Activity.
+ */
+public class OIDCAuthorizationFlowEngine {
+
+    private final String TAG = getClass().getSimpleName();
+
+    private static volatile OIDCAuthorizationFlowEngine instance;
+
+    private final Context context;
+    private final ConcurrentMap<String, Flow> flows = new ConcurrentHashMap<>();
+
+    protected OIDCAuthorizationFlowEngine(Context context) {
+        this.context = Preconditions.checkNotNull(context).getApplicationContext();
+    }
+
+    public static OIDCAuthorizationFlowEngine getInstance(Context context) {
+        OIDCAuthorizationFlowEngine engine = instance;
+        if (engine == null) {
+            synchronized (OIDCAuthorizationFlowEngine.class) {
+                engine = instance;
+                if (engine == null) {
+                    engine = new OIDCAuthorizationFlowEngine(context);
+                    instance = engine;
+                }
+            }
+        }
+        return engine;
+    }
+
+    //region Flows
+
+    /**
+     * Handles the Implicit flow by reconstructing the token response from the redirect URI
+     * fragment, i.e :
+     * <br/>
+     * <i>
+     * http://domain/redirect.html#scope=offline_access%20openid%20profile&state=xyz&code=xxx&id_token=yyyy
+     * </i>
+     * @param fragmentPart the fragment of the redirect URI
+     * @param secureState the state sent in the authentication request
+     * @param account the account to update, or null to create one
+     * @return the flow id
+     */
+    public String startImplicitFlow(final String fragmentPart, final String secureState, final Account account) {
+        return start(new Callable<Account>() {
+            @Override
+            public Account call() throws Exception {
+                OIDCRequestManager requestManager = new OIDCRequestManager(context);
+                TokenResponse response = requestManager.parseTokensFromImplicitResponseFragmentPart(fragmentPart, secureState);
+                return createOrUpdateAccount(requestManager, response, account);
+            }
+        });
+    }
+
+    /**
+     * Handles the Hybrid flow by extracting the authorization code from the redirect URI fragment
+     * then exchanging it at the token endpoint.
+     * @param fragmentPart the fragment of the redirect URI
+     * @param secureState the state sent in the authentication request
+     * @param account the account to update, or null to create one
+     * @return the flow id
+     */
+    public String startHybridFlow(final String fragmentPart, final String secureState, final Account account) {
+        return start(new Callable<Account>() {
+            @Override
+            public Account call() throws Exception {
+                Uri tokenExtrationUrl = new Uri.Builder().encodedQuery(fragmentPart).build();
+                String idToken = tokenExtrationUrl.getQueryParameter("id_token");
+                String authCode = tokenExtrationUrl.getQueryParameter("code");
+                String returnedState = tokenExtrationUrl.getQueryParameter("state");
+
+                checkState(secureState, returnedState);
+                if (TextUtils.isEmpty(idToken) || TextUtils.isEmpty(authCode)) {
+                    throw new IOException("The redirect URI fragment doesn't contain both an id_token and a code");
+                }
+
+                Log.i(TAG, "Requesting access_token with AuthCode : %1$s", Log.redact(authCode));
+                //TODO: we already have the idToken and we aren't doing anything with it... why? Will it be returned once more when we get the access token?
+                OIDCRequestManager requestManager = new OIDCRequestManager(context);
+                TokenResponse response = requestManager.requestTokensWithCodeGrant(authCode);
+                return createOrUpdateAccount(requestManager, response, account);
+            }
+        });
+    }
+
+    /**
+     * Handles the Code flow by exchanging the authorization code at the token endpoint.
+     * @param authCode the authorization code
+     * @param returnedState the state returned with the code
+     * @param secureState the state sent in the authentication request
+     * @param account the account to update, or null to create one
+     * @return the flow id
+     */
+    public String startCodeFlow(final String authCode, final String returnedState, final String secureState, final Account account) {
+        return start(new Callable<Account>() {
+            @Override
+            public Account call() throws Exception {
+                checkState(secureState, returnedState);
+
+                Log.i(TAG, "Requesting access_token with AuthCode : %1$s", Log.redact(authCode));
+                OIDCRequestManager requestManager = new OIDCRequestManager(context);
+                TokenResponse response = requestManager.requestTokensWithCodeGrant(authCode);
+                return createOrUpdateAccount(requestManager, response, account);
+            }
+        });
+    }
+
+    /**
+     * Handles the Password flow by exchanging the user credentials at the token endpoint.
+     * @param userName the user name
+     * @param userPwd the user password
+     * @param account the account to update, or null to create one
+     * @return the flow id
+     */
+    public String startPasswordFlow(final String userName, final String userPwd, final Account account) {
+        return start(new Callable<Account>() {
+            @Override
+            public Account call() throws Exception {
+                Log.d(TAG, "Requesting access_token with username : %1$s", userName);
+                OIDCRequestManager requestManager = new OIDCRequestManager(context);
+                TokenResponse response = requestManager.requestTokensWithPasswordGrant(userName, userPwd);
+                return createOrUpdateAccount(requestManager, response, account);
+            }
+        });
+    }
+
+    //endregion
+
+    //region Delivery
+
+    /**
+     * Attaches a callback to a flow, called on the main thread with the account once the tokens are
+     * stored, or with the failure. If the flow already completed, the callback is called right
+     * away. The flow is forgotten once its result is delivered.
+     * @param flowId the flow id
+     * @param callback the callback, typically the Activity waiting for the flow
+     * @return false if the flow is unknown (i.e. the process was restarted meanwhile)
+     */
+    public boolean attach(String flowId, OIDCCallback<Account> callback) {
+        Flow flow = flowId != null ? flows.get(flowId) : null;
+        if (flow == null) {
+            return false;
+        }
+        flow.callback = callback;
+        if (flow.future.isDone()) {
+            // Completed while detached: the delivery registered by start() found no callback
+            flow.future.addCallback(flow);
+        }
+        return true;
+    }
+
+    /**
+     * Detaches the callback of a flow, i.e. when its Activity is paused. The result is kept for the
+     * next {@link #attach(String, OIDCCallback)}.
+     * @param flowId the flow id
+     */
+    public void detach(String flowId) {
+        Flow flow = flowId != null ? flows.get(flowId) : null;
+        if (flow != null) {
+            flow.callback = null;
+        }
+    }
+
+    /**
+     * Cancels a flow and forgets it, i.e. when the user leaves the authorization screen.
+     * @param flowId the flow id
+     */
+    public void cancel(String flowId) {
+        Flow flow = flowId != null ? flows.remove(flowId) : null;
+        if (flow != null) {
+            flow.callback = null;
+            flow.future.cancel(true);
+        }
+    }
+
+    //endregion
+
+    private String start(final Callable<Account> work) {
+        String flowId = UUID.randomUUID().toString();
+        final OIDCFuture<Account> future = new OIDCFuture<>();
+        Flow flow = new Flow(flowId, future);
+        flows.put(flowId, flow);
+        future.addCallback(flow);
+
+        FutureTask<Void> task = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.set(work.call());
+                } catch (Exception e) {
+                    future.setException(e);
+                }
+            }
+        }, null);
+        future.setPendingWork(task);
+        try {
+            OIDCExecutors.getAuthorizationExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            future.setException(e);
+        }
+        return flowId;
+    }
+
+    private static void checkState(String secureState, String returnedState) throws IOException {
+        if (secureState == null || !secureState.equalsIgnoreCase(returnedState)) {
+            throw new IOException("Local and returned states don't match");
+        }
+    }
+
+    //region Account Management
+
+    private Account createOrUpdateAccount(OIDCRequestManager requestManager, TokenResponse response, Account account)
+            throws IOException, UserNotAuthenticatedWrapperException {
+        OIDCAccountManager accountManager = new OIDCAccountManager(context);
+        Account createdAccount = null;
+        if (account == null) {
+            account = createdAccount = createAccount(accountManager, requestManager, response);
+        }
+        try {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("The authorization flow was cancelled");
+            }
+            // Store the tokens in the account
+            accountManager.saveTokens(account, response);
+        } catch (IOException | UserNotAuthenticatedWrapperException | RuntimeException e) {
+            // Don't leave an account without tokens behind
+            if (createdAccount != null) {
+                accountManager.removeAccount(createdAccount);
+            }
+            throw e;
+        }
+        return account;
+    }
+
+    /**
+     * AccountManager expects that each account has a unique name. If a new account has the same name
+     * as a previously created one, it will overwrite the older account.
+     *
+     * Unfortunately the OIDC spec cannot guarantee[1] that any user information is unique, save for
+     * the user ID (i.e. the ID Token subject) which, depending on the authentication server, is hardly
+     * human-readable. This makes choosing between multiple accounts difficult.
+     *
+     * We'll resort to naming each account 'app_name : claim'. Usually a claim to use here could be 'name'
+     * or 'email' if that user information is unique.
+     *
+     * [1]: http://openid.net/specs/openid-connect-basic-1_0.html#ClaimStability
+     *
+     * The 'app_name' will be as a fallback if the other information isn't available for some reason
+     * (for instance no contact with UserInfo Endpoint, or bad claim extraction).
+     *
+     * @param response the TokenResponse receive from the authentication server.
+     * @param claimAsPartOfAccountName claim to be use as part the account name (ex: email, name, given_name).
+     *                                 If null it will use sub claim as part of the accout name.
+     * @return the account name to be use when creating an account on the AccountManager
+     */
+    private String getAccountName(OIDCRequestManager requestManager, TokenResponse response, String claimAsPartOfAccountName) {
+        String accountName = null;
+        if (response instanceof IdTokenResponse) {
+            try {
+                // Asserts the identity of the user, called subject in OpenID (sub)
+                String idToken = ((IdTokenResponse) response).getIdToken();
+                String accountSubject = requestManager.parseIdToken(idToken).getPayload().getSubject();
+
+                if ((accountSubject != null && !TextUtils.isEmpty(accountSubject)) || claimAsPartOfAccountName == null){
+                    accountName = String.format("%1$s : %2$s", context.getString(R.string.app_name), accountSubject);
+                } else {
+                    // If for a reason we can't get the subject or want to use a other claim instead,
+                    // we will try to get the `claimAsAccountName` using the UserInfo Endpoint
+                    UserInfo userInfo = requestManager.getUserInfo(response.getAccessToken(), idToken);
+                    String userName = userInfo != null ? userInfo.getString(claimAsPartOfAccountName) : null;
+                    if (userName != null) {
+                        accountName = String.format("%1$s : %2$s", context.getString(R.string.app_name), userName);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not get needed account info using the given TokenResponse.", e);
+            }
+        }
+
+        // Fallback to app's name if the other information isn't available
+        if(accountName == null || TextUtils.isEmpty(accountName)) {
+            accountName = context.getString(R.string.app_name);
+        }
+
+        return accountName.trim();
+    }
+
+    private Account createAccount(OIDCAccountManager accountManager, OIDCRequestManager requestManager, TokenResponse response) {
+        Log.d(TAG, "Creating account.");
+
+        String accountType = context.getString(R.string.account_authenticator_type);
+        String claimAsAccountName = "name"; //FIXME : this be some kind of oidc client parameter. What to do... what to do...
+        String accountName = getAccountName(requestManager, response, claimAsAccountName);
+
+        Account account = new Account(accountName, accountType);
+        accountManager.getAccountManager().addAccountExplicitly(account, null, null);
+
+        Log.d(TAG, "Saved tokens : (AT %1$s) (RT %2$s)", Log.redact(response.getAccessToken()), Log.redact(response.getRefreshToken()));
+        Log.d(TAG, "Account created.");
+        return account;
+    }
+
+    //endregion
+
+    /**
+     * A running (or completed but not delivered yet) flow and the callback attached to it.
+     */
+    private class Flow implements OIDCCallback<Account> {
+
+        final String id;
+        final OIDCFuture<Account> future;
+        volatile OIDCCallback<Account> callback;
+
+        Flow(String id, OIDCFuture<Account> future) {
+            this.id = id;
+            this.future = future;
+        }
+
+        @Override
+        public void onSuccess(Account result) {
+            OIDCCallback<Account> target = takeCallback();
+            if (target != null) {
+                target.onSuccess(result);
+            }
+        }
+
+        @Override
+        public void onError(Exception e) {
+            OIDCCallback<Account> target = takeCallback();
+            if (target != null) {
+                target.onError(e);
+            }
+        }
+
+        /**
+         * Called on the main thread: delivers at most once, to the callback attached at that time.
+         */
+        private OIDCCallback<Account> takeCallback() {
+            OIDCCallback<Account> target = callback;
+            if (target != null && flows.remove(id, this)) {
+                callback = null;
+                return target;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.lnikkila.oidc;
+
+/**
+ * Receives the outcome of an asynchronous operation started through an {@link OIDCFuture}.
+ * Exactly one of the methods is called, on the executor the callback was registered with.
+ *
+ * @param <V> the result of the operation
+ */
+public interface OIDCCallback<V> {
+
+    void onSuccess(V result);
+
+    /**
+     * @param e the failure: the exception thrown by the operation, a
+     * {@link java.util.concurrent.TimeoutException} when it timed out, or a
+     * {@link java.util.concurrent.CancellationException} when it was cancelled
+     */
+    void onError(Exception e);
+}
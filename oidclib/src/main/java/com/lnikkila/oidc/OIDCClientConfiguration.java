@@ -0,0 +1,283 @@
+package com.lnikkila.oidc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Immutable snapshot of the OpenID Connect client configuration and of the provider endpoints.
+ * <br/>
+ * The configuration is read once (from res/values or, for test purposes, from the values saved by
+ * {@link com.lnikkila.oidc.authenticator.OIDCClientConfigurationActivity}) and shared by every
+ * {@link OIDCRequestManager}, so creating a request manager doesn't read preferences and resources
+ * again. It is only rebuilt by {@link #reload(Context)}, registered listeners being told when it
+ * actually changed.
+ */
+public final class OIDCClientConfiguration {
+
+    //region Constants
+
+    public static final String PREFS_NAME           = "oidc_clientconf";
+    public static final String KEY_LOAD_FROM_PREFS  = "oidc_loadfromprefs";
+    public static final String KEY_OAUTH2_ONLY      = "oidc_oauth2only";
+    public static final String KEY_CLIENT_ID        = "oidc_clientId";
+    public static final String KEY_CLIENT_SECRET    = "oidc_clientSecret";
+    public static final String KEY_REDIRECT_URL     = "oidc_redirectUrl";
+    public static final String KEY_SCOPES           = "oidc_scopes";
+    public static final String KEY_FLOW_TYPE        = "oidc_flowType";
+    public static final String KEY_ISSUER_ID        = "oidc_issuerId";
+
+    //endregion
+
+    /**
+     * Listener called when the shared configuration has been rebuilt with different values.
+     */
+    public interface OnChangeListener {
+        void onClientConfigurationChanged(OIDCClientConfiguration configuration);
+    }
+
+    private static volatile OIDCClientConfiguration current;
+    private static final List<OnChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final boolean loadedFromPrefs;
+    private final boolean useOAuth2;
+    private final String clientId;
+    private final String clientSecret;
+    private final String redirectUrl;
+    private final String[] scopes;
+    private final String flowTypeName;
+    private final String issuerId;
+    private final Map<String, String> extras;
+
+    private final boolean useDiscovery;
+    private final String authorizationEndpoint;
+    private final String tokenEndpoint;
+    private final String userInfoEndpoint;
+    private final String jwksEndpoint;
+    private final String idTokenSigningAlg;
+    private final String revocationEndpoint;
+    private final String endSessionEndpoint;
+
+    private OIDCClientConfiguration(Context context) {
+        SharedPreferences sharedPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.loadedFromPrefs = sharedPreferences.getBoolean(KEY_LOAD_FROM_PREFS, false);
+        if (loadedFromPrefs) {
+            //reads from user preferences --> This should be use only for test purposes
+            this.useOAuth2 = sharedPreferences.getBoolean(KEY_OAUTH2_ONLY, false);
+            this.clientId = sharedPreferences.getString(KEY_CLIENT_ID, null);
+            this.clientSecret = sharedPreferences.getString(KEY_CLIENT_SECRET, null);
+            this.redirectUrl = sharedPreferences.getString(KEY_REDIRECT_URL, null);
+            String scopesString = sharedPreferences.getString(KEY_SCOPES, null);
+            this.scopes = scopesString != null ? scopesString.split(" ") : null;
+            this.flowTypeName = sharedPreferences.getString(KEY_FLOW_TYPE, null);
+            this.issuerId = sharedPreferences.getString(KEY_ISSUER_ID, null);
+            this.extras = null;
+        } else {
+            //reads from predefined res/values
+            this.useOAuth2 = context.getResources().getBoolean(R.bool.oidc_oauth2only);
+            this.clientId = context.getString(R.string.oidc_clientId);
+            this.clientSecret = context.getString(R.string.oidc_clientSecret);
+            this.redirectUrl = context.getString(R.string.oidc_redirectUrl);
+            this.scopes = context.getResources().getStringArray(R.array.oidc_scopes);
+            this.flowTypeName = context.getString(R.string.oidc_flowType);
+            this.issuerId = context.getString(R.string.oidc_issuerId);
+            this.extras = Collections.unmodifiableMap(parseStringArray(context.getResources().getStringArray(R.array.oidc_authextras)));
+        }
+
+        this.useDiscovery = context.getResources().getBoolean(R.bool.oidc_useDiscovery);
+        this.authorizationEndpoint = context.getString(R.string.op_authorizationEnpoint);
+        this.tokenEndpoint = context.getString(R.string.op_tokenEndpoint);
+        this.userInfoEndpoint = context.getString(R.string.op_userInfoEndpoint);
+        this.jwksEndpoint = context.getString(R.string.op_jwksEndpoint);
+        this.idTokenSigningAlg = context.getString(R.string.op_idTokenSigningAlg);
+        this.revocationEndpoint = context.getString(R.string.op_revocationEndpoint);
+        this.endSessionEndpoint = context.getString(R.string.op_endSessionEndpoint);
+    }
+
+    /**
+     * Gets the shared configuration, reading it the first time.
+     * @param context any context, only used the first time
+     * @return the configuration snapshot
+     */
+    public static OIDCClientConfiguration get(Context context) {
+        OIDCClientConfiguration configuration = current;
+        if (configuration == null) {
+            synchronized (OIDCClientConfiguration.class) {
+                configuration = current;
+                if (configuration == null) {
+                    configuration = new OIDCClientConfiguration(context);
+                    current = configuration;
+                }
+            }
+        }
+        return configuration;
+    }
+
+    /**
+     * Reads the configuration again (i.e. after the saved client configuration changed), notifying
+     * the listeners if it differs from the previous one.
+     * @param context any context
+     * @return the new configuration snapshot
+     */
+    public static OIDCClientConfiguration reload(Context context) {
+        OIDCClientConfiguration configuration = new OIDCClientConfiguration(context);
+        OIDCClientConfiguration previous;
+        synchronized (OIDCClientConfiguration.class) {
+            previous = current;
+            current = configuration;
+        }
+        if (!configuration.equals(previous)) {
+            for (OnChangeListener listener : listeners) {
+                listener.onClientConfigurationChanged(configuration);
+            }
+        }
+        return configuration;
+    }
+
+    public static void addOnChangeListener(OnChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeOnChangeListener(OnChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    //region Getters
+
+    /**
+     * @return true if the configuration was saved by the client configuration screen.
+     */
+    public boolean isLoadedFromPrefs() {
+        return loadedFromPrefs;
+    }
+
+    public boolean isUseOAuth2() {
+        return useOAuth2;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getClientSecret() {
+        return clientSecret;
+    }
+
+    public String getRedirectUrl() {
+        return redirectUrl;
+    }
+
+    /**
+     * @return a copy of the scopes, may be null
+     */
+    public String[] getScopes() {
+        return scopes != null ? scopes.clone() : null;
+    }
+
+    public String getFlowTypeName() {
+        return flowTypeName;
+    }
+
+    public String getIssuerId() {
+        return issuerId;
+    }
+
+    /**
+     * @return the (unmodifiable) extra authentication request parameters, may be null
+     */
+    public Map<String, String> getExtras() {
+        return extras;
+    }
+
+    public boolean isUseDiscovery() {
+        return useDiscovery;
+    }
+
+    public String getAuthorizationEndpoint() {
+        return authorizationEndpoint;
+    }
+
+    public String getTokenEndpoint() {
+        return tokenEndpoint;
+    }
+
+    public String getUserInfoEndpoint() {
+        return userInfoEndpoint;
+    }
+
+    public String getJwksEndpoint() {
+        return jwksEndpoint;
+    }
+
+    public String getIdTokenSigningAlg() {
+        return idTokenSigningAlg;
+    }
+
+    public String getRevocationEndpoint() {
+        return revocationEndpoint;
+    }
+
+    public String getEndSessionEndpoint() {
+        return endSessionEndpoint;
+    }
+
+    //endregion
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        OIDCClientConfiguration that = (OIDCClientConfiguration) o;
+        return loadedFromPrefs == that.loadedFromPrefs
+                && useOAuth2 == that.useOAuth2
+                && useDiscovery == that.useDiscovery
+                && equal(clientId, that.clientId)
+                && equal(clientSecret, that.clientSecret)
+                && equal(redirectUrl, that.redirectUrl)
+                && Arrays.equals(scopes, that.scopes)
+                && equal(flowTypeName, that.flowTypeName)
+                && equal(issuerId, that.issuerId)
+                && equal(extras, that.extras)
+                && equal(authorizationEndpoint, that.authorizationEndpoint)
+                && equal(tokenEndpoint, that.tokenEndpoint)
+                && equal(userInfoEndpoint, that.userInfoEndpoint)
+                && equal(jwksEndpoint, that.jwksEndpoint)
+                && equal(idTokenSigningAlg, that.idTokenSigningAlg)
+                && equal(revocationEndpoint, that.revocationEndpoint)
+                && equal(endSessionEndpoint, that.endSessionEndpoint);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new Object[]{loadedFromPrefs, useOAuth2, useDiscovery, clientId, clientSecret,
+                redirectUrl, Arrays.hashCode(scopes), flowTypeName, issuerId, extras, authorizationEndpoint,
+                tokenEndpoint, userInfoEndpoint, jwksEndpoint, idTokenSigningAlg, revocationEndpoint,
+                endSessionEndpoint});
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Helper to parse the content of an array of strings as a HashMap, where the contained strings
+     * have the format "%s|%s".
+     * @param stringArray the array of strings
+     * @return a hash map (key->value)
+     */
+    private static HashMap<String, String> parseStringArray(String[] stringArray) {
+        HashMap<String, String> outputArray = new HashMap<>(stringArray.length);
+        for (String entry : stringArray) {
+            String[] splitResult = entry.split("\\|", 2);
+            outputArray.put(splitResult[0], splitResult[1]);
+        }
+        return outputArray;
+    }
+}
@@ -0,0 +1,151 @@
+package com.lnikkila.oidc;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads the asynchronous API of the library runs on.
+ * <br/>
+ * Asynchronous operations don't hold a thread while waiting for the AccountManager or for the
+ * Authenticator: the AccountManager answers on a dedicated callback thread, and only the local
+ * work (decryption, encryption, storage) runs on the worker executor. The worker executor can be
+ * replaced by one of your choosing with {@link #setWorkerExecutor(Executor)}. The authorization
+ * flows have their own executor, see {@link #getAuthorizationExecutor()}.
+ */
+public final class OIDCExecutors {
+
+    //region Constants
+
+    private static final int WORKER_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    private static final int AUTHORIZATION_THREADS = 2;
+    private static final int AUTHORIZATION_QUEUE_CAPACITY = 8;
+
+    //endregion
+
+    private static final ExecutorService defaultWorkerExecutor;
+    private static final ExecutorService authorizationExecutor;
+    private static final ScheduledExecutorService scheduler;
+    private static final Executor mainThreadExecutor;
+
+    private static volatile Executor workerExecutor;
+    private static volatile Handler callbackHandler;
+
+    static {
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("OIDCWorker"));
+        workers.allowCoreThreadTimeOut(true);
+        defaultWorkerExecutor = workers;
+        workerExecutor = workers;
+
+        ThreadPoolExecutor authorization = new ThreadPoolExecutor(AUTHORIZATION_THREADS, AUTHORIZATION_THREADS,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(AUTHORIZATION_QUEUE_CAPACITY),
+                new NamedThreadFactory("OIDCAuthorization"));
+        authorization.allowCoreThreadTimeOut(true);
+        authorizationExecutor = authorization;
+
+        scheduler = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("OIDCTimeout"));
+
+        mainThreadExecutor = new Executor() {
+            private final Handler handler = new Handler(Looper.getMainLooper());
+
+            @Override
+            public void execute(Runnable runnable) {
+                handler.post(runnable);
+            }
+        };
+    }
+
+    private OIDCExecutors() {
+    }
+
+    /**
+     * @return the executor running the local work of the asynchronous operations
+     */
+    public static Executor getWorkerExecutor() {
+        return workerExecutor;
+    }
+
+    /**
+     * Replaces the executor running the local work of the asynchronous operations.
+     * @param executor the executor to use, or null to go back to the library one
+     */
+    public static void setWorkerExecutor(Executor executor) {
+        workerExecutor = executor != null ? executor : defaultWorkerExecutor;
+    }
+
+    /**
+     * Gets the executor running the authorization flows (token requests and account creation).
+     * It is bounded and separate from the worker executor and from the AsyncTask one, so a login
+     * never waits behind unrelated background work.
+     */
+    public static Executor getAuthorizationExecutor() {
+        return authorizationExecutor;
+    }
+
+    /**
+     * @return an executor delivering on the main thread, the default for callbacks
+     */
+    public static Executor getMainThreadExecutor() {
+        return mainThreadExecutor;
+    }
+
+    /**
+     * @return the scheduler enforcing the timeouts
+     */
+    static ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Gets the handler the AccountManager calls back on. It isn't the main thread, so a caller
+     * blocking the main thread on an {@link OIDCFuture} doesn't prevent its completion.
+     */
+    static Handler getCallbackHandler() {
+        Handler handler = callbackHandler;
+        if (handler == null) {
+            synchronized (OIDCExecutors.class) {
+                handler = callbackHandler;
+                if (handler == null) {
+                    HandlerThread thread = new HandlerThread("OIDCAccountCallbacks");
+                    thread.setDaemon(true);
+                    thread.start();
+                    handler = new Handler(thread.getLooper());
+                    callbackHandler = handler;
+                }
+            }
+        }
+        return handler;
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
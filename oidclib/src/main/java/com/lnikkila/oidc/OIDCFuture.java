@@ -0,0 +1,193 @@
+package com.lnikkila.oidc;
+
+import android.accounts.AccountManagerFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of an asynchronous operation of the library.
+ * <br/>
+ * The result can be waited for with {@link #get()} (never from the main thread) or received by
+ * registering {@link OIDCCallback}s. Cancelling the future also cancels the AccountManager request
+ * or the work it is waiting for, and {@link #withTimeout(long, TimeUnit)} fails it with a
+ * {@link TimeoutException} when it isn't completed in time.
+ *
+ * @param <V> the result of the operation
+ */
+public class OIDCFuture<V> extends FutureTask<V> {
+
+    private final List<Runnable> listeners = new ArrayList<>();
+    private boolean listenersNotified;
+
+    private volatile AccountManagerFuture<?> pendingRequest;
+    private volatile Future<?> pendingWork;
+    private volatile ScheduledFuture<?> pendingTimeout;
+
+    public OIDCFuture() {
+        super(new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                throw new IllegalStateException("An OIDCFuture is completed by the operation that created it");
+            }
+        });
+    }
+
+    /**
+     * @return a future already completed with the given result
+     */
+    public static <V> OIDCFuture<V> completed(V result) {
+        OIDCFuture<V> future = new OIDCFuture<>();
+        future.set(result);
+        return future;
+    }
+
+    @Override
+    public void set(V result) {
+        super.set(result);
+    }
+
+    @Override
+    public void setException(Throwable throwable) {
+        super.setException(throwable);
+    }
+
+    /**
+     * Fails this future if it isn't completed within the given time, cancelling the work it is
+     * waiting for.
+     * @return this future
+     */
+    public OIDCFuture<V> withTimeout(final long timeout, final TimeUnit unit) {
+        if (!isDone()) {
+            pendingTimeout = OIDCExecutors.getScheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isDone()) {
+                        setException(new TimeoutException(String.format("Not completed within %1$d %2$s", timeout, unit)));
+                        cancelPendingWork();
+                    }
+                }
+            }, timeout, unit);
+        }
+        return this;
+    }
+
+    /**
+     * Registers a callback, called as soon as this future completes (or right away if it already
+     * has).
+     * @param callback the callback
+     * @param executor the executor the callback is called on
+     * @return this future
+     */
+    public OIDCFuture<V> addCallback(final OIDCCallback<? super V> callback, final Executor executor) {
+        Runnable listener = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(callback);
+                    }
+                });
+            }
+        };
+        synchronized (listeners) {
+            if (!listenersNotified) {
+                listeners.add(listener);
+                return this;
+            }
+        }
+        listener.run();
+        return this;
+    }
+
+    /**
+     * Registers a callback called on the main thread.
+     * @see #addCallback(OIDCCallback, Executor)
+     */
+    public OIDCFuture<V> addCallback(OIDCCallback<? super V> callback) {
+        return addCallback(callback, OIDCExecutors.getMainThreadExecutor());
+    }
+
+    /**
+     * Links this future to the AccountManager request it is waiting for, so cancelling one cancels
+     * the other.
+     */
+    void setPendingRequest(AccountManagerFuture<?> request) {
+        pendingRequest = request;
+        if (isCancelled()) {
+            request.cancel(true);
+        }
+    }
+
+    /**
+     * Links this future to the work it is waiting for, so cancelling one cancels the other.
+     */
+    void setPendingWork(Future<?> work) {
+        pendingWork = work;
+        if (isCancelled()) {
+            work.cancel(true);
+        }
+    }
+
+    @Override
+    protected void done() {
+        ScheduledFuture<?> timeout = pendingTimeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        if (isCancelled()) {
+            cancelPendingWork();
+        }
+
+        List<Runnable> toNotify;
+        synchronized (listeners) {
+            listenersNotified = true;
+            toNotify = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        for (Runnable listener : toNotify) {
+            listener.run();
+        }
+    }
+
+    private void cancelPendingWork() {
+        AccountManagerFuture<?> request = pendingRequest;
+        if (request != null) {
+            request.cancel(true);
+        }
+        Future<?> work = pendingWork;
+        if (work != null) {
+            work.cancel(true);
+        }
+    }
+
+    private void deliver(OIDCCallback<? super V> callback) {
+        V result;
+        try {
+            result = get();
+        } catch (CancellationException e) {
+            callback.onError(e);
+            return;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            callback.onError(cause instanceof Exception ? (Exception) cause : e);
+            return;
+        } catch (InterruptedException e) {
+            // Can't happen, the future is done
+            Thread.currentThread().interrupt();
+            callback.onError(e);
+            return;
+        }
+        callback.onSuccess(result);
+    }
+}
@@ -0,0 +1,323 @@
+package com.lnikkila.oidc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.util.Preconditions;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+import com.lnikkila.oidc.platform.Log;
+import com.lnikkila.oidc.security.SensitiveDataUtils;
+import com.lnikkila.oidc.security.UserNotAuthenticatedWrapperException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Revokes tokens at the OP in the background, so logging out doesn't wait for the network.
+ * <br/>
+ * Tokens to revoke are queued, persisted (encrypted) and sent in batches over the shared
+ * connection: everything queued when the queue drains is revoked in the same run. When the OP
+ * can't be reached the pending revocations are kept and retried later with an exponential
+ * back-off, including after a restart of the process.
+ * <br/>
+ * Nothing is queued when the OP has no Revocation Endpoint, the tokens are left to expire.
+ */
+public class OIDCRevocationQueue {
+
+    private static final String TAG = OIDCRevocationQueue.class.getSimpleName();
+
+    //region Constants
+
+    protected static final int DEFAULT_RETRY_DELAY_SECONDS  = 60;
+    protected static final int MAX_RETRY_DELAY_SECONDS      = 6 * 60 * 60;
+
+    private static final String PREFS_NAME          = "oidc_revocations";
+    private static final String KEY_PENDING         = "pending";
+
+    //endregion
+
+    private static volatile OIDCRevocationQueue instance;
+
+    private final Context context;
+    private final SharedPreferences preferences;
+    private final SensitiveDataUtils dataEncUtils;
+    private final ScheduledExecutorService executor;
+    private final Gson gson = new Gson();
+
+    private final List<PendingRevocation> pending = new ArrayList<>();
+    private ScheduledFuture<?> scheduledDrain;
+    private int failedAttempts;
+
+    protected OIDCRevocationQueue(Context context) {
+        this.context = Preconditions.checkNotNull(context).getApplicationContext();
+        this.preferences = this.context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.dataEncUtils = SensitiveDataUtils.newInstance(this.context);
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "OIDCRevocation");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Revocations left over by a previous process
+        pending.addAll(loadFromDisk());
+        if (!pending.isEmpty()) {
+            scheduleDrain(0);
+        }
+    }
+
+    public static OIDCRevocationQueue getInstance(Context context) {
+        OIDCRevocationQueue queue = instance;
+        if (queue == null) {
+            synchronized (OIDCRevocationQueue.class) {
+                queue = instance;
+                if (queue == null) {
+                    queue = new OIDCRevocationQueue(context);
+                    instance = queue;
+                }
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Queues the revocation of a token, if the OP supports revocation.
+     * @param token the access token or refresh token to revoke
+     * @param tokenTypeHint {@link OIDCRequestManager#TOKEN_TYPE_HINT_ACCESS},
+     * {@link OIDCRequestManager#TOKEN_TYPE_HINT_REFRESH} or null
+     */
+    public void enqueue(String token, String tokenTypeHint) {
+        if (token != null) {
+            enqueue(new PendingRevocation(token, tokenTypeHint));
+        }
+    }
+
+    /**
+     * Queues the revocation of the refresh token and of the access token of a bundle, sent in the
+     * same batch, if the OP supports revocation.
+     */
+    public void enqueue(OIDCTokenBundle tokens) {
+        List<PendingRevocation> revocations = new ArrayList<>(2);
+        // The refresh token first: revoking it usually revokes the access token as well
+        if (tokens.getRefreshToken() != null) {
+            revocations.add(new PendingRevocation(tokens.getRefreshToken(), OIDCRequestManager.TOKEN_TYPE_HINT_REFRESH));
+        }
+        if (tokens.getAccessToken() != null) {
+            revocations.add(new PendingRevocation(tokens.getAccessToken(), OIDCRequestManager.TOKEN_TYPE_HINT_ACCESS));
+        }
+        enqueue(revocations.toArray(new PendingRevocation[revocations.size()]));
+    }
+
+    /**
+     * @return the number of revocations not sent yet
+     */
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Sends the pending revocations now rather than waiting for the next retry, i.e. when the
+     * network comes back.
+     */
+    public void flush() {
+        scheduleDrain(0);
+    }
+
+    private void enqueue(final PendingRevocation... revocations) {
+        if (revocations.length == 0) {
+            return;
+        }
+        // Reading the endpoints may load the discovery document, and the queue is encrypted to
+        // be saved: both are done on the queue thread so the caller, i.e. a logout, isn't delayed
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!isRevocationSupported()) {
+                    Log.d(TAG, "No revocation endpoint, the tokens are left to expire");
+                    return;
+                }
+                synchronized (pending) {
+                    pending.addAll(Arrays.asList(revocations));
+                    saveToDisk();
+                }
+                scheduleDrain(0);
+            }
+        });
+    }
+
+    private boolean isRevocationSupported() {
+        try {
+            return new OIDCRequestManager(context).isRevocationSupported();
+        } catch (RuntimeException e) {
+            // i.e. an invalid client configuration
+            Log.e(TAG, "Could not read the revocation endpoint", e);
+            return false;
+        }
+    }
+
+    private synchronized void scheduleDrain(long delayMillis) {
+        if (scheduledDrain != null) {
+            if (delayMillis > 0 || scheduledDrain.getDelay(TimeUnit.MILLISECONDS) <= 0) {
+                // A drain not started yet will pick up the new revocations
+                return;
+            }
+            scheduledDrain.cancel(false);
+        }
+        scheduledDrain = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends every pending revocation, stopping at the first one that can't be sent.
+     */
+    protected void drain() {
+        synchronized (this) {
+            // Revocations queued from now on schedule another drain
+            scheduledDrain = null;
+        }
+
+        List<PendingRevocation> batch;
+        synchronized (pending) {
+            batch = new ArrayList<>(pending);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (!isNetworkAvailable()) {
+            Log.d(TAG, "No network, postponing the token revocations");
+            retryLater();
+            return;
+        }
+
+        List<PendingRevocation> done = new ArrayList<>(batch.size());
+        boolean failed = false;
+        try {
+            OIDCRequestManager requestManager = new OIDCRequestManager(context);
+            if (!requestManager.isRevocationSupported()) {
+                // Queued before the endpoint was removed from the configuration, can't be sent
+                Log.w(TAG, "No revocation endpoint, dropping %1$d pending token revocations", batch.size());
+                done.addAll(batch);
+                batch.clear();
+            }
+            for (PendingRevocation revocation : batch) {
+                try {
+                    requestManager.revokeToken(revocation.token, revocation.tokenTypeHint);
+                    done.add(revocation);
+                } catch (HttpResponseException e) {
+                    if (e.getStatusCode() >= HttpStatusCodes.STATUS_CODE_SERVER_ERROR) {
+                        // i.e. 503, the OP asks to retry later
+                        throw e;
+                    }
+                    // Retrying won't help, give up on this token
+                    Log.w(TAG, "Token revocation rejected with status %1$d", e.getStatusCode());
+                    done.add(revocation);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not revoke the tokens, retrying later", e);
+            failed = true;
+        } catch (RuntimeException e) {
+            // i.e. an invalid client configuration
+            Log.e(TAG, "Could not revoke the tokens", e);
+            failed = true;
+        }
+
+        synchronized (pending) {
+            pending.removeAll(done);
+            saveToDisk();
+        }
+        if (failed) {
+            retryLater();
+        } else {
+            failedAttempts = 0;
+        }
+    }
+
+    private void retryLater() {
+        long delaySeconds = Math.min((long) DEFAULT_RETRY_DELAY_SECONDS << Math.min(failedAttempts, 16), MAX_RETRY_DELAY_SECONDS);
+        failedAttempts++;
+        scheduleDrain(delaySeconds * 1000);
+    }
+
+    protected boolean isNetworkAvailable() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager != null ? connectivityManager.getActiveNetworkInfo() : null;
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+    //region Persistence
+
+    private List<PendingRevocation> loadFromDisk() {
+        String encrypted = preferences.getString(KEY_PENDING, null);
+        if (encrypted != null) {
+            try {
+                String json = dataEncUtils.decrypt(encrypted);
+                PendingRevocation[] revocations = json != null ? gson.fromJson(json, PendingRevocation[].class) : null;
+                if (revocations != null) {
+                    return Arrays.asList(revocations);
+                }
+            } catch (UserNotAuthenticatedWrapperException e) {
+                Log.w(TAG, "Could not decrypt the pending revocations, the user isn't authenticated.");
+            } catch (JsonParseException e) {
+                Log.w(TAG, "Dropping malformed pending revocations", e);
+            }
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * Must be called holding the {@link #pending} lock.
+     */
+    private void saveToDisk() {
+        SharedPreferences.Editor editor = preferences.edit();
+        if (pending.isEmpty()) {
+            editor.remove(KEY_PENDING);
+        } else {
+            try {
+                editor.putString(KEY_PENDING, dataEncUtils.encrypt(gson.toJson(pending.toArray(new PendingRevocation[pending.size()]))));
+            } catch (UserNotAuthenticatedWrapperException e) {
+                // Kept in memory only, the tokens will expire anyway
+                Log.w(TAG, "Could not encrypt the pending revocations, the user isn't authenticated.");
+                editor.remove(KEY_PENDING);
+            }
+        }
+        editor.apply();
+    }
+
+    //endregion
+
+    private static class PendingRevocation {
+
+        @SerializedName("token")
+        final String token;
+
+        @SerializedName("token_type_hint")
+        final String tokenTypeHint;
+
+        PendingRevocation(String token, String tokenTypeHint) {
+            this.token = token;
+            this.tokenTypeHint = tokenTypeHint;
+        }
+    }
+}
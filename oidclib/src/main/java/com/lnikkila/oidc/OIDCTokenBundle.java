@@ -0,0 +1,128 @@
+package com.lnikkila.oidc;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+import com.lnikkila.oidc.authenticator.Authenticator;
+
+import java.util.Map;
+
+/**
+ * All the tokens of an account, stored as a single encrypted record.
+ * <br/>
+ * The record is stored under {@link Authenticator#TOKEN_TYPE_BUNDLE}, so saving the tokens costs a
+ * single encryption and reading any of them a single decryption. Invalidated tokens are dropped
+ * with the whole record, which is then only kept for its refresh token.
+ */
+public final class OIDCTokenBundle {
+
+    private static final Gson gson = new Gson();
+
+    @SerializedName("id_token")
+    private final String idToken;
+
+    @SerializedName("access_token")
+    private final String accessToken;
+
+    @SerializedName("refresh_token")
+    private final String refreshToken;
+
+    @SerializedName("expires_at")
+    private final Long accessTokenExpiresAt;
+
+    public OIDCTokenBundle(String idToken, String accessToken, String refreshToken, Long accessTokenExpiresAt) {
+        this.idToken = idToken;
+        this.accessToken = accessToken;
+        this.refreshToken = refreshToken;
+        this.accessTokenExpiresAt = accessTokenExpiresAt;
+    }
+
+    public String getIdToken() {
+        return idToken;
+    }
+
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    public String getRefreshToken() {
+        return refreshToken;
+    }
+
+    /**
+     * @return the access token expiration time in epoch milliseconds, or null if unknown
+     */
+    public Long getAccessTokenExpiresAt() {
+        return accessTokenExpiresAt;
+    }
+
+    /**
+     * Gets a token by its AccountManager token type.
+     * @param tokenType one of the {@link Authenticator} token types
+     * @return the token or null
+     */
+    public String getToken(String tokenType) {
+        if (Authenticator.TOKEN_TYPE_ID.equals(tokenType)) {
+            return idToken;
+        } else if (Authenticator.TOKEN_TYPE_ACCESS.equals(tokenType)) {
+            return accessToken;
+        } else if (Authenticator.TOKEN_TYPE_REFRESH.equals(tokenType)) {
+            return refreshToken;
+        }
+        return null;
+    }
+
+    /**
+     * Copies this bundle, taking the tokens it lacks from the given one (i.e. a refresh response
+     * without a new refresh token keeps the previous one).
+     * @param previous the previously stored bundle, may be null
+     * @return the merged bundle
+     */
+    public OIDCTokenBundle withDefaults(OIDCTokenBundle previous) {
+        if (previous == null) {
+            return this;
+        }
+        return new OIDCTokenBundle(
+                idToken != null ? idToken : previous.idToken,
+                accessToken != null ? accessToken : previous.accessToken,
+                refreshToken != null ? refreshToken : previous.refreshToken,
+                accessToken != null ? accessTokenExpiresAt : previous.accessTokenExpiresAt);
+    }
+
+    /**
+     * Builds a bundle from tokens stored one by one by the former versions of the library.
+     * @param tokensByType the tokens by {@link Authenticator} token type
+     * @param accessTokenExpiresAt the access token expiration time, may be null
+     */
+    public static OIDCTokenBundle fromTokens(Map<String, String> tokensByType, Long accessTokenExpiresAt) {
+        return new OIDCTokenBundle(
+                tokensByType.get(Authenticator.TOKEN_TYPE_ID),
+                tokensByType.get(Authenticator.TOKEN_TYPE_ACCESS),
+                tokensByType.get(Authenticator.TOKEN_TYPE_REFRESH),
+                accessTokenExpiresAt);
+    }
+
+    public String toJson() {
+        return gson.toJson(this);
+    }
+
+    /**
+     * Tells whether a decrypted record is a bundle rather than a single token stored by the former
+     * versions of the library.
+     */
+    public static boolean isBundle(String data) {
+        return data != null && data.startsWith("{");
+    }
+
+    /**
+     * @param json a decrypted record
+     * @return the bundle, or null if the record isn't a valid bundle
+     */
+    public static OIDCTokenBundle fromJson(String json) {
+        try {
+            return gson.fromJson(json, OIDCTokenBundle.class);
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.lnikkila.oidc;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.auth.oauth2.TokenResponseException;
+import com.google.api.client.util.Preconditions;
+import com.lnikkila.oidc.authenticator.Authenticator;
+import com.lnikkila.oidc.platform.Log;
+import com.lnikkila.oidc.security.UserNotAuthenticatedWrapperException;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes the accounts access tokens shortly before they expire, so foreground requests almost
+ * never have to wait for a refresh (or fail first with a 401).
+ * <br/>
+ * Refreshes are scheduled from the expiration time saved by {@link OIDCAccountManager#saveTokens(Account, com.google.api.client.auth.oauth2.TokenResponse)},
+ * {@link #getSkewSeconds()} before the expiry minus a random jitter so that several accounts don't
+ * refresh at the same moment. When there is no network the refresh is retried later; when the
+ * battery is low it is skipped and the token will be refreshed on demand as before.
+ * <br/>
+ * The scheduler lives as long as the process: call {@link #start()} from your Application or your
+ * main Activity.
+ */
+public class OIDCTokenRefreshScheduler {
+
+    private static final String TAG = OIDCTokenRefreshScheduler.class.getSimpleName();
+
+    //region Constants
+
+    protected static final int DEFAULT_SKEW_SECONDS         = 60;
+    protected static final int DEFAULT_JITTER_SECONDS       = 30;
+    protected static final int DEFAULT_MIN_BATTERY_LEVEL    = 15;
+    protected static final int DEFAULT_RETRY_DELAY_SECONDS  = 60;
+
+    //endregion
+
+    private static volatile OIDCTokenRefreshScheduler instance;
+
+    private final Context context;
+    private final OIDCAccountManager accountManager;
+    private final OIDCRequestManager requestManager;
+    private final ScheduledExecutorService executor;
+    private final Map<String, ScheduledFuture<?>> scheduledRefreshes = new ConcurrentHashMap<>();
+    private final Random random = new Random();
+
+    private volatile boolean started;
+    private volatile int skewSeconds;
+    private volatile int jitterSeconds;
+    private volatile int minBatteryLevel;
+    private volatile int retryDelaySeconds = DEFAULT_RETRY_DELAY_SECONDS;
+
+    protected OIDCTokenRefreshScheduler(Context context) {
+        this.context = Preconditions.checkNotNull(context).getApplicationContext();
+        this.accountManager = new OIDCAccountManager(this.context);
+        this.requestManager = new OIDCRequestManager(this.context);
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "OIDCTokenRefresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        int skew = this.context.getResources().getInteger(R.integer.oidc_refreshSkewSeconds);
+        int jitter = this.context.getResources().getInteger(R.integer.oidc_refreshJitterSeconds);
+        int battery = this.context.getResources().getInteger(R.integer.oidc_refreshMinBatteryLevel);
+        this.skewSeconds = skew > 0 ? skew : DEFAULT_SKEW_SECONDS;
+        this.jitterSeconds = jitter >= 0 ? jitter : DEFAULT_JITTER_SECONDS;
+        this.minBatteryLevel = battery >= 0 ? battery : DEFAULT_MIN_BATTERY_LEVEL;
+    }
+
+    public static OIDCTokenRefreshScheduler getInstance(Context context) {
+        OIDCTokenRefreshScheduler scheduler = instance;
+        if (scheduler == null) {
+            synchronized (OIDCTokenRefreshScheduler.class) {
+                scheduler = instance;
+                if (scheduler == null) {
+                    scheduler = new OIDCTokenRefreshScheduler(context);
+                    instance = scheduler;
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * Called when new tokens are saved for the given account, so its next refresh is re-scheduled.
+     * Does nothing if the scheduler was never started.
+     */
+    /*package*/ static void notifyTokensSaved(Account account) {
+        OIDCTokenRefreshScheduler scheduler = instance;
+        if (scheduler != null && account != null) {
+            scheduler.schedule(account);
+        }
+    }
+
+    /**
+     * Called when the given account is removed, so its scheduled refresh is dropped.
+     */
+    /*package*/ static void notifyAccountRemoved(Account account) {
+        OIDCTokenRefreshScheduler scheduler = instance;
+        if (scheduler != null && account != null) {
+            scheduler.cancel(account);
+        }
+    }
+
+    //region Setters/Getters
+
+    public int getSkewSeconds() {
+        return skewSeconds;
+    }
+
+    public OIDCTokenRefreshScheduler setSkewSeconds(int skewSeconds) {
+        this.skewSeconds = skewSeconds;
+        return this;
+    }
+
+    public OIDCTokenRefreshScheduler setJitterSeconds(int jitterSeconds) {
+        this.jitterSeconds = jitterSeconds;
+        return this;
+    }
+
+    public OIDCTokenRefreshScheduler setMinBatteryLevel(int minBatteryLevel) {
+        this.minBatteryLevel = minBatteryLevel;
+        return this;
+    }
+
+    public OIDCTokenRefreshScheduler setRetryDelaySeconds(int retryDelaySeconds) {
+        this.retryDelaySeconds = retryDelaySeconds;
+        return this;
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    //endregion
+
+    //region Scheduling
+
+    /**
+     * Starts scheduling refreshes for every existing account.
+     */
+    public void start() {
+        started = true;
+        for (Account account : accountManager.getAccounts()) {
+            schedule(account);
+        }
+    }
+
+    /**
+     * Cancels every scheduled refresh. Tokens will only be refreshed on demand.
+     */
+    public void stop() {
+        started = false;
+        for (ScheduledFuture<?> future : scheduledRefreshes.values()) {
+            future.cancel(false);
+        }
+        scheduledRefreshes.clear();
+    }
+
+    /**
+     * (Re)schedules the refresh of the given account access token from its saved expiration time.
+     * @param account the account to refresh
+     */
+    public void schedule(Account account) {
+        if (!started) {
+            return;
+        }
+
+        Long expiresAt = accountManager.getAccessTokenExpiresAt(account);
+        if (expiresAt == null) {
+            Log.d(TAG, "No expiration time for account %1$s, nothing to schedule", account.name);
+            cancel(account);
+            return;
+        }
+
+        long jitterMillis = jitterSeconds > 0 ? (long) (random.nextDouble() * jitterSeconds * 1000) : 0;
+        long delay = expiresAt - skewSeconds * 1000L - jitterMillis - System.currentTimeMillis();
+        schedule(account, Math.max(0, delay));
+    }
+
+    /**
+     * Cancels the scheduled refresh of the given account, i.e. when it gets removed.
+     * @param account the account
+     */
+    public void cancel(Account account) {
+        ScheduledFuture<?> previous = scheduledRefreshes.remove(account.name);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    private void schedule(final Account account, long delayMillis) {
+        ScheduledFuture<?> future = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refresh(account);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+
+        ScheduledFuture<?> previous = scheduledRefreshes.put(account.name, future);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        Log.d(TAG, "Refresh of account %1$s scheduled in %2$d s", account.name, delayMillis / 1000);
+    }
+
+    //endregion
+
+    /**
+     * Refreshes the tokens of the given account with its refresh token. The current access token is
+     * left in place until the new one is saved, so a failed refresh costs nothing: it is retried
+     * later and the token stays usable until it expires.
+     * <br/>
+     * The refresh runs in the account's refresh flight, see
+     * {@link Authenticator#refreshInFlight(Account, Callable)}: it never sends the refresh token
+     * while an on-demand refresh of the same account does.
+     */
+    protected void refresh(final Account account) {
+        scheduledRefreshes.remove(account.name);
+
+        if (!isNetworkAvailable()) {
+            Log.d(TAG, "No network, postponing the token refresh");
+            schedule(account, retryDelaySeconds * 1000L);
+            return;
+        }
+        if (isBatteryLow()) {
+            Log.d(TAG, "Battery low, the token will be refreshed on demand");
+            return;
+        }
+
+        // The expiration time this refresh is due for, it changes when new tokens are saved
+        final Long expiresAt = accountManager.getAccessTokenExpiresAt(account);
+        final boolean[] retry = new boolean[1];
+        try {
+            Authenticator.refreshInFlight(account, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    retry[0] = !refreshIfDue(account, expiresAt);
+                    return null;
+                }
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TokenResponseException) {
+                // The user has to authorise again, which the next token request will ask for
+                Log.w(TAG, e.getCause(), "Refresh token of account %1$s rejected", account.name);
+            } else {
+                Log.w(TAG, e.getCause(), "Could not refresh the access token of account %1$s", account.name);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (retry[0]) {
+            schedule(account, retryDelaySeconds * 1000L);
+        }
+    }
+
+    /**
+     * Runs in the account's refresh flight.
+     * @param expiresAt the access token expiration time the refresh was scheduled for
+     * @return false if the refresh failed and should be retried later
+     * @throws TokenResponseException only when the refresh token is rejected
+     */
+    private boolean refreshIfDue(Account account, Long expiresAt)
+            throws TokenResponseException, UserNotAuthenticatedWrapperException {
+        Long currentExpiresAt = accountManager.getAccessTokenExpiresAt(account);
+        if (currentExpiresAt != null && !currentExpiresAt.equals(expiresAt)) {
+            // Saving them has re-scheduled the next refresh
+            Log.d(TAG, "Tokens of account %1$s refreshed meanwhile", account.name);
+            return true;
+        }
+
+        OIDCTokenBundle tokens = accountManager.peekTokens(account);
+        String refreshToken = tokens != null ? tokens.getRefreshToken() : null;
+        if (refreshToken == null) {
+            Log.d(TAG, "No refresh token for account %1$s, the token will be refreshed on demand", account.name);
+            return true;
+        }
+
+        try {
+            TokenResponse response = requestManager.refreshTokens(refreshToken);
+            // Saving re-schedules the next refresh
+            accountManager.saveTokens(account, response);
+            return true;
+        } catch (TokenResponseException e) {
+            if (e.getStatusCode() == HttpURLConnection.HTTP_BAD_REQUEST && e.getContent() != null
+                    && e.getContent().contains("invalid_grant")) {
+                throw e;
+            }
+            Log.w(TAG, "Could not refresh the access token, retrying later", e);
+            return false;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not refresh the access token, retrying later", e);
+            return false;
+        }
+    }
+
+    protected boolean isNetworkAvailable() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager != null ? connectivityManager.getActiveNetworkInfo() : null;
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+    protected boolean isBatteryLow() {
+        Intent batteryStatus = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (batteryStatus == null) {
+            return false;
+        }
+        boolean isPlugged = batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return !isPlugged && level >= 0 && scale > 0 && (level * 100 / scale) < minBatteryLevel;
+    }
+}
@@ -9,15 +9,19 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.text.TextUtils;
-import android.util.Log;
 
 import com.google.api.client.auth.oauth2.TokenResponse;
 import com.google.api.client.auth.oauth2.TokenResponseException;
 import com.lnikkila.oidc.OIDCAccountManager;
 import com.lnikkila.oidc.OIDCRequestManager;
+import com.lnikkila.oidc.metrics.Metrics;
+import com.lnikkila.oidc.platform.Log;
 import com.lnikkila.oidc.security.UserNotAuthenticatedWrapperException;
+import com.lnikkila.oidc.util.SingleFlight;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
 
@@ -31,6 +35,15 @@ import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
  * Access Token:  TOKEN_TYPE_ACCESS  (replaceable by the ID Token, so we're not really using this)
  * Refresh Token: TOKEN_TYPE_REFRESH
  *
+ * They are stored together, as a single encrypted record under TOKEN_TYPE_BUNDLE. A request of
+ * TOKEN_TYPE_BUNDLE returns that record (the JSON of an OIDCTokenBundle once decrypted), a request of
+ * any other type returns the requested token alone, encrypted in a record of its own: the
+ * AccountManager keeps a copy of what it is returned under the requested type, so that copy must not
+ * hold the other tokens. Saving new tokens clears these copies.
+ *
+ * Invalidating the tokens moves the record under TOKEN_TYPE_REFRESH, where it only holds the refresh
+ * token, so the next request of any type refreshes them.
+ *
  * @author Leo Nikkilä
  * @author Camilo Montes
  */
@@ -45,6 +58,13 @@ public class Authenticator extends AbstractAccountAuthenticator {
     public static final String TOKEN_TYPE_ID = "com.lnikkila.oidcsample.TOKEN_TYPE_ID";
     public static final String TOKEN_TYPE_ACCESS = "com.lnikkila.oidcsample.TOKEN_TYPE_ACCESS";
     public static final String TOKEN_TYPE_REFRESH = "com.lnikkila.oidcsample.TOKEN_TYPE_REFRESH";
+    public static final String TOKEN_TYPE_BUNDLE = "com.lnikkila.oidcsample.TOKEN_TYPE_BUNDLE";
+
+    /**
+     * Refreshes in progress, per account. Shared by every Authenticator instance because the
+     * AccountManager calls us concurrently from its binder threads.
+     */
+    private static final SingleFlight<String, Void> refreshFlights = new SingleFlight<>();
 
     public Authenticator(Context context) {
         super(context);
@@ -66,8 +86,8 @@ public class Authenticator extends AbstractAccountAuthenticator {
     public Bundle addAccount(AccountAuthenticatorResponse response, String accountType,
                              String authTokenType, String[] requiredFeatures, Bundle options) {
 
-        Log.d(TAG, String.format("addAccount called with accountType %s, authTokenType %s.",
-                accountType, authTokenType));
+        Log.d(TAG, "addAccount called with accountType %s, authTokenType %s.",
+                accountType, authTokenType);
 
         Bundle result = new Bundle();
 
@@ -88,24 +108,43 @@ public class Authenticator extends AbstractAccountAuthenticator {
     @Override
     public Bundle getAuthToken(AccountAuthenticatorResponse response, Account account,
                                String authTokenType, Bundle options) {
+        Metrics.Timer timer = Metrics.startTimer(Metrics.AUTHENTICATOR_GET_AUTH_TOKEN);
+        try {
+            return getStoredOrRefreshedAuthToken(response, account, authTokenType);
+        } catch (RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
 
-        Log.d(TAG, String.format("getAuthToken called with account.type '%s', account.name '%s', " +
-                "authTokenType '%s'.", account.type, account.name, authTokenType));
+    private Bundle getStoredOrRefreshedAuthToken(AccountAuthenticatorResponse response, Account account,
+                                                 String authTokenType) {
+        Log.d(TAG, "getAuthToken called with account.type '%s', account.name '%s', " +
+                "authTokenType '%s'.", account.type, account.name, authTokenType);
 
-        // Try to retrieve a stored token
-        String token = accountManager.getAccountManager().peekAuthToken(account, authTokenType);
+        // Try to retrieve the stored tokens, every type is read from the bundle record
+        String token = accountManager.getAccountManager().peekAuthToken(account, TOKEN_TYPE_BUNDLE);
 
         if (TextUtils.isEmpty(token)) {
             // If we don't have one or the token has been invalidated, we need to check if we have
             // a refresh token
             Log.d(TAG, "Token empty, checking for refresh token.");
-            String refreshToken = accountManager.getAccountManager().peekAuthToken(account, TOKEN_TYPE_REFRESH);
+            // The stored record is encrypted, the refresh token must be decrypted before being sent
+            String refreshToken = null;
+            try {
+                refreshToken = accountManager.peekToken(account, TOKEN_TYPE_REFRESH);
+            } catch (UserNotAuthenticatedWrapperException e) {
+                Log.w(TAG, "Could not decrypt the refresh token, the user isn't authenticated.", e);
+            }
 
             if (TextUtils.isEmpty(refreshToken)) {
                 // If we don't even have a refresh token, we need to launch an intent for the user
                 // to get us a new set of tokens by authorising us again.
 
                 Log.d(TAG, "Refresh token empty, launching intent for renewing authorisation.");
+                Metrics.increment(Metrics.REAUTHORIZATION_REQUIRED);
 
                 Bundle result = new Bundle();
 
@@ -121,13 +160,14 @@ public class Authenticator extends AbstractAccountAuthenticator {
                 Log.d(TAG, "Got refresh token, getting new tokens.");
 
                 try {
-                    refreshTokens(account, refreshToken);
+                    refreshTokensOnce(account, TOKEN_TYPE_BUNDLE, refreshToken);
                 }
                 catch (TokenResponseException e) {
                     // If the refresh token has expired, we need to launch an intent for the user
                     // to get us a new set of tokens by authorising us again.
 
                     Log.d(TAG, "Refresh token expired, launching intent for renewing authorisation.");
+                    Metrics.increment(Metrics.REAUTHORIZATION_REQUIRED);
 
                     Bundle result = new Bundle();
 
@@ -142,12 +182,26 @@ public class Authenticator extends AbstractAccountAuthenticator {
                     //FIXME: we need to see how to handle this here because we can't do a start activity for result
                 }
 
-                // Now, let's return the token that was requested
-                token = accountManager.getAccountManager().peekAuthToken(account, authTokenType);
+                // Now, let's return the tokens
+                token = accountManager.getAccountManager().peekAuthToken(account, TOKEN_TYPE_BUNDLE);
+            }
+        }
+
+        if (token != null && !TOKEN_TYPE_BUNDLE.equals(authTokenType)) {
+            // The AccountManager caches the result under the requested type, only give that token
+            try {
+                token = accountManager.extractTokenRecord(token, authTokenType);
+            } catch (UserNotAuthenticatedWrapperException e) {
+                Log.w(TAG, "Could not decrypt the tokens, the user isn't authenticated.", e);
+
+                Bundle result = new Bundle();
+                result.putInt(AccountManager.KEY_ERROR_CODE, AccountManager.ERROR_CODE_BAD_AUTHENTICATION);
+                result.putString(AccountManager.KEY_ERROR_MESSAGE, "The user isn't authenticated, the tokens can't be decrypted");
+                return result;
             }
         }
 
-        Log.d(TAG, String.format("Returning token '%s' of type '%s'.", token, authTokenType));
+        Log.d(TAG, "Returning token '%s' of type '%s'.", Log.redact(token), authTokenType);
 
         Bundle result = new Bundle();
 
@@ -165,11 +219,13 @@ public class Authenticator extends AbstractAccountAuthenticator {
      * @throws TokenResponseException when refreshToken is invalid or expired
      */
     protected void refreshTokens(Account account, String refreshToken) throws TokenResponseException, UserNotAuthenticatedWrapperException {
+        Metrics.Timer timer = Metrics.startTimer(Metrics.AUTHENTICATOR_REFRESH);
         try {
             TokenResponse tokenResponse = requestManager.refreshTokens(refreshToken);
             Log.d(TAG, "Got new tokens.");
             accountManager.saveTokens(account, tokenResponse);
         } catch (TokenResponseException e) {
+            timer.fail(e);
             //If token has expired propagate the exception, else just treat it like an IOException
             if(e.getStatusCode() == HTTP_BAD_REQUEST && e.getContent().contains("invalid_grant")) {
                 Log.d(TAG, "Refresh token expired response detected");
@@ -179,11 +235,87 @@ public class Authenticator extends AbstractAccountAuthenticator {
                 Log.e(TAG, "Couldn't get new tokens.", e);
             }
         } catch (IOException e) {
+            timer.fail(e);
             // There's not much we can do if we get here
             Log.e(TAG, "Couldn't get new tokens.", e);
+        } catch (UserNotAuthenticatedWrapperException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Refreshes the account tokens, making sure that only one refresh per account hits the token
+     * endpoint at a time. Concurrent callers for the same account wait for the running refresh and
+     * share its outcome.
+     * @param account the account whose token should be refreshed, will never be null
+     * @param authTokenType the token type the caller is waiting for
+     * @param refreshToken the refresh token to be use
+     * @throws TokenResponseException when refreshToken is invalid or expired
+     * @see #refreshTokens(Account, String)
+     */
+    protected void refreshTokensOnce(final Account account, final String authTokenType, final String refreshToken)
+            throws TokenResponseException, UserNotAuthenticatedWrapperException {
+        // Set when this call runs the refresh rather than sharing a concurrent one
+        final boolean[] refreshed = new boolean[1];
+        try {
+            refreshInFlight(account, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    // A refresh for this account may have just finished before we got here
+                    String token = accountManager.getAccountManager().peekAuthToken(account, authTokenType);
+                    if (TextUtils.isEmpty(token)) {
+                        refreshed[0] = true;
+                        refreshTokens(account, refreshToken);
+                    } else {
+                        Log.d(TAG, "Token already refreshed by a concurrent call.");
+                    }
+                    return null;
+                }
+            });
+            if (!refreshed[0]) {
+                // Either shared a concurrent refresh or found its result: a request avoided
+                Metrics.increment(Metrics.REFRESH_DEDUPLICATED);
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TokenResponseException) {
+                throw (TokenResponseException) cause;
+            } else if (cause instanceof UserNotAuthenticatedWrapperException) {
+                throw (UserNotAuthenticatedWrapperException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                Log.e(TAG, "Couldn't get new tokens.", cause);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "Interrupted while waiting for a concurrent token refresh.");
         }
     }
 
+    /**
+     * Runs a refresh of the account tokens in the flight shared by every refresh of the library,
+     * i.e. the on-demand ones of {@link #getAuthToken} and the proactive ones of
+     * {@link com.lnikkila.oidc.OIDCTokenRefreshScheduler}. While a refresh of the account is in
+     * progress, the others wait for it and share its outcome instead of sending the same refresh
+     * token again, which a provider rotating refresh tokens would reject.
+     * <br/>
+     * Like {@link #refreshTokens(Account, String)}, the refresh should only throw a
+     * {@link TokenResponseException} when the refresh token is rejected, callers sharing it take it
+     * as such.
+     * @param account the account whose tokens are refreshed
+     * @param refresh the refresh, which should check once it runs that it is still needed
+     * @throws ExecutionException wrapping the exception thrown by the refresh
+     * @throws InterruptedException if interrupted while waiting for a concurrent refresh
+     */
+    public static void refreshInFlight(Account account, Callable<Void> refresh)
+            throws ExecutionException, InterruptedException {
+        refreshFlights.execute(account.type + "/" + account.name, refresh);
+    }
+
     //endregion
 
     //region Methods NOT implemented from AbstractAccountAuthenticator
@@ -11,14 +11,12 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.design.widget.TextInputLayout;
 import android.text.Editable;
 import android.text.TextUtils;
 import android.text.TextWatcher;
-import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.webkit.CookieManager;
@@ -31,16 +29,16 @@ import android.widget.EditText;
 import android.widget.RelativeLayout;
 import android.widget.Toast;
 
-import com.google.api.client.auth.oauth2.TokenResponse;
-import com.google.api.client.auth.openidconnect.IdTokenResponse;
 import com.lnikkila.oidc.OIDCAccountManager;
+import com.lnikkila.oidc.OIDCAuthorizationFlowEngine;
+import com.lnikkila.oidc.OIDCCallback;
 import com.lnikkila.oidc.OIDCRequestManager;
 import com.lnikkila.oidc.R;
 import com.lnikkila.oidc.minsdkcompat.CompatUri;
+import com.lnikkila.oidc.platform.Log;
+import com.lnikkila.oidc.platform.Logger;
 import com.lnikkila.oidc.security.UserNotAuthenticatedWrapperException;
 
-import java.io.IOException;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -53,7 +51,8 @@ import java.util.Set;
  *
  * After the Authorization Token has successfully been obtained, we use the single-use token to
  * fetch an ID Token, an Access Token and a Refresh Token. We create an Account and persist these
- * tokens.
+ * tokens. This runs on the {@link OIDCAuthorizationFlowEngine}, so a flow in progress survives a
+ * configuration change and its result is delivered to the recreated Activity.
  *
  * @author Leo Nikkilä
  * @author Camilo Montes
@@ -67,13 +66,18 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
     public static final String KEY_IS_NEW_ACCOUNT       = "com.lnikkila.oidc.KEY_IS_NEW_ACCOUNT";
     public static final String KEY_ACCOUNT_NAME         = "com.lnikkila.oidc.KEY_ACCOUNT_NAME";
 
+    private static final String KEY_SECURE_STATE        = "com.lnikkila.oidc.KEY_SECURE_STATE";
+    private static final String KEY_FLOW_ID             = "com.lnikkila.oidc.KEY_FLOW_ID";
+
     private OIDCAccountManager accountManager;
     private OIDCRequestManager requestManager;
+    private OIDCAuthorizationFlowEngine flowEngine;
     private KeyguardManager keyguardManager;
     private Account account;
     private boolean isNewAccount;
 
     protected String secureState;
+    private String flowId;
 
     /*package*/ RelativeLayout parentLayout;
     /*package*/ WebView webView;
@@ -103,12 +107,18 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
         keyguardManager = (KeyguardManager) getSystemService(Context.KEYGUARD_SERVICE);
         // starts the request manager with the OIDC client setting in /res/values/oidc_clientconf.xml
         requestManager = new OIDCRequestManager(this);
+        flowEngine = OIDCAuthorizationFlowEngine.getInstance(this);
 
-
-        if (accountName != null) {
+        // The flows create a new account when there is none to update
+        if (accountName != null && !isNewAccount) {
             account = accountManager.getAccountByName(accountName);
         }
 
+        if (savedInstanceState != null) {
+            secureState = savedInstanceState.getString(KEY_SECURE_STATE);
+            flowId = savedInstanceState.getString(KEY_FLOW_ID);
+        }
+
         boolean isPasswordFlow = requestManager.getFlowType() == OIDCRequestManager.Flows.Password;
         initAuthenticationWebView(isPasswordFlow);
         setupPasswordGrantForm(isPasswordFlow);
@@ -127,11 +137,35 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
                         Toast.LENGTH_LONG).show();
             }
         }
+
+        // Picks up the result of a flow started before a configuration change
+        if (flowId != null && !flowEngine.attach(flowId, flowCallback)) {
+            Log.w(TAG, "The authorization flow in progress was lost, starting over");
+            flowId = null;
+            restartAuthentication();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        flowEngine.detach(flowId);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(KEY_SECURE_STATE, secureState);
+        outState.putString(KEY_FLOW_ID, flowId);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (isFinishing() && flowId != null) {
+            // The user left, nobody waits for the flow anymore
+            flowEngine.cancel(flowId);
+        }
         //Handles possible webView leak : http://stackoverflow.com/a/8011027/665823
         if (parentLayout != null) parentLayout.removeAllViews();
         if(webView != null) webView.destroy();
@@ -159,10 +193,24 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
             webView.setWebViewClient(new AuthorizationWebViewClient());
             webView.setVisibility(View.VISIBLE);
 
-            //
-            String authUrl = getAuthenticationUrl();
-            Log.d(TAG, String.format("Initiated activity with authentication WebView and URL '%s'.", authUrl));
-            webView.loadUrl(authUrl);
+            if (flowId == null) {
+                loadAuthenticationUrl();
+            }
+        }
+    }
+
+    private void loadAuthenticationUrl() {
+        String authUrl = getAuthenticationUrl();
+        Log.d(TAG, "Initiated activity with authentication WebView and URL '%s'.", authUrl);
+        webView.loadUrl(authUrl);
+    }
+
+    /**
+     * Lets the user authenticate again, i.e. when the flow in progress was lost with the process.
+     */
+    private void restartAuthentication() {
+        if (webView != null) {
+            loadAuthenticationUrl();
         }
     }
 
@@ -190,8 +238,11 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
 
         @Override
         public void onPageFinished(WebView view, String url) {
-            String cookies = CookieManager.getInstance().getCookie(url);
-            Log.d(TAG, String.format("Cookies for url %1$s : %2$s", url, cookies));
+            if (Log.isLoggable(TAG, Logger.DEBUG)) {
+                // Only the cookie names, their values are session credentials
+                String cookies = CookieManager.getInstance().getCookie(url);
+                Log.d(TAG, "Cookies for url %1$s : %2$s", url, cookies != null ? cookies.replaceAll("=[^;]*", "") : null);
+            }
         }
     }
 
@@ -249,9 +300,10 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
                     String userName = userNameEdit.getText().toString();
                     String userPwd = userPwdEdit.getText().toString();
 
-                    if (checkPasswordGrantForm(userName, userPwd)) {
-                        PasswordFlowTask task = new PasswordFlowTask();
-                        task.execute(userName, userPwd);
+                    if (flowId != null) {
+                        Log.d(TAG, "An authorization flow is already in progress");
+                    } else if (checkPasswordGrantForm(userName, userPwd)) {
+                        startFlow(flowEngine.startPasswordFlow(userName, userPwd, account));
                     } else {
                         Log.w(TAG, "Mandatory fields on password grant form missing");
                     }
@@ -325,25 +377,19 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
         switch (requestManager.getFlowType()) {
             case Implicit: {
                 if (!TextUtils.isEmpty(extractedFragment)) {
-                    ImplicitFlowTask task = new ImplicitFlowTask();
-                    task.execute(extractedFragment);
-
+                    startFlow(flowEngine.startImplicitFlow(extractedFragment, secureState, account));
                 } else {
-                    Log.e(TAG, String.format(
-                            "redirectUriString '%1$s' doesn't contain fragment part; can't extract tokens",
-                            redirectUriString));
+                    Log.e(TAG, "redirectUriString '%1$s' doesn't contain fragment part; can't extract tokens",
+                            redirectUriString);
                 }
                 break;
             }
             case Hybrid: {
                 if (!TextUtils.isEmpty(extractedFragment)) {
-                    HybridFlowTask task = new HybridFlowTask();
-                    task.execute(extractedFragment);
-
+                    startFlow(flowEngine.startHybridFlow(extractedFragment, secureState, account));
                 } else {
-                    Log.e(TAG, String.format(
-                            "redirectUriString '%1$s' doesn't contain fragment part; can't request tokens",
-                            redirectUriString));
+                    Log.e(TAG, "redirectUriString '%1$s' doesn't contain fragment part; can't request tokens",
+                            redirectUriString);
                 }
                 break;
             }
@@ -356,12 +402,10 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
                         String authToken = redirectUri.getQueryParameter("code");
 
                         // Request the ID token
-                        CodeFlowTask task = new CodeFlowTask();
-                        task.execute(authToken, state);
+                        startFlow(flowEngine.startCodeFlow(authToken, state, secureState, account));
                     } else {
-                        Log.e(TAG, String.format(
-                                "redirectUriString '%1$s' doesn't contain code param; can't extract authCode",
-                                redirectUriString));
+                        Log.e(TAG, "redirectUriString '%1$s' doesn't contain code param; can't extract authCode",
+                                redirectUriString);
                     }
                     break;
                 }
@@ -413,7 +457,7 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
 
             // If the user declines to authorise the app, there's no need to show an error message.
             if (error.equals("access_denied")) {
-                Log.i(TAG, String.format("User declines to authorise the app : %s", errorDescription));
+                Log.i(TAG, "User declines to authorise the app : %s", errorDescription);
             }
             else {
                 showErrorDialog("Error code: %s\n\n%s", error, errorDescription);
@@ -426,234 +470,43 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
         }
     }
 
-    /**
-     * Abstract task for authorization flows handling.
-     */
-    private abstract class AuthorizationFlowTask extends AsyncTask<String, Void, Boolean> {
-        @Override
-        protected void onPostExecute(Boolean wasSuccess) {
-            if (wasSuccess) {
-                // The account manager still wants the following information back
-                Intent intent = new Intent();
-
-                intent.putExtra(AccountManager.KEY_ACCOUNT_NAME, account.name);
-                intent.putExtra(AccountManager.KEY_ACCOUNT_TYPE, account.type);
-
-                setAccountAuthenticatorResult(intent.getExtras());
-                setResult(RESULT_OK, intent);
-                finish();
-            } else {
-                showErrorDialog("Could not get ID Token.");
-            }
-        }
-
-        protected boolean createOrUpdateAccount(TokenResponse response) {
-            if (isNewAccount) {
-                createAccount(response);
-            } else {
-                saveTokens(response);
-            }
-            return true;
-        }
+    private void startFlow(String flowId) {
+        this.flowId = flowId;
+        flowEngine.attach(flowId, flowCallback);
     }
 
     /**
-     * Handles Implicit flow by creating an {@link IdTokenResponse} from a Uri fragment asynchronously.
-     * <br/>
-     * An Uri string containing a Uri fragment is passed as first parameter of the
-     * {@link AsyncTask#execute(Object[])} method, i.e :
-     * <br/>
-     * <i>
-     * http://domain/redirect.html#scope=offline_access%20openid%20profile&state=xyz&code=xxx&id_token=yyyy
-     * </i>
+     * Receives the result of the authorization flow, on the main thread and only while this
+     * Activity is resumed.
      */
-    private class ImplicitFlowTask extends AuthorizationFlowTask {
-
+    private final OIDCCallback<Account> flowCallback = new OIDCCallback<Account>() {
         @Override
-        protected Boolean doInBackground(String... args) {
-            String fragmentPart = args[0];
-            try {
-                TokenResponse response = requestManager.parseTokensFromImplicitResponseFragmentPart(fragmentPart, secureState);
-                return createOrUpdateAccount(response);
-            } catch (IOException e) {
-                Log.e(TAG, "Could not reconstruct a token response from the HTTP fragment", e);
-                return false;
-            }
-        }
-    }
+        public void onSuccess(Account result) {
+            flowId = null;
+            account = result;
 
-    /**
-     * Handles Hybrid flow by extracting asynchronously the authorization code from a Uri fragment
-     * then exchanging it for an {@link IdTokenResponse} by making a request to the token endpoint.
-     * <br/>
-     * An Uri string containing a Uri fragment is passed as first parameter of the
-     * {@link AsyncTask#execute(Object[])} method, i.e :
-     * <br/>
-     * <i>
-     * http://domain/redirect.html#scope=offline_access%20openid%20profile&state=xyz&code=xxx&id_token=yyyy
-     * </i>
-     */
-    private class HybridFlowTask extends AuthorizationFlowTask {
-        @Override
-        protected Boolean doInBackground(String... args) {
-            String fragmentPart = args[0];
-            boolean didStoreTokens = false;
-
-            Uri tokenExtrationUrl = new Uri.Builder().encodedQuery(fragmentPart).build();
-            String idToken = tokenExtrationUrl.getQueryParameter("id_token");
-            String authCode = tokenExtrationUrl.getQueryParameter("code");
-            String returnedState = tokenExtrationUrl.getQueryParameter("state");
-
-            if(secureState.equalsIgnoreCase(returnedState)) {
-                if (!TextUtils.isEmpty(idToken) && !TextUtils.isEmpty(authCode)) {
-                    Log.i(TAG, "Requesting access_token with AuthCode : " + authCode);
-
-                    //TODO: we already have the idToken and we aren't doing anything with it... why? Will it be returned once more when we get the access token?
-                    try {
-                        TokenResponse response = requestManager.requestTokensWithCodeGrant(authCode);
-                        didStoreTokens = createOrUpdateAccount(response);
-                    } catch (IOException e) {
-                        Log.e(TAG, "Could not get response from the token endpoint", e);
-                    }
-                }
-            } else {
-                Log.e(TAG, "Local and returned states don't match");
-            }
-            return didStoreTokens;
-        }
-    }
+            // The account manager still wants the following information back
+            Intent intent = new Intent();
 
-    /**
-     * Handles Code flow by requesting asynchronously a {@link IdTokenResponse} to the
-     * token endpoint using an authorization code.
-     * <br/>
-     * The authorization code is passed as first parameter of the
-     * {@link AsyncTask#execute(Object[])} method.
-     * <br/>
-     */
-    private class CodeFlowTask extends AuthorizationFlowTask {
-        @Override
-        protected Boolean doInBackground(String... args) {
-            String authCode = args[0];
-            String returnedState = args[1];
-            boolean didStoreTokens = false;
-
-            if (secureState.equalsIgnoreCase(returnedState)) {
-                Log.i(TAG, "Requesting access_token with AuthCode : " + authCode);
-                try {
-                    TokenResponse response = requestManager.requestTokensWithCodeGrant(authCode);
-                    didStoreTokens = createOrUpdateAccount(response);
-                } catch (IOException e) {
-                    Log.e(TAG, "Could not get response from the token endpoint", e);
-                }
-            } else {
-                Log.e(TAG, "Local and returned states don't match");
-            }
-            return didStoreTokens;
-        }
-    }
+            intent.putExtra(AccountManager.KEY_ACCOUNT_NAME, account.name);
+            intent.putExtra(AccountManager.KEY_ACCOUNT_TYPE, account.type);
 
-    private class PasswordFlowTask extends AuthorizationFlowTask {
-        @Override
-        protected Boolean doInBackground(String... args) {
-            String userName = args[0];
-            String userPwd = args[1];
-            boolean didStoreTokens = false;
-
-            Log.d(TAG, "Requesting access_token with username : " + userName);
-            try {
-                TokenResponse response = requestManager.requestTokensWithPasswordGrant(userName, userPwd);
-                didStoreTokens = createOrUpdateAccount(response);
-            } catch (IOException e) {
-                Log.e(TAG, "Could not get response from the token endpoint", e);
-            }
-            return didStoreTokens;
+            setAccountAuthenticatorResult(intent.getExtras());
+            setResult(RESULT_OK, intent);
+            finish();
         }
-    }
-
-    //endregion
 
-    //region Account Management
-    //TODO: this should be handled by the OIDCAccountManager
-
-    /**
-     * AccountManager expects that each account has a unique name. If a new account has the same name
-     * as a previously created one, it will overwrite the older account.
-     *
-     * Unfortunately the OIDC spec cannot guarantee[1] that any user information is unique, save for
-     * the user ID (i.e. the ID Token subject) which, depending on the authentication server, is hardly
-     * human-readable. This makes choosing between multiple accounts difficult.
-     *
-     * We'll resort to naming each account 'app_name : claim'. Usually a claim to use here could be 'name'
-     * or 'email' if that user information is unique.
-     *
-     * [1]: http://openid.net/specs/openid-connect-basic-1_0.html#ClaimStability
-     *
-     * The 'app_name' will be as a fallback if the other information isn't available for some reason
-     * (for instance no contact with UserInfo Endpoint, or bad claim extraction).
-     *
-     * @param response the TokenResponse receive from the authentication server.
-     * @param claimAsPartOfAccountName claim to be use as part the account name (ex: email, name, given_name).
-     *                                 If null it will use sub claim as part of the accout name.
-     * @return the account name to be use when creating an account on the AccountManager
-     */
-    private String getAccountName(TokenResponse response, String claimAsPartOfAccountName) {
-        String accountName = null;
-        if (response instanceof IdTokenResponse) {
-            try {
-                // Asserts the identity of the user, called subject in OpenID (sub)
-                String accountSubject = ((IdTokenResponse)response).parseIdToken().getPayload().getSubject();
-
-                if ((accountSubject != null && !TextUtils.isEmpty(accountSubject)) || claimAsPartOfAccountName == null){
-                    accountName = String.format("%1$s : %2$s", getString(R.string.app_name), accountSubject);
-                } else {
-                    // If for a reason we can't get the subject or want to use a other claim instead,
-                    // we will try to get the `claimAsAccountName` using the UserInfo Endpoint
-                    Map userInfo = requestManager.getUserInfo(response.getAccessToken(), Map.class);
-                    if (userInfo.containsKey(claimAsPartOfAccountName)) {
-                        String userName = (String) userInfo.get(claimAsPartOfAccountName);
-                        accountName = String.format("%1$s : %2$s", getString(R.string.app_name), userName);
-                    }
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Could not get needed account info using the given TokenResponse.", e);
+        @Override
+        public void onError(Exception e) {
+            flowId = null;
+            if (e instanceof UserNotAuthenticatedWrapperException) {
+                showAuthenticationScreen(ASK_USER_ENCRYPT_PIN_REQUEST_CODE);
+            } else {
+                Log.e(TAG, "Could not complete the authorization flow", e);
+                showErrorDialog("Could not get ID Token.");
             }
         }
-
-        // Fallback to app's name if the other information isn't available
-        if(accountName == null || TextUtils.isEmpty(accountName)) {
-            accountName = getString(R.string.app_name);
-        }
-
-        return accountName.trim();
-    }
-
-    private void createAccount(TokenResponse response) {
-        Log.d(TAG, "Creating account.");
-
-        String accountType = getString(R.string.account_authenticator_type);
-        String claimAsAccountName = "name"; //FIXME : this be some kind of oidc client parameter. What to do... what to do...
-        String accountName = getAccountName(response, claimAsAccountName);
-
-        account = new Account(accountName, accountType);
-        accountManager.getAccountManager().addAccountExplicitly(account, null, null);
-
-        Log.d(TAG, String.format("Saved tokens : (AT %1$s) (RT %2$s)", response.getAccessToken(), response.getRefreshToken()));
-
-        // Store the tokens in the account
-        saveTokens(response);
-
-        Log.d(TAG, "Account created.");
-    }
-
-
-    private void saveTokens(TokenResponse response) {
-        try {
-            accountManager.saveTokens(account, response);
-        } catch (UserNotAuthenticatedWrapperException e) {
-            showAuthenticationScreen(ASK_USER_ENCRYPT_PIN_REQUEST_CODE);
-        }
-    }
+    };
 
     //endregion
 
@@ -3,7 +3,8 @@ package com.lnikkila.oidc.authenticator;
 import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
-import android.util.Log;
+
+import com.lnikkila.oidc.platform.Log;
 
 /**
  * The service that lets Android know about the custom Authenticator.
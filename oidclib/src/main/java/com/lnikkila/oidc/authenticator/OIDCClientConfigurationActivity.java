@@ -9,7 +9,6 @@ import android.support.v7.widget.SwitchCompat;
 import android.text.Editable;
 import android.text.TextUtils;
 import android.text.TextWatcher;
-import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
@@ -18,8 +17,10 @@ import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.TextView;
 
+import com.lnikkila.oidc.OIDCClientConfiguration;
 import com.lnikkila.oidc.OIDCRequestManager;
 import com.lnikkila.oidc.R;
+import com.lnikkila.oidc.platform.Log;
 
 /**
  * Created by CQX342 on 10/02/2016.
@@ -118,40 +119,16 @@ public class OIDCClientConfigurationActivity extends AppCompatActivity {
     //region ClientConfiguration form validation
 
     public void loadClientConfigurationForm() {
-        SharedPreferences sharedPreferences = this.getSharedPreferences("oidc_clientconf", Context.MODE_PRIVATE);
-        boolean loadFromPrefs = sharedPreferences.getBoolean("oidc_loadfromprefs", false);
-
-        boolean useOauth2;
-        String clientId;
-        String clientSecret;
-        String redirectUrl;
-        String issuerId;
-        String scopes = "";
-        String flowTypeName;
-        if (loadFromPrefs) {
-            useOauth2 = sharedPreferences.getBoolean("oidc_oauth2only", false);
-            clientId = sharedPreferences.getString("oidc_clientId", null);
-            clientSecret = sharedPreferences.getString("oidc_clientSecret", null);
-            redirectUrl = sharedPreferences.getString("oidc_redirectUrl", null);
-            issuerId = sharedPreferences.getString("oidc_issuerId", null);
-            scopes = sharedPreferences.getString("oidc_scopes", null);
-            flowTypeName =sharedPreferences.getString("oidc_flowType", null);
-        } else {
-            useOauth2 = getResources().getBoolean(R.bool.oidc_oauth2only);
-            clientId = getString(R.string.oidc_clientId);
-            clientSecret = getString(R.string.oidc_clientSecret);
-            redirectUrl = getString(R.string.oidc_redirectUrl);
-            String[] scopesArray = getResources().getStringArray(R.array.oidc_scopes);
-            if (scopesArray != null && scopesArray.length > 0) {
-                for (String scope : scopesArray) {
-                    scopes += " "+scope;
-                }
-                scopes = scopes.trim();
-            }
-            flowTypeName = getString(R.string.oidc_flowType);
-            issuerId = getString(R.string.oidc_issuerId);
-            //extras = parseStringArray(this.context.getResources().getStringArray(R.array.oidc_authextras));
-        }
+        OIDCClientConfiguration configuration = OIDCClientConfiguration.get(this);
+
+        boolean useOauth2 = configuration.isUseOAuth2();
+        String clientId = configuration.getClientId();
+        String clientSecret = configuration.getClientSecret();
+        String redirectUrl = configuration.getRedirectUrl();
+        String issuerId = configuration.getIssuerId();
+        String[] scopesArray = configuration.getScopes();
+        String scopes = scopesArray != null ? TextUtils.join(" ", scopesArray) : "";
+        String flowTypeName = configuration.getFlowTypeName();
 
         useOAuthSwitch.setChecked(useOauth2);
         clientIdEdit.setText(clientId);
@@ -179,23 +156,25 @@ public class OIDCClientConfigurationActivity extends AppCompatActivity {
         String scopes = scopesEdit.getText().toString();
         OIDCRequestManager.Flows flowType = (OIDCRequestManager.Flows) flowTypeSpinner.getSelectedItem();
 
-        SharedPreferences sharedPreferences = this.getSharedPreferences("oidc_clientconf", Context.MODE_PRIVATE);
+        SharedPreferences sharedPreferences = this.getSharedPreferences(OIDCClientConfiguration.PREFS_NAME, Context.MODE_PRIVATE);
         SharedPreferences.Editor editor = sharedPreferences.edit();
         if (checkClientConfigurationForm(clientId, clientSecret, redirectUrl, scopes)) {
-            editor.putBoolean("oidc_loadfromprefs", true);
-            editor.putBoolean("oidc_oauth2only", useOauth2);
-            editor.putString("oidc_clientId", clientId);
-            editor.putString("oidc_clientSecret", clientSecret);
-            editor.putString("oidc_redirectUrl", redirectUrl);
-            editor.putString("oidc_scopes", scopes);
-            editor.putString("oidc_flowType", flowType.name());
-            editor.putString("oidc_issuerId", issuerId);
+            editor.putBoolean(OIDCClientConfiguration.KEY_LOAD_FROM_PREFS, true);
+            editor.putBoolean(OIDCClientConfiguration.KEY_OAUTH2_ONLY, useOauth2);
+            editor.putString(OIDCClientConfiguration.KEY_CLIENT_ID, clientId);
+            editor.putString(OIDCClientConfiguration.KEY_CLIENT_SECRET, clientSecret);
+            editor.putString(OIDCClientConfiguration.KEY_REDIRECT_URL, redirectUrl);
+            editor.putString(OIDCClientConfiguration.KEY_SCOPES, scopes);
+            editor.putString(OIDCClientConfiguration.KEY_FLOW_TYPE, flowType.name());
+            editor.putString(OIDCClientConfiguration.KEY_ISSUER_ID, issuerId);
             //TODO: snackbar ok
         } else {
             //TODO: snackbar error
-            editor.putBoolean("oidc_loadfromprefs", false);
+            editor.putBoolean(OIDCClientConfiguration.KEY_LOAD_FROM_PREFS, false);
         }
         editor.apply();
+        // apply() updates the in-memory preferences right away, the shared snapshot can be rebuilt
+        OIDCClientConfiguration.reload(this);
         this.finish();
     }
 
@@ -0,0 +1,242 @@
+package com.lnikkila.oidc.discovery;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.gson.JsonParseException;
+import com.lnikkila.oidc.http.CacheControl;
+import com.lnikkila.oidc.http.OIDCHttpTransport;
+import com.lnikkila.oidc.platform.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Loads the OpenID Provider metadata from its {@code .well-known/openid-configuration} document.
+ * <br/>
+ * There is one loader per issuer in the process, so every Authenticator, AuthenticatorActivity and
+ * OIDCRequestManager shares the same parsed metadata. The document is persisted with its ETag and
+ * expiration time: a cold start reads it from disk without any network request, and an expired
+ * document is still returned while it is revalidated in the background (conditional GET).
+ *
+ * @see <a href="http://openid.net/specs/openid-connect-discovery-1_0.html">http://openid.net/specs/openid-connect-discovery-1_0.html</a>
+ */
+public class DiscoveryDocumentLoader {
+
+    private static final String TAG = DiscoveryDocumentLoader.class.getSimpleName();
+
+    //region Constants
+
+    public static final String WELL_KNOWN_PATH = "/.well-known/openid-configuration";
+
+    /**
+     * How long the document is considered fresh when the response has no max-age directive.
+     */
+    public static final long DEFAULT_MAX_AGE_MS = 24 * 60 * 60 * 1000;
+
+    private static final String PREFS_NAME          = "oidc_discovery";
+    private static final String KEY_DOCUMENT        = ".document";
+    private static final String KEY_ETAG            = ".etag";
+    private static final String KEY_EXPIRES_AT      = ".expiresAt";
+
+    //endregion
+
+    private static final ConcurrentMap<String, DiscoveryDocumentLoader> instances = new ConcurrentHashMap<>();
+
+    private static final ExecutorService revalidationExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "OIDCDiscovery");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String issuer;
+    private final String discoveryUrl;
+    private final SharedPreferences preferences;
+    private final OIDCHttpTransport transport;
+
+    private final AtomicBoolean revalidating = new AtomicBoolean();
+
+    private volatile ProviderMetadata metadata;
+    private volatile String etag;
+    private volatile long expiresAt;
+    private boolean loadedFromDisk;
+
+    protected DiscoveryDocumentLoader(Context context, String issuer, OIDCHttpTransport transport) {
+        this.issuer = issuer;
+        this.discoveryUrl = (issuer.endsWith("/") ? issuer.substring(0, issuer.length() - 1) : issuer) + WELL_KNOWN_PATH;
+        this.preferences = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.transport = transport;
+    }
+
+    /**
+     * Gets the process-wide loader of the given issuer.
+     * @param context any context, only the application context is kept
+     * @param issuer the issuer identifier, the discovery document is looked up relatively to it
+     * @param transport the transport used to fetch the document
+     * @return the shared loader
+     */
+    public static DiscoveryDocumentLoader getInstance(Context context, String issuer, OIDCHttpTransport transport) {
+        DiscoveryDocumentLoader loader = instances.get(issuer);
+        if (loader == null) {
+            DiscoveryDocumentLoader newLoader = new DiscoveryDocumentLoader(context, issuer, transport);
+            loader = instances.putIfAbsent(issuer, newLoader);
+            if (loader == null) {
+                loader = newLoader;
+            }
+        }
+        return loader;
+    }
+
+    public String getDiscoveryUrl() {
+        return discoveryUrl;
+    }
+
+    /**
+     * Gets the provider metadata without blocking on the network. When the known document has
+     * expired (or there is none yet) a revalidation is started in the background.
+     * @return the last known metadata, or null if the document has never been fetched
+     */
+    public ProviderMetadata getMetadata() {
+        loadFromDisk();
+        if (System.currentTimeMillis() >= expiresAt) {
+            revalidateAsync();
+        }
+        return metadata;
+    }
+
+    /**
+     * Revalidates the document in the background, unless a revalidation is already running.
+     */
+    public void revalidateAsync() {
+        if (revalidating.compareAndSet(false, true)) {
+            revalidationExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fetch();
+                    } catch (IOException e) {
+                        Log.w(TAG, e, "Could not revalidate %1$s", discoveryUrl);
+                    } finally {
+                        revalidating.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Fetches the document, sending the known ETag so an unchanged document isn't downloaded and
+     * parsed again. Must not be called from the main thread.
+     * @return the up to date metadata
+     * @throws IOException when the document can not be fetched or is invalid
+     */
+    public synchronized ProviderMetadata fetch() throws IOException {
+        loadFromDisk();
+
+        HttpRequest request = transport.getRequestFactory().buildGetRequest(new GenericUrl(discoveryUrl));
+        request.getHeaders().setAccept("application/json");
+        if (metadata != null && etag != null) {
+            request.getHeaders().setIfNoneMatch(etag);
+        }
+        request.setThrowExceptionOnExecuteError(false);
+
+        HttpResponse response = request.execute();
+        try {
+            long maxAge = CacheControl.getMaxAgeMillis(response.getHeaders().getCacheControl(), DEFAULT_MAX_AGE_MS);
+            int statusCode = response.getStatusCode();
+            if (statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED && metadata != null) {
+                Log.d(TAG, "%1$s not modified", discoveryUrl);
+                store(null, metadata, etag, System.currentTimeMillis() + maxAge);
+            } else if (statusCode == HttpStatusCodes.STATUS_CODE_OK) {
+                String document = response.parseAsString();
+                ProviderMetadata fetchedMetadata = parse(document);
+                if (fetchedMetadata == null) {
+                    throw new IOException("Invalid discovery document returned by " + discoveryUrl);
+                }
+                Log.d(TAG, "Fetched %1$s", discoveryUrl);
+                store(document, fetchedMetadata, response.getHeaders().getETag(), System.currentTimeMillis() + maxAge);
+            } else {
+                throw new IOException(String.format("Discovery request to %1$s failed with status %2$d", discoveryUrl, statusCode));
+            }
+        } finally {
+            response.disconnect();
+        }
+        return metadata;
+    }
+
+    /**
+     * Forgets the document, in memory and on disk.
+     */
+    public synchronized void clear() {
+        metadata = null;
+        etag = null;
+        expiresAt = 0;
+        preferences.edit()
+                .remove(issuer + KEY_DOCUMENT)
+                .remove(issuer + KEY_ETAG)
+                .remove(issuer + KEY_EXPIRES_AT)
+                .apply();
+    }
+
+    private synchronized void loadFromDisk() {
+        if (loadedFromDisk) {
+            return;
+        }
+        loadedFromDisk = true;
+        String document = preferences.getString(issuer + KEY_DOCUMENT, null);
+        if (document != null) {
+            ProviderMetadata storedMetadata = parse(document);
+            if (storedMetadata != null) {
+                etag = preferences.getString(issuer + KEY_ETAG, null);
+                expiresAt = preferences.getLong(issuer + KEY_EXPIRES_AT, 0);
+                metadata = storedMetadata;
+            }
+        }
+    }
+
+    /**
+     * Keeps the metadata in memory and persists it. The document is only written when it changed.
+     */
+    private void store(String document, ProviderMetadata newMetadata, String newEtag, long newExpiresAt) {
+        metadata = newMetadata;
+        etag = newEtag;
+        expiresAt = newExpiresAt;
+
+        SharedPreferences.Editor editor = preferences.edit()
+                .putString(issuer + KEY_ETAG, newEtag)
+                .putLong(issuer + KEY_EXPIRES_AT, newExpiresAt);
+        if (document != null) {
+            editor.putString(issuer + KEY_DOCUMENT, document);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Parses a document, rejecting documents issued for another issuer as required by the spec.
+     * @return the metadata or null if the document is invalid
+     */
+    private ProviderMetadata parse(String document) {
+        try {
+            ProviderMetadata parsed = transport.getGson().fromJson(document, ProviderMetadata.class);
+            if (parsed != null && issuer.equals(parsed.getIssuer())) {
+                return parsed;
+            }
+            Log.w(TAG, "Ignoring discovery document issued for %1$s", parsed != null ? parsed.getIssuer() : null);
+        } catch (JsonParseException e) {
+            Log.w(TAG, "Ignoring malformed discovery document", e);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,54 @@
+package com.lnikkila.oidc.platform;
+
+import android.util.Base64;
+
+/**
+ * The Android side of the library core: logs to logcat and encodes Base64 with
+ * {@link android.util.Base64}. Found by {@link Platform#get()}, don't create it yourself.
+ */
+public class AndroidPlatform extends Platform {
+
+    //region Constants
+
+    private static final int MAX_TAG_LENGTH = 23;
+
+    //endregion
+
+    private final Logger logger = new Logger() {
+        @Override
+        public boolean isLoggable(String tag, int level) {
+            // Pre N devices throw on longer tags
+            return android.util.Log.isLoggable(tag.length() > MAX_TAG_LENGTH ? tag.substring(0, MAX_TAG_LENGTH) : tag, level);
+        }
+
+        @Override
+        public void log(int level, String tag, String message, Throwable throwable) {
+            if (throwable != null) {
+                message = message + '\n' + android.util.Log.getStackTraceString(throwable);
+            }
+            android.util.Log.println(level, tag, message);
+        }
+    };
+
+    private final Base64Codec base64Codec = new Base64Codec() {
+        @Override
+        public String encodeToString(byte[] input, boolean urlSafe) {
+            return Base64.encodeToString(input, urlSafe ? Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP : Base64.DEFAULT);
+        }
+
+        @Override
+        public byte[] decode(String input, boolean urlSafe) {
+            return Base64.decode(input, urlSafe ? Base64.URL_SAFE : Base64.DEFAULT);
+        }
+    };
+
+    @Override
+    public Logger getLogger() {
+        return logger;
+    }
+
+    @Override
+    public Base64Codec getBase64Codec() {
+        return base64Codec;
+    }
+}
@@ -9,8 +9,14 @@ import android.accounts.OperationCanceledException;
 import android.content.Context;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+
+import com.lnikkila.oidc.OIDCTokenBundle;
+import com.lnikkila.oidc.metrics.Metrics;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Created by Camilo Montes on 18/01/2016. <br/>
@@ -22,11 +28,7 @@ public class AccountSensitiveDataStorageUtils {
     private SensitiveDataUtils dataEncUtils;
 
     public AccountSensitiveDataStorageUtils(Context context) {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
-            dataEncUtils = new SensitiveDataPreApi23(context);
-        } else {
-            dataEncUtils = new SensitiveDataPostApi23(context);
-        }
+        dataEncUtils = SensitiveDataUtils.newInstance(context);
     }
 
     /**
@@ -35,51 +37,264 @@ public class AccountSensitiveDataStorageUtils {
      */
     public String retrieveStringData(AccountManager accountManager, Account account, String tokenType, AccountManagerCallback<Bundle> callback)
             throws UserNotAuthenticatedWrapperException, AuthenticatorException, OperationCanceledException, IOException {
-        String data = null;
+        String data = retrieveDecryptedRecord(accountManager, account, tokenType, callback);
+        return extractToken(data, tokenType);
+    }
+
+    /**
+     * Get all the tokens stored with the given token type, with a single AccountManager request and
+     * a single decryption.
+     * @return the token bundle, or null if there is no token or it was stored alone by a former
+     * version of the library.
+     */
+    public OIDCTokenBundle retrieveTokenBundle(AccountManager accountManager, Account account, String tokenType, AccountManagerCallback<Bundle> callback)
+            throws UserNotAuthenticatedWrapperException, AuthenticatorException, OperationCanceledException, IOException {
+        String data = retrieveDecryptedRecord(accountManager, account, tokenType, callback);
+        return OIDCTokenBundle.isBundle(data) ? OIDCTokenBundle.fromJson(data) : null;
+    }
 
+    /**
+     * Get all the tokens without going through the authenticator (so without refreshing them if
+     * they are missing). Costs a single decryption when the bundle is stored.
+     * @param bundleType the token type the whole bundle is stored under
+     * @param tokenTypes the other token types to look for, in order, when there is no bundle: each
+     *                   one only gives its own token
+     * @return the token bundle, or null if there is no token at all
+     */
+    public OIDCTokenBundle peekTokenBundle(AccountManager accountManager, Account account, String bundleType, String... tokenTypes)
+            throws UserNotAuthenticatedWrapperException {
+        String encryptedBundle = peekAuthToken(accountManager, account, bundleType);
+        String bundle = encryptedBundle != null ? decrypt(encryptedBundle) : null;
+        if (OIDCTokenBundle.isBundle(bundle)) {
+            return OIDCTokenBundle.fromJson(bundle);
+        }
+
+        Map<String, String> tokens = new HashMap<>();
+        for (String tokenType : tokenTypes) {
+            String encryptedData = peekAuthToken(accountManager, account, tokenType);
+            // Either stored alone by a former version of the library, or a bundle kept for this token
+            String token = extractToken(encryptedData != null ? decrypt(encryptedData) : null, tokenType);
+            if (token != null) {
+                tokens.put(tokenType, token);
+            }
+        }
+        return tokens.isEmpty() ? null : OIDCTokenBundle.fromTokens(tokens, null);
+    }
+
+    /**
+     * Build the record of a single token out of a bundle record, for the callers requesting that
+     * token type: the AccountManager keeps a copy of the record it is given under the requested type.
+     * @param encryptedBundle the record stored under the bundle type
+     * @param tokenType the type of the token to extract
+     * @return the encrypted token, or null if the bundle holds no token of this type
+     */
+    public String extractTokenRecord(String encryptedBundle, String tokenType) throws UserNotAuthenticatedWrapperException {
+        String token = extractToken(decrypt(encryptedBundle), tokenType);
+        return token != null ? encrypt(token) : null;
+    }
+
+    private static String extractToken(String data, String tokenType) {
+        if (OIDCTokenBundle.isBundle(data)) {
+            OIDCTokenBundle tokens = OIDCTokenBundle.fromJson(data);
+            return tokens != null ? tokens.getToken(tokenType) : null;
+        }
+        return data;
+    }
+
+    /**
+     * Request the stored data to the AccountManager without waiting for it: the result is given to
+     * the callback (or by the returned future) and must then be read with
+     * {@link #readTokenBundle(AccountManager, Account, String, AccountManagerFuture)}.
+     * @param handler the handler the callback is called on, null for the main thread
+     */
+    public AccountManagerFuture<Bundle> requestStoredData(AccountManager accountManager, Account account, String tokenType,
+                                                          AccountManagerCallback<Bundle> callback, Handler handler) {
         // Try retrieving an access token from the account manager. The boolean #SHOW_NOTIF_ON_AUTHFAILURE in the invocation
         // tells Android to show a notification if the token can't be retrieved. When the
         // notification is selected, it will launch the intent for re-authorisation. You could
         // launch it automatically here if you wanted to by grabbing the intent from the bundle.
-        AccountManagerFuture<Bundle> futureManager;
-
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
             //noinspection deprecation
-            futureManager = accountManager.getAuthToken(
+            return accountManager.getAuthToken(
                     account,
                     tokenType,
                     SHOW_NOTIF_ON_AUTHFAILURE,
                     callback,
-                    null);
+                    handler);
         }
         else {
-            futureManager = accountManager.getAuthToken(
+            return accountManager.getAuthToken(
                     account,
                     tokenType,
                     null,
                     SHOW_NOTIF_ON_AUTHFAILURE,
                     callback,
-                    null);
+                    handler);
         }
-        String encryptedToken = futureManager.getResult().getString(AccountManager.KEY_AUTHTOKEN);
+    }
+
+    /**
+     * Read all the tokens returned by the AccountManager for a request made with
+     * {@link #requestStoredData(AccountManager, Account, String, AccountManagerCallback, Handler)}.
+     * Only blocks if the request isn't completed yet.
+     * @return the token bundle, or null if there is no token or it was stored alone by a former
+     * version of the library.
+     */
+    public OIDCTokenBundle readTokenBundle(AccountManager accountManager, Account account, String tokenType, AccountManagerFuture<Bundle> futureManager)
+            throws UserNotAuthenticatedWrapperException, AuthenticatorException, OperationCanceledException, IOException {
+        String data = readDecryptedRecord(accountManager, account, tokenType, futureManager);
+        return OIDCTokenBundle.isBundle(data) ? OIDCTokenBundle.fromJson(data) : null;
+    }
+
+    private String retrieveDecryptedRecord(AccountManager accountManager, Account account, String tokenType, AccountManagerCallback<Bundle> callback)
+            throws UserNotAuthenticatedWrapperException, AuthenticatorException, OperationCanceledException, IOException {
+        AccountManagerFuture<Bundle> futureManager = requestStoredData(accountManager, account, tokenType, callback, null);
+        return readDecryptedRecord(accountManager, account, tokenType, futureManager);
+    }
+
+    private String readDecryptedRecord(AccountManager accountManager, Account account, String tokenType, AccountManagerFuture<Bundle> futureManager)
+            throws UserNotAuthenticatedWrapperException, AuthenticatorException, OperationCanceledException, IOException {
+        String data = null;
+        String encryptedToken = getResult(futureManager).getString(AccountManager.KEY_AUTHTOKEN);
         if (encryptedToken != null) {
-            data = dataEncUtils.decrypt(encryptedToken);
+            data = decrypt(encryptedToken);
+            if (data != null && dataEncUtils.isLegacyFormat(encryptedToken)) {
+                // Written before the authenticated record format, store it again in the current one
+                setAuthToken(accountManager, account, tokenType, encrypt(data));
+                Metrics.increment(Metrics.LEGACY_RECORD_MIGRATED);
+            }
         }
 
         return data;
     }
 
+    /**
+     * Store all the tokens onto a secure store, as a single encrypted record under the bundle type:
+     * a save costs one encryption and one AccountManager request, plus the clearing of the stale
+     * records.
+     * @param bundleType the token type to store the whole bundle under
+     * @param staleTypes the token types whose records the new bundle replaces, i.e. the refresh token
+     *                   type a bundle was moved under by
+     *                   {@link #invalidateTokenBundle(AccountManager, Account, String, String, String...)}
+     */
+    public void storeTokenBundle(AccountManager accountManager, Account account, OIDCTokenBundle tokens, String bundleType,
+                                 String... staleTypes) throws UserNotAuthenticatedWrapperException {
+        setAuthToken(accountManager, account, bundleType, encrypt(tokens.toJson()));
+        invalidateStoredData(accountManager, account, staleTypes);
+    }
+
+    /**
+     * Invalidate the tokens of a bundle but its refresh token, without decrypting it: the bundle
+     * record is moved as it is under the refresh token type, which only gives the refresh token
+     * (see {@link #peekTokenBundle(AccountManager, Account, String, String...)}). Without a bundle
+     * record, the next request of the bundle goes through the authenticator, which refreshes it.
+     * The moved record must be cleared when a new bundle is stored, see
+     * {@link #storeTokenBundle(AccountManager, Account, OIDCTokenBundle, String, String...)}.
+     * @param bundleType the token type the whole bundle is stored under
+     * @param refreshTokenType the token type to keep the bundle under
+     * @param tokenTypes the other token types to clear, i.e. records of a former version of the
+     *                   library or copies the AccountManager keeps of what the authenticator gave
+     */
+    public void invalidateTokenBundle(AccountManager accountManager, Account account, String bundleType,
+                                      String refreshTokenType, String... tokenTypes) {
+        String encryptedBundle = peekAuthToken(accountManager, account, bundleType);
+        if (encryptedBundle != null) {
+            setAuthToken(accountManager, account, refreshTokenType, encryptedBundle);
+            setAuthToken(accountManager, account, bundleType, null);
+        }
+        invalidateStoredData(accountManager, account, tokenTypes);
+    }
+
     /**
      * Store the given serialized data onto a secure store, encrypting the data if needed.
      * @param data The data to store securely
      * @return true if the data was store, false otherwise.
      */
     public boolean storeStringData(AccountManager accountManager, Account account, String tokenType, String data) throws UserNotAuthenticatedWrapperException {
-        accountManager.setAuthToken(account, tokenType, dataEncUtils.encrypt(data));
+        setAuthToken(accountManager, account, tokenType, encrypt(data));
         return true;
     }
 
-    public void invalidateStringData(AccountManager accountManager, Account account, String data) throws UserNotAuthenticatedWrapperException {
-        accountManager.invalidateAuthToken(account.type, dataEncUtils.encrypt(data));
+    /**
+     * Clear the data stored with the given token types. The stored records are cleared as they are,
+     * without being retrieved through the authenticator nor decrypted (an encrypted record can't be
+     * encrypted again to the same value, the IV being random).
+     * @param tokenTypes the token types to clear
+     */
+    public void invalidateStoredData(AccountManager accountManager, Account account, String... tokenTypes) {
+        for (String tokenType : tokenTypes) {
+            if (peekAuthToken(accountManager, account, tokenType) != null) {
+                setAuthToken(accountManager, account, tokenType, null);
+            }
+        }
     }
+
+    //region Timed AccountManager and keystore calls, see Metrics
+
+    private String encrypt(String data) throws UserNotAuthenticatedWrapperException {
+        Metrics.Timer timer = Metrics.startTimer(Metrics.STORAGE_ENCRYPT);
+        try {
+            return dataEncUtils.encrypt(data);
+        } catch (UserNotAuthenticatedWrapperException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private String decrypt(String encryptedData) throws UserNotAuthenticatedWrapperException {
+        Metrics.Timer timer = Metrics.startTimer(Metrics.STORAGE_DECRYPT);
+        try {
+            return dataEncUtils.decrypt(encryptedData);
+        } catch (UserNotAuthenticatedWrapperException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Waits for an AccountManager token request, so the time includes the Authenticator (and the
+     * token refresh it may have done).
+     */
+    private static Bundle getResult(AccountManagerFuture<Bundle> futureManager)
+            throws AuthenticatorException, OperationCanceledException, IOException {
+        Metrics.Timer timer = Metrics.startTimer(Metrics.ACCOUNT_MANAGER_GET_AUTH_TOKEN);
+        try {
+            return futureManager.getResult();
+        } catch (AuthenticatorException | OperationCanceledException | IOException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private static String peekAuthToken(AccountManager accountManager, Account account, String tokenType) {
+        Metrics.Timer timer = Metrics.startTimer(Metrics.ACCOUNT_MANAGER_PEEK_AUTH_TOKEN);
+        try {
+            return accountManager.peekAuthToken(account, tokenType);
+        } catch (RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private static void setAuthToken(AccountManager accountManager, Account account, String tokenType, String authToken) {
+        Metrics.Timer timer = Metrics.startTimer(Metrics.ACCOUNT_MANAGER_SET_AUTH_TOKEN);
+        try {
+            accountManager.setAuthToken(account, tokenType, authToken);
+        } catch (RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    //endregion
 }
@@ -9,11 +9,12 @@ import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyProperties;
 import android.security.keystore.UserNotAuthenticatedException;
 import android.util.Base64;
-import android.util.Log;
 
 import com.lnikkila.oidc.R;
+import com.lnikkila.oidc.platform.Log;
 
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyStore;
@@ -22,18 +23,15 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
 
 /**
  * For post {@link Build.VERSION_CODES#M } data encryption.  <br/>
- * Uses <a href='http://developer.android.com/training/articles/keystore.html'>AndroidKeyStore</a> <br/>
+ * Uses <a href='http://developer.android.com/training/articles/keystore.html'>AndroidKeyStore</a>, see {@link JceCipher} <br/>
  * Created by Camilo Montes on 14/10/2015.
  * @see <a href="https://github.com/Zlate87/android-fingerprint-example/blob/master/app/src/main/java/com/example/zlatko/fingerprintexample/MainActivity.java">https://github.com/Zlate87/android-fingerprint-example/blob/master/app/src/main/java/com/example/zlatko/fingerprintexample/MainActivity.java</a>
  */
@@ -44,9 +42,11 @@ public class SensitiveDataPostApi23 extends SensitiveDataUtils {
 
     protected static final String KEYSTORE_TYPE             = "AndroidKeyStore";
 
-    protected static final String CIPHER_BLOCKS             = KeyProperties.BLOCK_MODE_CBC;
-    protected static final String CIPHER_PADDING            = KeyProperties.ENCRYPTION_PADDING_PKCS7;
+    protected static final String CIPHER_BLOCKS             = KeyProperties.BLOCK_MODE_GCM;
+    protected static final String CIPHER_PADDING            = KeyProperties.ENCRYPTION_PADDING_NONE;
+    protected static final byte KEY_VERSION                 = 1;
 
+    // Former format: AES-CBC with a single IV stored in shared preferences, only used to read old records
     protected static final String IV_STORAGE_FILE_NAME      = "ivStorage";
     protected static final String IV_PARAM_KEY              = "ivEncryption";
 
@@ -56,19 +56,24 @@ public class SensitiveDataPostApi23 extends SensitiveDataUtils {
 
     //endregion
 
+    /**
+     * Keystore handles of the keys already looked up, by alias, so operations don't need a
+     * keystore round trip to find the key.
+     */
+    private static final Map<String, SecretKey> secretKeys = new ConcurrentHashMap<>();
+
+    private static volatile byte[] legacyIv;
+
     private KeyStore keyStore;
-    private Cipher encryptCipher;
 
     public SensitiveDataPostApi23(Context context) {
         super(context);
-        try {
-            encryptCipher = Cipher.getInstance(String.format("%1$s/%2$s/%3$s", CIPHER_ALGO, CIPHER_BLOCKS, CIPHER_PADDING));
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-            throw new RuntimeException(e);
-        }
     }
 
-    private String getKeyAlias() {
+    /**
+     * @return the alias of the former AES-CBC key
+     */
+    private String getLegacyKeyAlias() {
         String keyAlias = DEFAULT_KEY_ALIAS;
         if (context.get() != null) {
             keyAlias = context.get().getString(R.string.oidc_encryptKeyAlias);
@@ -77,6 +82,13 @@ public class SensitiveDataPostApi23 extends SensitiveDataUtils {
         return keyAlias;
     }
 
+    /**
+     * @return the alias of the AES-GCM key of the given version
+     */
+    private String getKeyAlias(byte keyVersion) {
+        return String.format("%1$s_v%2$d", getLegacyKeyAlias(), keyVersion);
+    }
+
     public boolean isKeyPinRequired() {
         boolean encryptKeyPinRequired = DEFAULT_REQUIRED_PIN;
         if (context.get() != null) {
@@ -101,14 +113,11 @@ public class SensitiveDataPostApi23 extends SensitiveDataUtils {
             keyStore = KeyStore.getInstance(KEYSTORE_TYPE);
             keyStore.load(null);
 
-            KeyStore.SecretKeyEntry entry = (KeyStore.SecretKeyEntry)keyStore.getEntry(getKeyAlias(), null);
-            if (entry == null) {
+            if (!keyStore.containsAlias(getKeyAlias(KEY_VERSION))) {
                 generateKey();
             }
         } catch (KeyStoreException | CertificateException | IOException | NoSuchAlgorithmException e) {
             Log.e(TAG, "Couldn't get a reference to the AndroidKeyStore", e);
-        } catch (UnrecoverableEntryException e) {
-            Log.e(TAG, "Couldn't extract key from the AndroidKeyStore", e);
         }
     }
 
@@ -116,14 +125,14 @@ public class SensitiveDataPostApi23 extends SensitiveDataUtils {
         SecretKey key = null;
         try {
             KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(
-                    getKeyAlias(),
+                    getKeyAlias(KEY_VERSION),
                     KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT);
 
             KeyGenParameterSpec keySpec = builder
                     .setKeySize(CIPHER_KEY_LENGHT)
                     .setBlockModes(CIPHER_BLOCKS)
                     .setEncryptionPaddings(CIPHER_PADDING)
-                    .setRandomizedEncryptionRequired(false) //FIXME: set to true because we should be using IND-CPA but this means that a IV has to be store per token (less generic than i though)
+                    .setRandomizedEncryptionRequired(true) // the keystore picks a fresh IV for every record
                     .setUserAuthenticationRequired(isKeyPinRequired())
                     .setUserAuthenticationValidityDurationSeconds(getKeyPinDuration())
                     .build();
@@ -131,65 +140,85 @@ public class SensitiveDataPostApi23 extends SensitiveDataUtils {
             KeyGenerator  kg = KeyGenerator.getInstance(CIPHER_ALGO, KEYSTORE_TYPE);
             kg.init(keySpec);
             key = kg.generateKey();
+            secretKeys.put(getKeyAlias(KEY_VERSION), key);
         } catch (InvalidAlgorithmParameterException | NoSuchProviderException | NoSuchAlgorithmException e) {
             Log.e(TAG, "Couldn't generate secret key", e);
         }
         return key;
     }
 
-    protected void initCipher(boolean forEncryption) throws UnrecoverableEntryException, NoSuchAlgorithmException, KeyStoreException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
-        KeyStore.SecretKeyEntry entry = (KeyStore.SecretKeyEntry)keyStore.getEntry(getKeyAlias(), null);
-        SecretKey key = entry.getSecretKey();
-        SharedPreferences sharedPreferences = context.get().getSharedPreferences(IV_STORAGE_FILE_NAME, Activity.MODE_PRIVATE);
-        String base64EncryptionIv = sharedPreferences.getString(IV_PARAM_KEY, null);
-
-        if(forEncryption) {
-            if (base64EncryptionIv == null) {
-                encryptCipher.init(Cipher.ENCRYPT_MODE, key);
+    /**
+     * Gets a secret key, only looking it up on the AndroidKeyStore the first time.
+     */
+    private SecretKey getSecretKey(String keyAlias) throws UnrecoverableEntryException, NoSuchAlgorithmException, KeyStoreException {
+        SecretKey key = secretKeys.get(keyAlias);
+        if (key == null) {
+            KeyStore.SecretKeyEntry entry = (KeyStore.SecretKeyEntry)keyStore.getEntry(keyAlias, null);
+            if (entry == null) {
+                throw new UnrecoverableEntryException(String.format("No key %1$s on the AndroidKeyStore", keyAlias));
+            }
+            key = entry.getSecretKey();
+            secretKeys.put(keyAlias, key);
+        }
+        return key;
+    }
 
-                byte[] encryptionIV = encryptCipher.getIV();
-                base64EncryptionIv = Base64.encodeToString(encryptionIV, Base64.DEFAULT);
+    /**
+     * Forgets the cached key handle when the key is no longer valid (i.e. lock screen removed), so
+     * it is looked up again next time.
+     */
+    private RuntimeException onCipherFailure(String keyAlias, GeneralSecurityException e) throws UserNotAuthenticatedWrapperException {
+        if (e instanceof UserNotAuthenticatedException) {
+            throw new UserNotAuthenticatedWrapperException(e);
+        } else if (e instanceof InvalidKeyException) {
+            secretKeys.remove(keyAlias);
+        }
+        return new RuntimeException(e);
+    }
 
-                SharedPreferences.Editor editor = sharedPreferences.edit();
-                editor.putString(IV_PARAM_KEY, base64EncryptionIv);
-                editor.apply();
-            } else {
-                byte[] encryptionIv = Base64.decode(base64EncryptionIv, Base64.DEFAULT);
-                encryptCipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(encryptionIv)); //FIXME: this ain't good, and we are re-using the same IV (security guidelines say we shouldn't)
+    private byte[] getLegacyIv() throws InvalidAlgorithmParameterException {
+        byte[] iv = legacyIv;
+        if (iv == null) {
+            SharedPreferences sharedPreferences = context.get().getSharedPreferences(IV_STORAGE_FILE_NAME, Activity.MODE_PRIVATE);
+            String base64EncryptionIv = sharedPreferences.getString(IV_PARAM_KEY, null);
+            if (base64EncryptionIv == null) {
+                throw new InvalidAlgorithmParameterException("No legacy encryption IV stored");
             }
-        } else {
-            byte[] encryptionIv = Base64.decode(base64EncryptionIv, Base64.DEFAULT);
+            iv = Base64.decode(base64EncryptionIv, Base64.DEFAULT);
+            legacyIv = iv;
+        }
+        return iv;
+    }
+
+    protected byte getKeyVersion() {
+        return KEY_VERSION;
+    }
 
-            encryptCipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(encryptionIv));
+    protected byte[] seal(byte[] header, byte[] data) throws UserNotAuthenticatedWrapperException {
+        String keyAlias = getKeyAlias(KEY_VERSION);
+        try {
+            return JceCipher.seal(getSecretKey(keyAlias), header, data);
+        } catch (GeneralSecurityException e) {
+            throw onCipherFailure(keyAlias, e);
         }
     }
 
-    protected byte[] encrypt(byte[] data) throws UserNotAuthenticatedWrapperException {
-        byte[] encrypted;
+    protected byte[] open(byte[] header, byte[] data, int offset) throws UserNotAuthenticatedWrapperException {
+        String keyAlias = getKeyAlias(header[header.length - 1]);
         try {
-            initCipher(true);
-            encrypted = encryptCipher.doFinal(data);
-        } catch (UserNotAuthenticatedException e) {
-            throw new UserNotAuthenticatedWrapperException(e);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | IllegalBlockSizeException |
-                InvalidKeyException | BadPaddingException | UnrecoverableEntryException | KeyStoreException | InvalidAlgorithmParameterException e) {
-            throw new RuntimeException(e);
+            return JceCipher.open(getSecretKey(keyAlias), header, data, offset);
+        } catch (GeneralSecurityException e) {
+            throw onCipherFailure(keyAlias, e);
         }
-        return encrypted;
     }
 
-    protected byte[] decrypt(byte[] data) throws UserNotAuthenticatedWrapperException {
-        byte[] decrypted;
+    protected byte[] decryptLegacy(byte[] data) throws UserNotAuthenticatedWrapperException {
+        String keyAlias = getLegacyKeyAlias();
         try {
-            initCipher(false);
-            decrypted = encryptCipher.doFinal(data);
-        } catch (UserNotAuthenticatedException e) {
-            throw new UserNotAuthenticatedWrapperException(e);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | IllegalBlockSizeException | InvalidKeyException |
-                BadPaddingException | UnrecoverableEntryException | KeyStoreException | InvalidAlgorithmParameterException e) {
-            throw new RuntimeException(e);
+            return JceCipher.decryptCbc(getSecretKey(keyAlias), getLegacyIv(), data);
+        } catch (GeneralSecurityException e) {
+            throw onCipherFailure(keyAlias, e);
         }
-        return decrypted;
     }
 
     //endregion
@@ -1,32 +1,28 @@
 package com.lnikkila.oidc.security;
 
 import android.content.Context;
-import android.util.Log;
 
 import com.lnikkila.oidc.R;
+import com.lnikkila.oidc.platform.Log;
 
 import org.spongycastle.crypto.InvalidCipherTextException;
-import org.spongycastle.crypto.engines.AESFastEngine;
-import org.spongycastle.crypto.modes.CBCBlockCipher;
-import org.spongycastle.crypto.paddings.PaddedBufferedBlockCipher;
 import org.spongycastle.crypto.params.KeyParameter;
-import org.spongycastle.crypto.params.ParametersWithIV;
-import org.spongycastle.util.Arrays;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
 
 /**
  * For pre {@link android.os.Build.VERSION_CODES#M } data encryption.  <br/>
- * Uses <a href='https://rtyley.github.io/spongycastle/'>Spongy Castle</a> <br/>
+ * Uses <a href='https://rtyley.github.io/spongycastle/'>Spongy Castle</a>, see {@link SpongyCastleCipher} <br/>
  * Created by Camilo Montes on 18/01/2016. <br/>
  */
 public class SensitiveDataPreApi23 extends SensitiveDataUtils {
@@ -34,13 +30,28 @@ public class SensitiveDataPreApi23 extends SensitiveDataUtils {
     //region Constants
 
     private static final String DEFAULT_KEYSTORE_PATH   = "oidc_enc_key";
+    private static final int IV_LENGTH                  = 16;                                           // 16 bytes is the IV size for AES256
+    private static final byte KEY_VERSION               = 1;                                            // the key file key, used with GCM
 
     //endregion
 
+    /**
+     * Keys already read from private storage, by key file, so token reads don't hit the disk.
+     */
+    private static final Map<String, KeyParameter> loadedKeys = new ConcurrentHashMap<>();
+
     public SensitiveDataPreApi23(Context context) {
         super(context);
     }
 
+    /**
+     * Drops the in memory copy of the key, so the next operation reads it again from private
+     * storage (i.e. after the key file has been replaced).
+     */
+    public void reloadKey() {
+        loadedKeys.remove(getKeyStorePath());
+    }
+
     private String getKeyStorePath() {
         String keyAlias = DEFAULT_KEYSTORE_PATH;
         if (context.get() != null) {
@@ -78,25 +89,30 @@ public class SensitiveDataPreApi23 extends SensitiveDataUtils {
      * @throws IOException
      */
     private byte[] loadKey(String filename) throws IOException {
-        byte[] key2 = null;
+        byte[] key = null;
         try
         {
             Context mContext = context.get();
             if (mContext != null) {
-                byte[] key = new byte[5096];
-                Arrays.fill(key, (byte) 0);
-                FileInputStream fOut = mContext.openFileInput(filename);
-                int length = fOut.read(key);
-                key2 = new byte[length];
-                System.arraycopy(key, 0, key2, 0, length);
-                fOut.close();
+                ByteArrayOutputStream keyStream = new ByteArrayOutputStream(CIPHER_KEY_LENGHT / 8);
+                FileInputStream fIn = mContext.openFileInput(filename);
+                try {
+                    byte[] buffer = new byte[CIPHER_KEY_LENGHT / 8];
+                    int length;
+                    while ((length = fIn.read(buffer)) != -1) {
+                        keyStream.write(buffer, 0, length);
+                    }
+                } finally {
+                    fIn.close();
+                }
+                key = keyStream.toByteArray();
             } else {
                 Log.e(TAG, "Can't load the encryption key, application context is null");
             }
         } catch(FileNotFoundException e) {
             Log.e(TAG, "Can't load the encryption key", e);
         }
-        return key2;
+        return key;
     }
 
     /**
@@ -109,38 +125,41 @@ public class SensitiveDataPreApi23 extends SensitiveDataUtils {
     }
 
     /**
-     * Reads the secret key from private storage
-     * @return the secret key
+     * Reads the secret key from private storage, only the first time it is needed.
+     * @return the secret key parameter or null if the key can't be read
      * @see #loadKey(String)
      */
-    private SecretKey loadKey() {
-        SecretKey secretKey = null;
-        try {
-            byte[] keyBytes = loadKey(getKeyStorePath()); // Hard-coded filename representing the encryption key
-            secretKey = new SecretKeySpec(keyBytes, 0, keyBytes.length, CIPHER_ALGO);
-        }
-        catch (IOException | IllegalArgumentException e) {
-            Log.e(TAG, String.format("Can't read key from storage at %1$s", getKeyStorePath()), e);
+    private KeyParameter loadKey() {
+        String keyStorePath = getKeyStorePath();
+        KeyParameter keyParameter = loadedKeys.get(keyStorePath);
+        if (keyParameter == null) {
+            try {
+                byte[] keyBytes = loadKey(keyStorePath); // Hard-coded filename representing the encryption key
+                if (keyBytes != null && keyBytes.length > 0) {
+                    keyParameter = new KeyParameter(keyBytes);
+                    loadedKeys.put(keyStorePath, keyParameter);
+                }
+            }
+            catch (IOException e) {
+                Log.e(TAG, e, "Can't read key from storage at %1$s", keyStorePath);
+            }
         }
-        return secretKey;
-    }
-
-    private byte[] cipherData(PaddedBufferedBlockCipher cipher, byte[] data) throws InvalidCipherTextException {
-        int minSize = cipher.getOutputSize(data.length);
-        byte[] outBuf = new byte[minSize];
-        int length1 = cipher.processBytes(data, 0, data.length, outBuf, 0);
-        int length2 = cipher.doFinal(outBuf, length1);
-        int actualLength = length1 + length2;
-        byte[] result = new byte[actualLength];
-        System.arraycopy(outBuf, 0, result, 0, result.length);
-        return result;
+        return keyParameter;
     }
 
     // region SensitiveDataUtils implementation
 
     protected void createAndSaveSecretKey() {
-        SecretKey key = generateKey();
-        saveKey(key);
+        Context mContext = context.get();
+        String keyStorePath = getKeyStorePath();
+        // Only the first instance creates the key, replacing it would make the stored data unreadable
+        if (mContext != null && !mContext.getFileStreamPath(keyStorePath).exists()) {
+            SecretKey key = generateKey();
+            if (key != null) {
+                saveKey(key);
+                loadedKeys.remove(keyStorePath);
+            }
+        }
     }
 
     protected SecretKey generateKey() {
@@ -155,24 +174,17 @@ public class SensitiveDataPreApi23 extends SensitiveDataUtils {
         return key;
     }
 
-    protected byte[] encrypt(byte[] data) {
-        // 16 bytes is the IV size for AES256
-        try {
-            SecretKey key = loadKey();
-
-            // Random IV
-            SecureRandom rng = new SecureRandom();
-            byte[] ivBytes = new byte[16];                                                                  // 16 bytes is the IV size for AES256
-            rng.nextBytes(ivBytes);
-
-            PaddedBufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESFastEngine()));
-            cipher.init(true, new ParametersWithIV(new KeyParameter(key.getEncoded()), ivBytes));
+    protected byte getKeyVersion() {
+        return KEY_VERSION;
+    }
 
-            byte[] encryptedData = cipherData(cipher, data);
-            byte[] encryptedDataWithIV = new byte[encryptedData.length + ivBytes.length];                   // Make room for IV
-            System.arraycopy(ivBytes, 0, encryptedDataWithIV, 0, ivBytes.length);                           // Add IV
-            System.arraycopy(encryptedData, 0, encryptedDataWithIV, ivBytes.length, encryptedData.length);  // Then the encrypted data
-            return encryptedDataWithIV;
+    protected byte[] seal(byte[] header, byte[] data) {
+        try {
+            KeyParameter key = loadKey();
+            if (key == null) {
+                return null;
+            }
+            return SpongyCastleCipher.seal(key, header, data);
         }
         catch(InvalidCipherTextException e) {
             Log.e(TAG, "Can't encrypt data", e);
@@ -180,20 +192,32 @@ public class SensitiveDataPreApi23 extends SensitiveDataUtils {
         return null;
     }
 
-    protected byte[] decrypt(byte[] data) {
-
+    protected byte[] open(byte[] header, byte[] data, int offset) {
         try {
-            SecretKey key = loadKey();
-
-            byte[] ivBytes = new byte[16];                                                                  // 16 bytes is the IV size for AES256
-            System.arraycopy(data, 0, ivBytes, 0, ivBytes.length);                                          // Get IV from data
-            byte[] dataWithoutIV = new byte[data.length - ivBytes.length];                                  // Remove the room made for the IV
-            System.arraycopy(data, ivBytes.length, dataWithoutIV, 0, dataWithoutIV.length);                 // Then the encrypted data
+            if (header[header.length - 1] != KEY_VERSION) {
+                Log.e(TAG, "Can't decrypt data sealed with unknown key version %1$d", header[header.length - 1]);
+                return null;
+            }
+            KeyParameter key = loadKey();
+            if (key == null) {
+                return null;
+            }
+            return SpongyCastleCipher.open(key, header, data, offset);
+        }
+        catch(InvalidCipherTextException e) {
+            Log.e(TAG, "Can't decrypt data, the record has been tampered with or the key has changed", e);
+        }
+        return null;
+    }
 
-            PaddedBufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESFastEngine()));
-            cipher.init(false, new ParametersWithIV(new KeyParameter(key.getEncoded()), ivBytes));
+    protected byte[] decryptLegacy(byte[] data) {
 
-            return cipherData(cipher, dataWithoutIV);
+        try {
+            KeyParameter key = loadKey();
+            if (key == null) {
+                return null;
+            }
+            return SpongyCastleCipher.decryptCbc(key, data, IV_LENGTH);
         }
         catch(InvalidCipherTextException e) {
             Log.e(TAG, "Can't decrypt data", e);
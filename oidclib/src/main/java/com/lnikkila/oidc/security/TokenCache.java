@@ -0,0 +1,160 @@
+package com.lnikkila.oidc.security;
+
+import android.accounts.Account;
+import android.support.v4.util.LruCache;
+
+import java.util.Arrays;
+
+/**
+ * Bounded, process-wide cache of decrypted tokens, keyed by account and token type.
+ * <br/>
+ * Reading a token through the AccountManager costs a binder call to the authenticator and a
+ * decryption; with this cache a steady-state token read is a map lookup. Entries expire with the
+ * token they hold and are removed as soon as the token is saved again or invalidated.
+ * <br/>
+ * Token characters are zeroed when an entry leaves the cache. This is best-effort only: tokens come
+ * in and go out as Strings, whose copies stay in the heap until they are garbage collected.
+ */
+public class TokenCache {
+
+    //region Constants
+
+    public static final int DEFAULT_MAX_ENTRIES = 16;
+
+    /**
+     * Maximum time a token is kept, also used for tokens whose lifetime is unknown (refresh
+     * tokens), so tokens changed by another process are eventually read again.
+     */
+    public static final long DEFAULT_MAX_AGE_MS = 10 * 60 * 1000;
+
+    /**
+     * Tokens are dropped this long before they actually expire.
+     */
+    protected static final long EXPIRY_MARGIN_MS = 5 * 1000;
+
+    //endregion
+
+    private static volatile TokenCache instance;
+
+    private final long maxAgeMillis;
+    private final LruCache<String, Entry> entries;
+
+    public TokenCache(int maxEntries, long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+        this.entries = new LruCache<String, Entry>(maxEntries) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+                oldValue.wipe();
+            }
+        };
+    }
+
+    /**
+     * @return the process-wide cache shared by every OIDCAccountManager
+     */
+    public static TokenCache getInstance() {
+        TokenCache cache = instance;
+        if (cache == null) {
+            synchronized (TokenCache.class) {
+                cache = instance;
+                if (cache == null) {
+                    cache = new TokenCache(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_AGE_MS);
+                    instance = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Gets a cached token.
+     * @param account the account owning the token
+     * @param tokenType the token type
+     * @return the token or null if it isn't cached or has expired
+     */
+    public String get(Account account, String tokenType) {
+        String key = key(account, tokenType);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt > System.currentTimeMillis()) {
+            return entry.read();
+        }
+        // LruCache locks on itself: a fresh entry put concurrently under the same key must stay
+        synchronized (entries) {
+            if (entries.get(key) == entry) {
+                entries.remove(key);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Caches a decrypted token.
+     * @param account the account owning the token
+     * @param tokenType the token type
+     * @param token the decrypted token, if null the cached token is invalidated
+     * @param expiresAt when the token expires (epoch milliseconds), or null if unknown
+     */
+    public void put(Account account, String tokenType, String token, Long expiresAt) {
+        if (token == null) {
+            invalidate(account, tokenType);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long entryExpiresAt = now + maxAgeMillis;
+        if (expiresAt != null) {
+            entryExpiresAt = Math.min(entryExpiresAt, expiresAt - EXPIRY_MARGIN_MS);
+        }
+        if (entryExpiresAt > now) {
+            entries.put(key(account, tokenType), new Entry(token.toCharArray(), entryExpiresAt));
+        } else {
+            invalidate(account, tokenType);
+        }
+    }
+
+    public void invalidate(Account account, String tokenType) {
+        entries.remove(key(account, tokenType));
+    }
+
+    /**
+     * Invalidates every cached token of the given account.
+     */
+    public void invalidate(Account account) {
+        String prefix = key(account, "");
+        for (String key : entries.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    public void clear() {
+        entries.evictAll();
+    }
+
+    private static String key(Account account, String tokenType) {
+        return account.type + '/' + account.name + '/' + tokenType;
+    }
+
+    private static class Entry {
+        private final char[] value;
+        private final long expiresAt;
+        private boolean wiped;
+
+        Entry(char[] value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        synchronized String read() {
+            return wiped ? null : new String(value);
+        }
+
+        synchronized void wipe() {
+            Arrays.fill(value, '\0');
+            wiped = true;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.lnikkila.oidc.userinfo;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.gson.JsonParseException;
+import com.lnikkila.oidc.http.CacheControl;
+import com.lnikkila.oidc.http.OIDCHttpTransport;
+import com.lnikkila.oidc.metrics.Metrics;
+import com.lnikkila.oidc.platform.Log;
+import com.lnikkila.oidc.security.SensitiveDataUtils;
+import com.lnikkila.oidc.security.UserNotAuthenticatedWrapperException;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the UserInfo Endpoint responses, by issuer and subject, in memory and on disk (encrypted).
+ * <br/>
+ * A response is served locally while it is fresh (Cache-Control max-age) and was fetched with the
+ * current access token. Otherwise it is revalidated with a conditional request (If-None-Match),
+ * so an unchanged profile costs a 304 instead of a download and a parse, including across
+ * restarts. Responses with no-store are never kept.
+ *
+ * @see <a href="http://openid.net/specs/openid-connect-core-1_0.html#UserInfo">http://openid.net/specs/openid-connect-core-1_0.html#UserInfo</a>
+ */
+public class UserInfoCache {
+
+    private static final String TAG = UserInfoCache.class.getSimpleName();
+
+    //region Constants
+
+    /**
+     * How long a response is considered fresh when it has no max-age directive.
+     */
+    public static final long DEFAULT_MAX_AGE_MS = 5 * 60 * 1000;
+
+    private static final String PREFS_NAME          = "oidc_userinfo";
+    private static final String KEY_DOCUMENT        = ".document";
+    private static final String KEY_ETAG            = ".etag";
+    private static final String KEY_EXPIRES_AT      = ".expiresAt";
+    private static final String KEY_GENERATION      = ".generation";
+
+    //endregion
+
+    private static volatile UserInfoCache instance;
+
+    private final SharedPreferences preferences;
+    private final SensitiveDataUtils dataEncUtils;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    protected UserInfoCache(Context context) {
+        Context applicationContext = context.getApplicationContext();
+        this.preferences = applicationContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.dataEncUtils = SensitiveDataUtils.newInstance(applicationContext);
+    }
+
+    /**
+     * Gets the process-wide cache, creating it if needed.
+     * @param context any context, only the application context is kept
+     * @return the shared cache
+     */
+    public static UserInfoCache getInstance(Context context) {
+        UserInfoCache cache = instance;
+        if (cache == null) {
+            synchronized (UserInfoCache.class) {
+                cache = instance;
+                if (cache == null) {
+                    cache = new UserInfoCache(context);
+                    instance = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Gets the user information of a subject, from the cache when it is fresh and was fetched with
+     * the same access token, otherwise from the UserInfo Endpoint with a conditional request. Must
+     * not be called from the main thread.
+     * @param transport the transport of the caller, used for the request and to parse the response
+     * @param userInfoEndpoint the UserInfo Endpoint
+     * @param issuer the issuer of the ID Token, subjects are only unique per issuer
+     * @param subject the end-user subject, from the ID Token
+     * @param accessToken the access token of the end-user
+     * @return the user information
+     * @throws HttpResponseException for an error response
+     * @throws IOException for a response issued for another subject
+     */
+    public UserInfo get(OIDCHttpTransport transport, String userInfoEndpoint, String issuer, String subject,
+                        String accessToken) throws IOException {
+        String key = getKey(issuer, subject);
+        String generation = getGeneration(accessToken);
+        Entry entry = getEntry(transport, key);
+        if (entry != null && entry.generation.equals(generation) && System.currentTimeMillis() < entry.expiresAt) {
+            Metrics.increment(Metrics.USERINFO_CACHE_HIT);
+            return entry.userInfo;
+        }
+
+        Metrics.Timer timer = Metrics.startTimer(Metrics.USERINFO_REQUEST);
+        try {
+            return fetch(transport, userInfoEndpoint, key, subject, accessToken, generation, entry);
+        } catch (IOException | RuntimeException e) {
+            timer.fail(e);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Requests the user information, conditionally when there is a stored entry, and stores it.
+     */
+    private UserInfo fetch(OIDCHttpTransport transport, String userInfoEndpoint, String key, String subject,
+                           String accessToken, String generation, Entry entry) throws IOException {
+        HttpRequest request = transport.getRequestFactory().buildGetRequest(new GenericUrl(userInfoEndpoint));
+        request.getHeaders().setAuthorization("Bearer " + accessToken).setAccept("application/json");
+        if (entry != null && entry.etag != null) {
+            request.getHeaders().setIfNoneMatch(entry.etag);
+        }
+        request.setThrowExceptionOnExecuteError(false);
+
+        HttpResponse response = request.execute();
+        try {
+            String cacheControl = response.getHeaders().getCacheControl();
+            long expiresAt = System.currentTimeMillis() + CacheControl.getMaxAgeMillis(cacheControl, DEFAULT_MAX_AGE_MS);
+            boolean noStore = cacheControl != null && cacheControl.contains("no-store");
+            int statusCode = response.getStatusCode();
+            if (statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED && entry != null) {
+                Log.d(TAG, "UserInfo not modified");
+                Metrics.increment(Metrics.USERINFO_CACHE_REVALIDATED);
+                store(transport, key, new Entry(entry.userInfo, entry.etag, expiresAt, generation), false);
+                return entry.userInfo;
+            } else if (response.isSuccessStatusCode()) {
+                UserInfo userInfo = transport.parseJson(response, UserInfo.class);
+                if (userInfo == null || !subject.equals(userInfo.getSubject())) {
+                    // The sub claim must match the ID Token one, the response can't be used
+                    throw new IOException("UserInfo response issued for another subject");
+                }
+                Metrics.increment(Metrics.USERINFO_CACHE_MISS);
+                if (noStore) {
+                    removeEntry(key);
+                } else {
+                    store(transport, key, new Entry(userInfo, response.getHeaders().getETag(), expiresAt, generation), true);
+                }
+                return userInfo;
+            } else {
+                throw new HttpResponseException(response);
+            }
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Forgets the user information of a subject, in memory and on disk (i.e. on logout).
+     * @param issuer the issuer of the ID Token
+     * @param subject the end-user subject, from the ID Token
+     */
+    public void remove(String issuer, String subject) {
+        removeEntry(getKey(issuer, subject));
+    }
+
+    private void removeEntry(String key) {
+        entries.remove(key);
+        preferences.edit()
+                .remove(key + KEY_DOCUMENT)
+                .remove(key + KEY_ETAG)
+                .remove(key + KEY_EXPIRES_AT)
+                .remove(key + KEY_GENERATION)
+                .apply();
+    }
+
+    /**
+     * Forgets all the user information, in memory and on disk.
+     */
+    public void clear() {
+        entries.clear();
+        preferences.edit().clear().apply();
+    }
+
+    private Entry getEntry(OIDCHttpTransport transport, String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = loadFromDisk(transport, key);
+            if (entry != null) {
+                entries.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    private Entry loadFromDisk(OIDCHttpTransport transport, String key) {
+        String encryptedDocument = preferences.getString(key + KEY_DOCUMENT, null);
+        String generation = preferences.getString(key + KEY_GENERATION, null);
+        if (encryptedDocument == null || generation == null) {
+            return null;
+        }
+        try {
+            String document = dataEncUtils.decrypt(encryptedDocument);
+            UserInfo userInfo = document != null ? transport.getGson().fromJson(document, UserInfo.class) : null;
+            if (userInfo != null) {
+                return new Entry(userInfo, preferences.getString(key + KEY_ETAG, null),
+                        preferences.getLong(key + KEY_EXPIRES_AT, 0), generation);
+            }
+        } catch (UserNotAuthenticatedWrapperException e) {
+            Log.w(TAG, "Could not decrypt the stored UserInfo, the user isn't authenticated.");
+        } catch (JsonParseException e) {
+            Log.w(TAG, "Ignoring malformed stored UserInfo", e);
+        }
+        return null;
+    }
+
+    /**
+     * Keeps an entry in memory and persists it. The document is only written when it changed.
+     */
+    private void store(OIDCHttpTransport transport, String key, Entry entry, boolean documentChanged) {
+        entries.put(key, entry);
+
+        SharedPreferences.Editor editor = preferences.edit()
+                .putString(key + KEY_ETAG, entry.etag)
+                .putLong(key + KEY_EXPIRES_AT, entry.expiresAt)
+                .putString(key + KEY_GENERATION, entry.generation);
+        if (documentChanged) {
+            try {
+                editor.putString(key + KEY_DOCUMENT, dataEncUtils.encrypt(transport.getGson().toJson(entry.userInfo, UserInfo.class)));
+            } catch (UserNotAuthenticatedWrapperException e) {
+                // Kept in memory only
+                Log.w(TAG, "Could not encrypt the UserInfo, the user isn't authenticated.");
+                editor.remove(key + KEY_DOCUMENT);
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Identifies an end-user: a subject is only unique for its issuer. Hashed so the preference keys
+     * are made of safe characters and don't disclose the subject.
+     */
+    private static String getKey(String issuer, String subject) {
+        return hash(issuer + ' ' + subject);
+    }
+
+    /**
+     * Identifies the access token an entry was fetched with, without storing the token itself.
+     */
+    private static String getGeneration(String accessToken) {
+        return hash(accessToken);
+    }
+
+    private static String hash(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(value.getBytes("UTF-8"));
+            return Base64.encodeToString(Arrays.copyOf(hash, 12), Base64.NO_WRAP | Base64.NO_PADDING | Base64.URL_SAFE);
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Entry {
+        final UserInfo userInfo;
+        final String etag;
+        final long expiresAt;
+        final String generation;
+
+        Entry(UserInfo userInfo, String etag, long expiresAt, String generation) {
+            this.userInfo = userInfo;
+            this.etag = etag;
+            this.expiresAt = expiresAt;
+            this.generation = generation;
+        }
+    }
+}